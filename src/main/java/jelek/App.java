@@ -2,27 +2,64 @@ package jelek;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import java.io.BufferedReader;
-import java.io.FileReader;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import jelek.StaticCheck.StaticCheckException;
 
 public class App {
-    static Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    static Gson gson = new GsonBuilder()
+                           .setPrettyPrinting()
+                           .registerTypeAdapterFactory(new ClassTagFactory())
+                           .create();
 
     public static void main(String[] args) {
+        var options = new Options();
+        args = Arrays.copyOfRange(args, options.parse(args), args.length);
+
+        if (args.length > 0 && args[0].equals("--batch")) {
+            System.exit(
+                Batch.run(Arrays.copyOfRange(args, 1, args.length), options));
+        }
+
+        if (args.length > 0 && args[0].equals("--daemon")) {
+            try {
+                Daemon.run(Arrays.copyOfRange(args, 1, args.length), options);
+            } catch (IOException e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+
+        if (args.length > 0 && args[0].equals("--bench")) {
+            try {
+                Bench.run(Arrays.copyOfRange(args, 1, args.length));
+            } catch (Exception e) {
+                e.printStackTrace();
+                System.exit(1);
+            }
+            return;
+        }
+
         for (var fileName : args) {
             try {
                 System.out.println(fileName + ": ");
-                System.out.println(
-                    new String(Files.readAllBytes(Paths.get(fileName))));
-
-                var p = new parser(new Scanner(new FileReader(fileName)));
-                var program = (Ast.Program)p.parse().value;
-                StaticCheck.run(program);
-                // System.out.println(gson.toJson(program));
-                Ir3Printer.print(Ir3Gen.gen(program));
+                var source = Source.map(Paths.get(fileName));
+                source.echo(System.out);
+
+                var stats = compile(source, options, System.out);
+                if (stats != null) {
+                    stats.print(System.err);
+                }
             } catch (StaticCheckException e) {
                 System.err.println("StaticCheckException: " + e.getMessage());
             } catch (Exception e) {
@@ -30,4 +67,83 @@ public class App {
             }
         }
     }
+
+    // Returns what the optimizer did if --stats asked for it, or null. It is
+    // left to the caller to report, as compiles can run side by side.
+    static Optimizer.Stats compile(Source source, Options options,
+                                   PrintStream out) throws Exception {
+        var compilation = new Compilation();
+        var program = parse(source, options.frontend, compilation);
+        StaticCheck.run(program, compilation);
+        // System.out.println(gson.toJson(program));
+        var ir3 = Ir3Gen.gen(program, compilation);
+        Optimizer.Stats stats = null;
+        if (options.optimize) {
+            stats = Optimizer.run(ir3);
+            if (!options.stats) {
+                stats = null;
+            }
+        }
+        if (options.ssa) {
+            for (var method : ir3.methods) {
+                Ssa.build(Cfg.build(method));
+            }
+        }
+        Ir3Printer.print(ir3, out);
+        return stats;
+    }
+
+    static Ast.Program parse(Source source, Options.Frontend frontend,
+                             Compilation compilation) throws Exception {
+        switch (frontend) {
+        case HAND:
+            return new Parser(new Lexer(source, compilation.symbols),
+                              compilation.types)
+                .parse();
+        case ARENA:
+            return new ArenaParser(new Lexer(source, compilation.symbols),
+                                   compilation.types)
+                .parse();
+        default:
+            var scanner = new Scanner(source.reader(), compilation.symbols);
+            var p = new parser(scanner, compilation.types);
+            return (Ast.Program)p.parse().value;
+        }
+    }
+
+    // AST nodes don't carry their class name around, so add it to the JSON
+    static class ClassTagFactory implements TypeAdapterFactory {
+        @Override
+        public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+            var raw = type.getRawType();
+            if (raw.isEnum() || !raw.getName().startsWith("jelek.Ast$")) {
+                return null;
+            }
+
+            var delegate = gson.getDelegateAdapter(this, type);
+            var elementAdapter = gson.getAdapter(JsonElement.class);
+            return new TypeAdapter<T>() {
+                @Override
+                public void write(JsonWriter out, T value) throws IOException {
+                    if (value == null) {
+                        out.nullValue();
+                        return;
+                    }
+
+                    var object = new JsonObject();
+                    object.addProperty("_class", value.getClass().getName());
+                    var fields = delegate.toJsonTree(value).getAsJsonObject();
+                    for (var entry : fields.entrySet()) {
+                        object.add(entry.getKey(), entry.getValue());
+                    }
+                    elementAdapter.write(out, object);
+                }
+
+                @Override
+                public T read(JsonReader in) throws IOException {
+                    return delegate.read(in);
+                }
+            };
+        }
+    }
 }
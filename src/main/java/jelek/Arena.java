@@ -0,0 +1,124 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// The statements and expressions of a program in flat arrays instead of one
+// object each, for inputs large enough that the headers add up. A node is an
+// index into the arrays below: its kind says what its a, b and c hold, and
+// names are symbol ids (see Symbols). A list is an index into lists, where
+// its length is followed by its elements. Classes, methods and vars are
+// still objects, and each Ast.Method has the list of its statements as its
+// body.
+//
+// StaticCheck fills in the types and slots in place, so it and Ir3Gen walk
+// the arena without allocating anything per node.
+class Arena {
+    // Statements
+    static final byte IF = 0; // cond, then list, else list
+    static final byte WHILE = 1; // cond, list
+    static final byte READLN = 2; // name, slot
+    static final byte PRINTLN = 3; // expr
+    static final byte ASSIGN = 4; // name, rhs, slot
+    static final byte FIELD_ASSIGN = 5; // expr, field name, rhs
+    static final byte CALL_STMT = 6; // callee, arg list
+    static final byte RETURN = 7; // expr, or -1
+
+    // Expressions
+    static final byte STR = 8; // index into strings
+    static final byte INT = 9; // value
+    static final byte BOOL = 10; // 1 if true
+    static final byte ID = 11; // name, slot
+    static final byte UNARY = 12; // op, atom
+    static final byte BINARY = 13; // op, e1, e2
+    static final byte DOT = 14; // atom, member name
+    static final byte CALL = 15; // callee, arg list
+    static final byte NEW = 16; // class name
+    static final byte THIS = 17;
+    static final byte NULL = 18;
+
+    // The slot of a variable that is a field of this
+    static final int FIELD = -1;
+
+    static final Ast.Expr.UnaryOp[] UNARY_OPS = Ast.Expr.UnaryOp.values();
+    static final Ast.Expr.BinaryOp[] BINARY_OPS = Ast.Expr.BinaryOp.values();
+
+    // By node. Slots start as FIELD, and types as -1.
+    byte[] kinds = new byte[1024];
+    int[] a = new int[1024];
+    int[] b = new int[1024];
+    int[] c = new int[1024];
+    int[] types = new int[1024];
+    int size = 0;
+
+    int[] lists = new int[1024];
+    int listsSize = 0;
+
+    final ArrayList<String> strings = new ArrayList<>();
+
+    // Every type of the compilation, by the ids in types
+    Ast.Type[] typeTable;
+    final IdentityHashMap<Ast.Type, Integer> typeIds = new IdentityHashMap<>();
+
+    int add(byte kind, int a, int b, int c) {
+        if (size == kinds.length) {
+            kinds = Arrays.copyOf(kinds, size * 2);
+            this.a = Arrays.copyOf(this.a, size * 2);
+            this.b = Arrays.copyOf(this.b, size * 2);
+            this.c = Arrays.copyOf(this.c, size * 2);
+            types = Arrays.copyOf(types, size * 2);
+        }
+        kinds[size] = kind;
+        this.a[size] = a;
+        this.b[size] = b;
+        this.c[size] = c;
+        types[size] = -1;
+        return size++;
+    }
+
+    // A list of the elements from start to end
+    int list(int[] elements, int start, int end) {
+        int length = end - start;
+        if (listsSize + length + 1 > lists.length) {
+            lists = Arrays.copyOf(
+                lists, Math.max(lists.length * 2, listsSize + length + 1));
+        }
+        int list = listsSize;
+        lists[listsSize++] = length;
+        System.arraycopy(elements, start, lists, listsSize, length);
+        listsSize += length;
+        return list;
+    }
+
+    int length(int list) { return lists[list]; }
+
+    int get(int list, int i) { return lists[list + 1 + i]; }
+
+    int str(String value) {
+        strings.add(value);
+        return strings.size() - 1;
+    }
+
+    // Numbers the types once StaticCheck.init has made them all. Afterwards
+    // the table is only read, so methods can be checked in parallel.
+    void types(Types types) {
+        var all = new ArrayList<Ast.Type>(List.of(
+            Ast.Type.INT, Ast.Type.BOOL, Ast.Type.STRING, Ast.Type.VOID,
+            Ast.Type.NULL));
+        all.addAll(types.classes.values());
+        all.addAll(types.functions.values());
+        typeTable = all.toArray(new Ast.Type[0]);
+        for (int i = 0; i < typeTable.length; i++) {
+            typeIds.put(typeTable[i], i);
+        }
+    }
+
+    Ast.Type type(int node) { return typeTable[types[node]]; }
+
+    Ast.Type setType(int node, Ast.Type type) {
+        types[node] = typeIds.get(type);
+        return type;
+    }
+}
@@ -0,0 +1,326 @@
+package jelek;
+
+import static jelek.Lexer.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Parser that puts method bodies in an Arena. It follows Parser rule for
+// rule, with each rule returning a node instead of an object, and builds the
+// same classes, methods and vars.
+class ArenaParser extends Parser {
+    final Arena arena = new Arena();
+    final Symbols symbols;
+
+    // Like pending, for the nodes of the lists being parsed
+    int[] nodes = new int[64];
+    int nodesSize = 0;
+
+    ArenaParser(Lexer lexer, Types types) {
+        super(lexer, types);
+        symbols = lexer.symbols;
+    }
+
+    @Override
+    Ast.Program parse() throws Exception {
+        return new Ast.Program(super.parse().classes, arena);
+    }
+
+    @Override
+    Ast.Method body(String id, Ast.Type returnType, List<Ast.Var> params,
+                    List<Ast.Var> vars) throws Exception {
+        return new Ast.Method(id, returnType, params, vars, stmtList(true));
+    }
+
+    int stmtList(boolean nonEmpty) throws Exception {
+        int start = nodesSize;
+        if (nonEmpty) {
+            push(stmtNode());
+        }
+        while (lexer.kind != RBRACE) {
+            push(stmtNode());
+        }
+        return takeList(start);
+    }
+
+    int stmtNode() throws Exception {
+        switch (lexer.kind) {
+        case IF: {
+            lexer.next();
+            int cond = parenthesizedNode();
+            expect(LBRACE);
+            int thenStmts = stmtList(true);
+            expect(RBRACE);
+            expect(ELSE);
+            expect(LBRACE);
+            int elseStmts = stmtList(true);
+            expect(RBRACE);
+            return arena.add(Arena.IF, cond, thenStmts, elseStmts);
+        }
+        case WHILE: {
+            lexer.next();
+            int cond = parenthesizedNode();
+            expect(LBRACE);
+            int stmts = stmtList(false);
+            expect(RBRACE);
+            return arena.add(Arena.WHILE, cond, stmts, 0);
+        }
+        case READLN: {
+            lexer.next();
+            expect(LPAREN);
+            int id = symbols.id(id());
+            expect(RPAREN);
+            expect(SEMICOLON);
+            return arena.add(Arena.READLN, id, Arena.FIELD, 0);
+        }
+        case PRINTLN: {
+            lexer.next();
+            int expr = parenthesizedNode();
+            expect(SEMICOLON);
+            return arena.add(Arena.PRINTLN, expr, 0, 0);
+        }
+        case RETURN: {
+            lexer.next();
+            int expr = -1;
+            if (lexer.kind != SEMICOLON) {
+                expr = exprNode();
+            }
+            expect(SEMICOLON);
+            return arena.add(Arena.RETURN, expr, 0, 0);
+        }
+        }
+
+        // Assignments and calls all start with an atom, whose node becomes
+        // the statement's
+        boolean isId = lexer.kind == ID || lexer.kind == MAIN;
+        int atom = atomNode();
+        byte kind = arena.kinds[atom];
+        if (isId && kind == Arena.ID && lexer.kind == ASSIGN) {
+            lexer.next();
+            int rhs = exprNode();
+            expect(SEMICOLON);
+            arena.kinds[atom] = Arena.ASSIGN;
+            arena.b[atom] = rhs;
+            arena.c[atom] = Arena.FIELD;
+            return atom;
+        }
+        if (category == OPERAND_ATOM && kind == Arena.DOT &&
+            lexer.kind == ASSIGN) {
+            lexer.next();
+            int rhs = exprNode();
+            expect(SEMICOLON);
+            arena.kinds[atom] = Arena.FIELD_ASSIGN;
+            arena.c[atom] = rhs;
+            return atom;
+        }
+        if (category == OPERAND_ATOM && kind == Arena.CALL &&
+            lexer.kind == SEMICOLON) {
+            lexer.next();
+            arena.kinds[atom] = Arena.CALL_STMT;
+            return atom;
+        }
+        throw error();
+    }
+
+    int parenthesizedNode() throws Exception {
+        expect(LPAREN);
+        int expr = exprNode();
+        expect(RPAREN);
+        return expr;
+    }
+
+    int exprNode() throws Exception {
+        if (lexer.kind == STRING_LITERAL) {
+            int expr = arena.add(Arena.STR, arena.str(lexer.text), 0, 0);
+            lexer.next();
+            return expr;
+        }
+
+        // Every '||' of a chain but the last is an AND, as in Parser.expr
+        int expr = conjNode();
+        if (lexer.kind != OR) {
+            return expr;
+        }
+        requireBool();
+        int last = -1;
+        while (lexer.kind == OR) {
+            lexer.next();
+            if (last >= 0) {
+                expr = binary(Ast.Expr.BinaryOp.AND, expr, last);
+            }
+            last = conjNode();
+            requireBool();
+        }
+        category = OPERAND_BOOL;
+        return binary(Ast.Expr.BinaryOp.OR, expr, last);
+    }
+
+    int conjNode() throws Exception {
+        int expr = rexprNode();
+        if (lexer.kind != AND) {
+            return expr;
+        }
+        requireBool();
+        while (lexer.kind == AND) {
+            lexer.next();
+            int e2 = rexprNode();
+            requireBool();
+            expr = binary(Ast.Expr.BinaryOp.AND, expr, e2);
+        }
+        category = OPERAND_BOOL;
+        return expr;
+    }
+
+    int rexprNode() throws Exception {
+        if (lexer.kind == NOT || lexer.kind == TRUE || lexer.kind == FALSE) {
+            return bgrdNode();
+        }
+
+        int expr = aexprNode();
+        var op = relOp(lexer.kind);
+        if (op == null) {
+            return expr;
+        }
+        lexer.next();
+        int e2 = aexprNode();
+        category = OPERAND_BOOL;
+        return binary(op, expr, e2);
+    }
+
+    int bgrdNode() throws Exception {
+        switch (lexer.kind) {
+        case NOT:
+            lexer.next();
+            int expr = arena.add(Arena.UNARY, Ast.Expr.UnaryOp.NOT.ordinal(),
+                                 bgrdNode(), 0);
+            category = OPERAND_BOOL;
+            return expr;
+        case TRUE:
+            lexer.next();
+            category = OPERAND_BOOL;
+            return arena.add(Arena.BOOL, 1, 0, 0);
+        case FALSE:
+            lexer.next();
+            category = OPERAND_BOOL;
+            return arena.add(Arena.BOOL, 0, 0, 0);
+        default:
+            return atomNode();
+        }
+    }
+
+    int aexprNode() throws Exception {
+        int expr = termNode();
+        while (lexer.kind == PLUS || lexer.kind == MINUS) {
+            var op = lexer.kind == PLUS ? Ast.Expr.BinaryOp.PLUS
+                                        : Ast.Expr.BinaryOp.MINUS;
+            lexer.next();
+            expr = binary(op, expr, termNode());
+            category = OPERAND_ARITH;
+        }
+        return expr;
+    }
+
+    int termNode() throws Exception {
+        int expr = ftrNode();
+        while (lexer.kind == STAR || lexer.kind == SLASH) {
+            var op = lexer.kind == STAR ? Ast.Expr.BinaryOp.MUL
+                                        : Ast.Expr.BinaryOp.DIV;
+            lexer.next();
+            expr = binary(op, expr, ftrNode());
+            category = OPERAND_ARITH;
+        }
+        return expr;
+    }
+
+    int ftrNode() throws Exception {
+        switch (lexer.kind) {
+        case INTEGER_LITERAL:
+            int expr = arena.add(Arena.INT, lexer.value, 0, 0);
+            lexer.next();
+            category = OPERAND_ARITH;
+            return expr;
+        case MINUS:
+            lexer.next();
+            int neg = arena.add(Arena.UNARY, Ast.Expr.UnaryOp.NEG.ordinal(),
+                                ftrNode(), 0);
+            category = OPERAND_ARITH;
+            return neg;
+        default:
+            return atomNode();
+        }
+    }
+
+    // Sets category as Parser.atom does
+    int atomNode() throws Exception {
+        int expr;
+        switch (lexer.kind) {
+        case THIS:
+            lexer.next();
+            expr = arena.add(Arena.THIS, 0, 0, 0);
+            break;
+        case ID:
+        case MAIN:
+            expr = arena.add(Arena.ID, symbols.id(id()), Arena.FIELD, 0);
+            break;
+        case NEW:
+            lexer.next();
+            expr = arena.add(Arena.NEW, symbols.id(name(CNAME)), 0, 0);
+            expect(LPAREN);
+            expect(RPAREN);
+            break;
+        case LPAREN:
+            expr = parenthesizedNode();
+            category = -1;
+            if (lexer.kind != DOT && lexer.kind != LPAREN) {
+                return expr;
+            }
+            break;
+        case NULL:
+            lexer.next();
+            expr = arena.add(Arena.NULL, 0, 0, 0);
+            break;
+        default:
+            throw error();
+        }
+
+        while (true) {
+            if (lexer.kind == DOT) {
+                lexer.next();
+                expr = arena.add(Arena.DOT, expr, symbols.id(id()), 0);
+            } else if (lexer.kind == LPAREN) {
+                lexer.next();
+                int start = nodesSize;
+                if (lexer.kind != RPAREN && lexer.kind != COMMA) {
+                    push(exprNode());
+                }
+                while (lexer.kind == COMMA) {
+                    lexer.next();
+                    push(exprNode());
+                }
+                expect(RPAREN);
+                expr = arena.add(Arena.CALL, expr, takeList(start), 0);
+            } else {
+                category = OPERAND_ATOM;
+                return expr;
+            }
+        }
+    }
+
+    int binary(Ast.Expr.BinaryOp op, int e1, int e2) {
+        return arena.add(Arena.BINARY, op.ordinal(), e1, e2);
+    }
+
+    void push(int node) {
+        if (nodesSize == nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodesSize * 2);
+        }
+        nodes[nodesSize++] = node;
+    }
+
+    // Removes the nodes from start on and returns them as a list
+    int takeList(int start) {
+        int list = arena.list(nodes, start, nodesSize);
+        nodesSize = start;
+        return list;
+    }
+}
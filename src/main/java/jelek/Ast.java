@@ -1,62 +1,82 @@
 package jelek;
 
-import java.util.ArrayList;
 import java.util.List;
-import jelek.StaticCheck.StaticCheckException;
 
+// Nodes hold only what later phases read. Child lists are copied into
+// immutable lists of exactly their size, which for the one- and two-element
+// lists that make up most of a program means no backing array at all.
+//
+// A program can also keep its statements and expressions in an Arena rather
+// than as the nodes below, which only its classes, methods and vars are.
 class Ast {
     static class Program {
-        final String _class = "Program";
-        List<Class> classes;
+        final List<Class> classes;
+        final Arena arena; // Or null
 
-        Program(List<Class> classes) { this.classes = classes; }
+        Program(List<Class> classes) { this(classes, null); }
+
+        Program(List<Class> classes, Arena arena) {
+            this.classes = List.copyOf(classes);
+            this.arena = arena;
+        }
     }
 
     static class Class {
-        final String _class = "Class";
         final String name;
         final List<Var> vars;
         final List<Method> methods;
 
         Class(String name, List<Var> vars, List<Method> methods) {
             this.name = name;
-            this.vars = vars;
-            this.methods = methods;
+            this.vars = List.copyOf(vars);
+            this.methods = List.copyOf(methods);
         }
     }
 
     static class Method {
-        final String _class = "Method";
         final String id;
         final Type returnType;
         final List<Var> params;
         final List<Var> vars;
         final List<Stmt> stmts;
+        final int body; // The list of statements in the arena, or -1
 
         Method(String id, Type returnType, List<Var> params, List<Var> vars,
                List<Stmt> stmts) {
+            this(id, returnType, params, vars, stmts, -1);
+        }
+
+        Method(String id, Type returnType, List<Var> params, List<Var> vars,
+               int body) {
+            this(id, returnType, params, vars, List.of(), body);
+        }
+
+        Method(String id, Type returnType, List<Var> params, List<Var> vars,
+               List<Stmt> stmts, int body) {
             this.id = id;
             this.returnType = returnType;
-            this.params = params;
-            this.vars = vars;
-            this.stmts = stmts;
+            this.params = List.copyOf(params);
+            this.vars = List.copyOf(vars);
+            this.stmts = List.copyOf(stmts);
+            this.body = body;
         }
     }
 
     abstract static class Stmt {
-        final String _class = this.getClass().getName();
-
-        abstract <R> R accept(Visitor<R> visitor) throws StaticCheckException;
-
-        interface Visitor<R> {
-            R visitIf(If stmt) throws StaticCheckException;
-            R visitWhile(While stmt) throws StaticCheckException;
-            R visitReadln(Readln stmt) throws StaticCheckException;
-            R visitPrintln(Println stmt) throws StaticCheckException;
-            R visitAssign(Assign stmt) throws StaticCheckException;
-            R visitFieldAssign(FieldAssign stmt) throws StaticCheckException;
-            R visitCall(Call stmt) throws StaticCheckException;
-            R visitReturn(Return stmt) throws StaticCheckException;
+        abstract <R, E extends Exception> R accept(Visitor<R, E> visitor)
+            throws E;
+
+        // E is the checked exception the visits can throw, if any. Passes
+        // after StaticCheck use RuntimeException.
+        interface Visitor<R, E extends Exception> {
+            R visitIf(If stmt) throws E;
+            R visitWhile(While stmt) throws E;
+            R visitReadln(Readln stmt) throws E;
+            R visitPrintln(Println stmt) throws E;
+            R visitAssign(Assign stmt) throws E;
+            R visitFieldAssign(FieldAssign stmt) throws E;
+            R visitCall(Call stmt) throws E;
+            R visitReturn(Return stmt) throws E;
         }
 
         static class If extends Stmt {
@@ -66,12 +86,12 @@ class Ast {
 
             If(Expr cond, List<Stmt> thenStmts, List<Stmt> elseStmts) {
                 this.cond = cond;
-                this.thenStmts = thenStmts;
-                this.elseStmts = elseStmts;
+                this.thenStmts = List.copyOf(thenStmts);
+                this.elseStmts = List.copyOf(elseStmts);
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitIf(this);
             }
         }
@@ -82,22 +102,24 @@ class Ast {
 
             While(Expr cond, List<Stmt> stmts) {
                 this.cond = cond;
-                this.stmts = stmts;
+                this.stmts = List.copyOf(stmts);
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitWhile(this);
             }
         }
 
         static class Readln extends Stmt {
             final String id;
+            int depth = -1; // Populated during StaticCheck, like Expr.Id
+            int slot = -1;
 
             Readln(String id) { this.id = id; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitReadln(this);
             }
         }
@@ -108,7 +130,7 @@ class Ast {
             Println(Expr expr) { this.expr = expr; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitPrintln(this);
             }
         }
@@ -116,6 +138,8 @@ class Ast {
         static class Assign extends Stmt {
             final String lhs;
             final Expr rhs;
+            int depth = -1; // Populated during StaticCheck, like Expr.Id
+            int slot = -1;
 
             Assign(String lhs, Expr rhs) {
                 this.lhs = lhs;
@@ -123,7 +147,7 @@ class Ast {
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitAssign(this);
             }
         }
@@ -140,7 +164,7 @@ class Ast {
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitFieldAssign(this);
             }
         }
@@ -151,11 +175,11 @@ class Ast {
 
             Call(Expr callee, List<Expr> args) {
                 this.callee = callee;
-                this.args = args;
+                this.args = List.copyOf(args);
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitCall(this);
             }
         }
@@ -166,30 +190,30 @@ class Ast {
             Return(Expr expr) { this.expr = expr; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitReturn(this);
             }
         }
     }
 
     abstract static class Expr {
-        final String _class = this.getClass().getName();
         Type type; // Populated during StaticCheck
 
-        abstract <R> R accept(Visitor<R> visitor) throws StaticCheckException;
+        abstract <R, E extends Exception> R accept(Visitor<R, E> visitor)
+            throws E;
 
-        interface Visitor<R> {
-            R visitStr(Str expr) throws StaticCheckException;
-            R visitInt(Int expr) throws StaticCheckException;
-            R visitBool(Bool expr) throws StaticCheckException;
-            R visitId(Id expr) throws StaticCheckException;
-            R visitUnary(Unary expr) throws StaticCheckException;
-            R visitBinary(Binary expr) throws StaticCheckException;
-            R visitDot(Dot expr) throws StaticCheckException;
-            R visitCall(Call expr) throws StaticCheckException;
-            R visitNew(New expr) throws StaticCheckException;
-            R visitThis(This expr) throws StaticCheckException;
-            R visitNull(Null expr) throws StaticCheckException;
+        interface Visitor<R, E extends Exception> {
+            R visitStr(Str expr) throws E;
+            R visitInt(Int expr) throws E;
+            R visitBool(Bool expr) throws E;
+            R visitId(Id expr) throws E;
+            R visitUnary(Unary expr) throws E;
+            R visitBinary(Binary expr) throws E;
+            R visitDot(Dot expr) throws E;
+            R visitCall(Call expr) throws E;
+            R visitNew(New expr) throws E;
+            R visitThis(This expr) throws E;
+            R visitNull(Null expr) throws E;
         }
 
         static class Str extends Expr {
@@ -198,40 +222,44 @@ class Ast {
             Str(String value) { this.value = value; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitStr(this);
             }
         }
 
         static class Int extends Expr {
-            Integer value;
+            final int value;
 
-            Int(Integer value) { this.value = value; }
+            Int(int value) { this.value = value; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitInt(this);
             }
         }
 
         static class Bool extends Expr {
-            final Boolean value;
+            final boolean value;
 
-            Bool(Boolean value) { this.value = value; }
+            Bool(boolean value) { this.value = value; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitBool(this);
             }
         }
 
         static class Id extends Expr {
             final String id;
+            // Populated during StaticCheck: the depth of the scope that
+            // declares id, and its slot in that scope (see StaticCheck.Env)
+            int depth = -1;
+            int slot = -1;
 
             Id(String id) { this.id = id; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitId(this);
             }
         }
@@ -246,7 +274,7 @@ class Ast {
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitUnary(this);
             }
         }
@@ -263,7 +291,7 @@ class Ast {
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitBinary(this);
             }
         }
@@ -278,7 +306,7 @@ class Ast {
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitDot(this);
             }
         }
@@ -289,11 +317,11 @@ class Ast {
 
             Call(Expr callee, List<Expr> args) {
                 this.callee = callee;
-                this.args = args;
+                this.args = List.copyOf(args);
             }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitCall(this);
             }
         }
@@ -304,21 +332,21 @@ class Ast {
             New(String cname) { this.cname = cname; }
 
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitNew(this);
             }
         }
 
         static class This extends Expr {
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitThis(this);
             }
         }
 
         static class Null extends Expr {
             @Override
-            <R> R accept(Visitor<R> visitor) throws StaticCheckException {
+            <R, E extends Exception> R accept(Visitor<R, E> visitor) throws E {
                 return visitor.visitNull(this);
             }
         }
@@ -341,82 +369,54 @@ class Ast {
         }
     }
 
+    // Types are canonical: there is one instance of each primitive type below,
+    // and one of each class and function type per compilation, made by Types.
+    // Two types are equal exactly when they are the same instance.
     abstract static class Type {
-        final java.lang.String _class = this.getClass().getName();
-
-        public abstract boolean equals(Object o);
+        static final Int INT = new Int();
+        static final Bool BOOL = new Bool();
+        static final String STRING = new String();
+        static final Void VOID = new Void();
+        static final Null NULL = new Null();
 
         static class Int extends Type {
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Int;
-            }
+            private Int() {}
         }
 
         static class Bool extends Type {
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Bool;
-            }
+            private Bool() {}
         }
 
         static class String extends Type {
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof String;
-            }
+            private String() {}
         }
 
         static class Void extends Type {
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Void;
-            }
+            private Void() {}
         }
 
         static class Class extends Type {
             final java.lang.String name;
 
             Class(java.lang.String name) { this.name = name; }
-
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Class && name.equals(((Class)o).name);
-            }
         }
 
         static class Function extends Type {
             final List<Type> paramTypes;
             final Type returnType;
 
-            Function(Method method) {
-                var paramTypes = new ArrayList<Type>();
-                for (var var : method.params) {
-                    paramTypes.add(var.type);
-                }
-
+            Function(List<Type> paramTypes, Type returnType) {
                 this.paramTypes = paramTypes;
-                this.returnType = method.returnType;
-            }
-
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Function &&
-                    paramTypes.equals(((Function)o).paramTypes) &&
-                    returnType.equals(((Function)o).returnType);
+                this.returnType = returnType;
             }
         }
 
         static class Null extends Type {
-            @Override
-            public boolean equals(Object o) {
-                return o instanceof Null;
-            }
+            private Null() {}
         }
     }
 
     static class Var {
-        final String _class = this.getClass().getName();
         final Type type;
         final String id;
 
@@ -0,0 +1,161 @@
+package jelek;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import jelek.StaticCheck.StaticCheckException;
+
+// Compiles many files at once on a work-stealing pool:
+//
+//     [OPTIONS] --batch [-j JOBS] [-d OUTDIR] FILE...
+//
+// Each foo.j is written to foo.ir3 next to it, or under OUTDIR at the same
+// relative path, less any leading "..". Two files that would be written to
+// the same place are refused before anything is compiled, as is a malformed
+// -j or -d, with exit code 2. Sources are not echoed, and
+// diagnostics and --stats reports are printed in argument order once every
+// file is done, so the output doesn't depend on scheduling.
+class Batch {
+    static final String USAGE =
+        "Usage: [OPTIONS] --batch [-j JOBS] [-d OUTDIR] FILE...";
+    static final int MAX_JOBS = 32767; // The most a ForkJoinPool allows
+
+    static int run(String[] args, Options options) {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Path outDir = null;
+        var files = new ArrayList<Path>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-j":
+                if (i + 1 == args.length) {
+                    return usage("-j needs a number of jobs");
+                }
+                try {
+                    jobs = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e) {
+                    jobs = 0;
+                }
+                if (jobs < 1 || jobs > MAX_JOBS) {
+                    return usage("-j needs a number of jobs from 1 to " +
+                                 MAX_JOBS);
+                }
+                break;
+            case "-d":
+                if (i + 1 == args.length) {
+                    return usage("-d needs a directory");
+                }
+                outDir = Paths.get(args[++i]);
+                break;
+            default:
+                files.add(Paths.get(args[i]));
+            }
+        }
+
+        // By output, the file written to it. The same file named twice is
+        // compiled once.
+        var inputs = new HashMap<Path, Path>();
+        var tasks = new ArrayList<Callable<Result>>();
+        for (var file : files) {
+            var output = outputPath(file, outDir);
+            var key = output.toAbsolutePath().normalize();
+            var other = inputs.putIfAbsent(key, file);
+            if (other == null) {
+                tasks.add(() -> compile(file, output, options));
+            } else if (!other.toAbsolutePath().normalize().equals(
+                           file.toAbsolutePath().normalize())) {
+                return usage(other + " and " + file +
+                             " would both be written to " + output);
+            }
+        }
+
+        var pool = new ForkJoinPool(jobs);
+        int failed = 0;
+        try {
+            for (var future : pool.invokeAll(tasks)) {
+                var result = future.get();
+                if (result.stats != null) {
+                    System.err.println(result.file + ":");
+                    result.stats.print(System.err);
+                }
+                if (result.diagnostic != null) {
+                    System.err.println(result.diagnostic);
+                    failed++;
+                }
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            pool.shutdown();
+        }
+
+        return failed == 0 ? 0 : 1;
+    }
+
+    static int usage(String message) {
+        System.err.println(message);
+        System.err.println(USAGE);
+        return 2;
+    }
+
+    static class Result {
+        final Path file;
+        final Optimizer.Stats stats; // Or null
+        final String diagnostic; // Or null if the file compiled
+
+        Result(Path file, Optimizer.Stats stats, String diagnostic) {
+            this.file = file;
+            this.stats = stats;
+            this.diagnostic = diagnostic;
+        }
+    }
+
+    static Result compile(Path file, Path output, Options options) {
+        var buffer = new ByteArrayOutputStream();
+        try {
+            var stats = App.compile(
+                Source.map(file), options,
+                new PrintStream(buffer, false, StandardCharsets.UTF_8));
+            if (output.getParent() != null) {
+                Files.createDirectories(output.getParent());
+            }
+            Files.write(output, buffer.toByteArray());
+            return new Result(file, stats, null);
+        } catch (StaticCheckException e) {
+            return new Result(
+                file, null, file + ": StaticCheckException: " + e.getMessage());
+        } catch (Exception e) {
+            return new Result(file, null, file + ": " + e);
+        }
+    }
+
+    static Path outputPath(Path file, Path outDir) {
+        var name = file.getFileName().toString();
+        if (name.endsWith(".j")) {
+            name = name.substring(0, name.length() - 2);
+        }
+
+        var output = file.resolveSibling(name + ".ir3");
+        if (outDir == null) {
+            return output;
+        }
+        if (output.isAbsolute()) {
+            output = output.getRoot().relativize(output);
+        }
+        // Once normalized, a relative path can only go up at its start, and
+        // those parts would leave OUTDIR
+        output = output.normalize();
+        while (output.getName(0).toString().equals("..")) {
+            output = output.subpath(1, output.getNameCount());
+        }
+        return outDir.resolve(output);
+    }
+}
@@ -0,0 +1,262 @@
+package jelek;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+// Measures the compiler on the same input:
+//
+//     --bench [-n ROUNDS] [FILE...]
+//
+// Reports lexing throughput in tokens per second and parsing throughput in
+// MB of source per second, for each frontend. Then, for the hand and arena
+// frontends, the time and the bytes allocated per AST node by the parser,
+// StaticCheck, Ir3Gen and Ir3Printer, so that work done per node shows up.
+// Without files it runs on a generated program of about a megabyte. Every
+// measurement is preceded by as many untimed rounds to let the JIT settle.
+class Bench {
+    static void run(String[] args) throws Exception {
+        int rounds = 20;
+        var sources = new ArrayList<Source>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                rounds = Integer.parseInt(args[++i]);
+            } else {
+                sources.add(Source.map(Paths.get(args[i])));
+            }
+        }
+        if (sources.isEmpty()) {
+            sources.add(generate(1 << 20));
+        }
+
+        long bytes = 0;
+        for (var source : sources) {
+            bytes += source.bytes.remaining();
+        }
+        System.out.printf("%d files, %d bytes, %d rounds%n", sources.size(),
+                          bytes, rounds);
+
+        for (var frontend : Options.Frontend.values()) {
+            long tokens = 0;
+            for (int i = 0; i < rounds; i++) {
+                tokens = lex(sources, frontend);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                lex(sources, frontend);
+            }
+            double lexSeconds = (System.nanoTime() - start) / 1e9;
+
+            for (int i = 0; i < rounds; i++) {
+                parse(sources, frontend);
+            }
+            start = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                parse(sources, frontend);
+            }
+            double parseSeconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-5s  lex %,14.0f tokens/s  parse %8.2f MB/s%n",
+                              frontend.toString().toLowerCase(),
+                              tokens * rounds / lexSeconds,
+                              bytes * rounds / parseSeconds / 1e6);
+        }
+
+        passes(sources, Options.Frontend.HAND, rounds);
+        passes(sources, Options.Frontend.ARENA, rounds);
+    }
+
+    // Returns the number of tokens, not counting EOF
+    static long lex(ArrayList<Source> sources, Options.Frontend frontend)
+        throws Exception {
+        long tokens = 0;
+        for (var source : sources) {
+            var symbols = new Symbols();
+            if (frontend != Options.Frontend.CUP) {
+                for (var lexer = new Lexer(source, symbols);
+                     lexer.kind != Lexer.EOF; lexer.next()) {
+                    tokens++;
+                }
+            } else {
+                var scanner = new Scanner(source.reader(), symbols);
+                while (scanner.next_token().sym != sym.EOF) {
+                    tokens++;
+                }
+            }
+        }
+        return tokens;
+    }
+
+    static void parse(ArrayList<Source> sources, Options.Frontend frontend)
+        throws Exception {
+        for (var source : sources) {
+            App.parse(source, frontend, new Compilation());
+        }
+    }
+
+    static void passes(ArrayList<Source> sources, Options.Frontend frontend,
+                       int rounds) throws Exception {
+        var threads = (com.sun.management.ThreadMXBean)
+            ManagementFactory.getThreadMXBean();
+        var thread = Thread.currentThread().getId();
+        var out = new PrintStream(OutputStream.nullOutputStream());
+
+        // Parse, check, gen and print
+        var nanos = new long[4];
+        var allocated = new long[4];
+        long nodes = 0;
+        for (int i = 0; i < 2 * rounds; i++) {
+            boolean timed = i >= rounds;
+            for (var source : sources) {
+                var compilation = new Compilation();
+                long parseTime = System.nanoTime();
+                long parseBytes = threads.getThreadAllocatedBytes(thread);
+                var program = App.parse(source, frontend, compilation);
+                long time = System.nanoTime();
+                long bytes = threads.getThreadAllocatedBytes(thread);
+                if (timed) {
+                    nodes += count(program);
+                }
+
+                StaticCheck.run(program, compilation);
+                long checkTime = System.nanoTime();
+                long checkBytes = threads.getThreadAllocatedBytes(thread);
+                var ir3 = Ir3Gen.gen(program, compilation);
+                long genTime = System.nanoTime();
+                long genBytes = threads.getThreadAllocatedBytes(thread);
+                Ir3Printer.print(ir3, out);
+                long printTime = System.nanoTime();
+                long printBytes = threads.getThreadAllocatedBytes(thread);
+
+                if (timed) {
+                    nanos[0] += time - parseTime;
+                    nanos[1] += checkTime - time;
+                    nanos[2] += genTime - checkTime;
+                    nanos[3] += printTime - genTime;
+                    allocated[0] += bytes - parseBytes;
+                    allocated[1] += checkBytes - bytes;
+                    allocated[2] += genBytes - checkBytes;
+                    allocated[3] += printBytes - genBytes;
+                }
+            }
+        }
+
+        var names = new String[] {"parse", "check", "gen", "print"};
+        System.out.println(frontend.toString().toLowerCase());
+        for (int i = 0; i < names.length; i++) {
+            System.out.printf("  %-5s  %8.1f ns/node  %8.1f B/node%n", names[i],
+                              (double)nanos[i] / nodes,
+                              (double)allocated[i] / nodes);
+        }
+    }
+
+    // Counts classes, methods, vars, statements and expressions
+    static long count(Ast.Program program) {
+        long nodes = program.arena != null ? program.arena.size : 0;
+        for (var class_ : program.classes) {
+            nodes += 1 + class_.vars.size();
+            for (var method : class_.methods) {
+                nodes += 1 + method.params.size() + method.vars.size() +
+                         count(method.stmts);
+            }
+        }
+        return nodes;
+    }
+
+    static long count(List<Ast.Stmt> stmts) {
+        long nodes = 0;
+        for (var stmt : stmts) {
+            nodes++;
+            if (stmt instanceof Ast.Stmt.If) {
+                var if_ = (Ast.Stmt.If)stmt;
+                nodes += count(if_.cond) + count(if_.thenStmts) +
+                         count(if_.elseStmts);
+            } else if (stmt instanceof Ast.Stmt.While) {
+                var while_ = (Ast.Stmt.While)stmt;
+                nodes += count(while_.cond) + count(while_.stmts);
+            } else if (stmt instanceof Ast.Stmt.Println) {
+                nodes += count(((Ast.Stmt.Println)stmt).expr);
+            } else if (stmt instanceof Ast.Stmt.Assign) {
+                nodes += count(((Ast.Stmt.Assign)stmt).rhs);
+            } else if (stmt instanceof Ast.Stmt.FieldAssign) {
+                var assign = (Ast.Stmt.FieldAssign)stmt;
+                nodes += count(assign.lhsExpr) + count(assign.rhs);
+            } else if (stmt instanceof Ast.Stmt.Call) {
+                var call = (Ast.Stmt.Call)stmt;
+                nodes += count(call.callee);
+                for (var arg : call.args) {
+                    nodes += count(arg);
+                }
+            } else if (stmt instanceof Ast.Stmt.Return) {
+                nodes += count(((Ast.Stmt.Return)stmt).expr);
+            }
+        }
+        return nodes;
+    }
+
+    static long count(Ast.Expr expr) {
+        if (expr instanceof Ast.Expr.Unary) {
+            return 1 + count(((Ast.Expr.Unary)expr).atom);
+        } else if (expr instanceof Ast.Expr.Binary) {
+            var binary = (Ast.Expr.Binary)expr;
+            return 1 + count(binary.e1) + count(binary.e2);
+        } else if (expr instanceof Ast.Expr.Dot) {
+            return 1 + count(((Ast.Expr.Dot)expr).atom);
+        } else if (expr instanceof Ast.Expr.Call) {
+            var call = (Ast.Expr.Call)expr;
+            long nodes = 1 + count(call.callee);
+            for (var arg : call.args) {
+                nodes += count(arg);
+            }
+            return nodes;
+        } else {
+            return expr == null ? 0 : 1;
+        }
+    }
+
+    // A program of at least the given size that uses most of the grammar
+    // and passes StaticCheck
+    static Source generate(int size) {
+        var sb = new StringBuilder();
+        sb.append("class Main {\n")
+            .append("  Void main(Int n) {\n")
+            .append("    C0 c;\n")
+            .append("    c = new C0();\n")
+            .append("    println(c.run(n, 0));\n")
+            .append("  }\n")
+            .append("}\n");
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("\nclass C").append(i).append(" {\n")
+                .append("  Int total;\n")
+                .append("  Bool done;\n")
+                .append("  C0 next;\n")
+                .append("\n")
+                .append("  Int run(Int n, Int acc) {\n")
+                .append("    Int i;\n")
+                .append("    String s;\n")
+                .append("    i = 0;\n")
+                .append("    s = \"iteration\\n\";\n")
+                .append("    /* Sum the series */\n")
+                .append("    while (i < n && !done) {\n")
+                .append("      acc = acc + i * 2 - (n / 3);\n")
+                .append("      i = i + 1;\n")
+                .append("      done = acc > 10000 || i == n;\n")
+                .append("    }\n")
+                .append("    if (n > 0) {\n")
+                .append("      this.total = next.run(n - 1, -acc);\n")
+                .append("    } else {\n")
+                .append("      println(s); // Reached the end\n")
+                .append("    }\n")
+                .append("    return total + acc;\n")
+                .append("  }\n")
+                .append("}\n");
+        }
+        return new Source("generated", ByteBuffer.wrap(sb.toString().getBytes(
+                                           StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,338 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+// Control-flow graph of one Ir3.Method. A block starts at a Label or after
+// a Goto, If or Return, and ends at the next one. The statements are shared
+// with the method, so the graph can be turned back into a statement list.
+//
+// Along with the edges, build computes the dominator tree, with the
+// iterative algorithm of Cooper, Harvey and Kennedy over reverse postorder,
+// and the natural loops of the back edges, nested by containment.
+// Unreachable blocks are kept in blocks, but have no place in either.
+class Cfg {
+    final Ir3.Method method;
+    // In statement order. The first is the entry.
+    final ArrayList<Block> blocks = new ArrayList<>();
+    // Reachable blocks in reverse postorder
+    final ArrayList<Block> rpo = new ArrayList<>();
+    // Outermost loops, in reverse postorder of their headers
+    final ArrayList<Loop> loops = new ArrayList<>();
+
+    static class Block {
+        final int id; // Index in blocks
+        final ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        // For an If, the branch target comes before the fallthrough. Edges
+        // are not repeated when both go to the same block.
+        final ArrayList<Block> succs = new ArrayList<>();
+        final ArrayList<Block> preds = new ArrayList<>();
+
+        int order = -1; // Index in rpo, or -1 if unreachable
+        Block idom; // Null for the entry and unreachable blocks
+        final ArrayList<Block> dominated = new ArrayList<>(); // Children
+        // Dominator tree interval, so dominance is two compares
+        int domPre = -1;
+        int domPost = -1;
+        // Blocks this one doesn't strictly dominate, but dominates a
+        // predecessor of
+        final ArrayList<Block> frontier = new ArrayList<>();
+        Loop loop; // Innermost, if any
+
+        Block(int id) { this.id = id; }
+
+        boolean reachable() { return order >= 0; }
+
+        // Reflexive, and false if either block is unreachable
+        boolean dominates(Block other) {
+            return reachable() && other.reachable() &&
+                domPre <= other.domPre && other.domPost <= domPost;
+        }
+
+        Ir3.Stmt last() {
+            return stmts.isEmpty() ? null : stmts.get(stmts.size() - 1);
+        }
+    }
+
+    static class Loop {
+        final Block header;
+        final BitSet blocks = new BitSet(); // By block id, header included
+        Loop parent;
+        final ArrayList<Loop> children = new ArrayList<>();
+        int depth = 1; // Outermost loops are at depth 1
+
+        Loop(Block header) { this.header = header; }
+
+        boolean contains(Block block) { return blocks.get(block.id); }
+    }
+
+    Cfg(Ir3.Method method) { this.method = method; }
+
+    Block entry() { return blocks.get(0); }
+
+    static Cfg build(Ir3.Method method) {
+        var cfg = new Cfg(method);
+        cfg.split();
+        cfg.link();
+        cfg.order();
+        cfg.dominators();
+        cfg.frontiers();
+        cfg.loops();
+        return cfg;
+    }
+
+    // The statements of every block, in order
+    List<Ir3.Stmt> stmts() {
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (var block : blocks) {
+            stmts.addAll(block.stmts);
+        }
+        return stmts;
+    }
+
+    void split() {
+        // Nothing can stand for the way in from the caller as an edge, so
+        // the entry can't be a branch target. A method that starts with a
+        // label gets an empty block first.
+        if (!method.stmts.isEmpty() &&
+            method.stmts.get(0) instanceof Ir3.Stmt.Label) {
+            blocks.add(new Block(0));
+        }
+        Block current = null;
+        for (var stmt : method.stmts) {
+            if (current == null ||
+                (stmt instanceof Ir3.Stmt.Label && !current.stmts.isEmpty())) {
+                current = new Block(blocks.size());
+                blocks.add(current);
+            }
+            current.stmts.add(stmt);
+            if (endsBlock(stmt)) {
+                current = null;
+            }
+        }
+        if (blocks.isEmpty()) {
+            blocks.add(new Block(0));
+        }
+    }
+
+    static boolean endsBlock(Ir3.Stmt stmt) {
+        return stmt instanceof Ir3.Stmt.Goto || stmt instanceof Ir3.Stmt.If ||
+            stmt instanceof Ir3.Stmt.Return;
+    }
+
+    void link() {
+        // By label. A block can have several leading labels.
+        int labels = 0;
+        for (var stmt : method.stmts) {
+            if (stmt instanceof Ir3.Stmt.Label) {
+                labels = Math.max(labels, ((Ir3.Stmt.Label)stmt).label + 1);
+            }
+        }
+        var targets = new Block[labels];
+        for (var block : blocks) {
+            for (var stmt : block.stmts) {
+                if (!(stmt instanceof Ir3.Stmt.Label)) {
+                    break;
+                }
+                targets[((Ir3.Stmt.Label)stmt).label] = block;
+            }
+        }
+
+        for (var block : blocks) {
+            var last = block.last();
+            var next = block.id + 1 < blocks.size() ? blocks.get(block.id + 1)
+                                                    : null;
+            if (last instanceof Ir3.Stmt.Goto) {
+                edge(block, targets[((Ir3.Stmt.Goto)last).label]);
+            } else if (last instanceof Ir3.Stmt.If) {
+                edge(block, targets[((Ir3.Stmt.If)last).label]);
+                edge(block, next);
+            } else if (!(last instanceof Ir3.Stmt.Return)) {
+                edge(block, next);
+            }
+        }
+    }
+
+    static void edge(Block from, Block to) {
+        if (to != null && !from.succs.contains(to)) {
+            from.succs.add(to);
+            to.preds.add(from);
+        }
+    }
+
+    // Depth-first from the entry, without recursion, since a method can be
+    // many thousands of blocks long
+    void order() {
+        var postorder = new ArrayList<Block>();
+        var visited = new BitSet();
+        var stack = new ArrayDeque<Block>();
+        var next = new int[blocks.size()]; // Next successor to visit
+        stack.push(entry());
+        visited.set(0);
+        while (!stack.isEmpty()) {
+            var block = stack.peek();
+            if (next[block.id] < block.succs.size()) {
+                var succ = block.succs.get(next[block.id]++);
+                if (!visited.get(succ.id)) {
+                    visited.set(succ.id);
+                    stack.push(succ);
+                }
+            } else {
+                stack.pop();
+                postorder.add(block);
+            }
+        }
+
+        for (int i = postorder.size() - 1; i >= 0; i--) {
+            var block = postorder.get(i);
+            block.order = rpo.size();
+            rpo.add(block);
+        }
+    }
+
+    void dominators() {
+        var entry = entry();
+        entry.idom = entry;
+        for (boolean changed = true; changed;) {
+            changed = false;
+            for (var block : rpo) {
+                if (block == entry) {
+                    continue;
+                }
+                Block idom = null;
+                for (var pred : block.preds) {
+                    if (pred.idom != null) {
+                        idom = idom == null ? pred : intersect(pred, idom);
+                    }
+                }
+                if (idom != block.idom) {
+                    block.idom = idom;
+                    changed = true;
+                }
+            }
+        }
+        entry.idom = null;
+
+        for (var block : rpo) {
+            if (block.idom != null) {
+                block.idom.dominated.add(block);
+            }
+        }
+
+        // Number the tree
+        int counter = 0;
+        var stack = new ArrayDeque<Block>();
+        var next = new int[blocks.size()];
+        stack.push(entry);
+        entry.domPre = counter++;
+        while (!stack.isEmpty()) {
+            var block = stack.peek();
+            if (next[block.id] < block.dominated.size()) {
+                var child = block.dominated.get(next[block.id]++);
+                child.domPre = counter++;
+                stack.push(child);
+            } else {
+                stack.pop();
+                block.domPost = counter++;
+            }
+        }
+    }
+
+    // Walks up from each predecessor of a join to the join's idom, as in
+    // Cooper, Harvey and Kennedy
+    void frontiers() {
+        for (var block : rpo) {
+            int preds = 0;
+            for (var pred : block.preds) {
+                if (pred.reachable()) {
+                    preds++;
+                }
+            }
+            if (preds < 2) {
+                continue;
+            }
+            for (var pred : block.preds) {
+                for (var runner = pred; runner != null &&
+                                        runner.reachable() &&
+                                        runner != block.idom;
+                     runner = runner.idom) {
+                    if (runner.frontier.isEmpty() ||
+                        runner.frontier.get(runner.frontier.size() - 1) !=
+                            block) {
+                        runner.frontier.add(block);
+                    }
+                }
+            }
+        }
+    }
+
+    static Block intersect(Block b1, Block b2) {
+        while (b1 != b2) {
+            while (b1.order > b2.order) {
+                b1 = b1.idom;
+            }
+            while (b2.order > b1.order) {
+                b2 = b2.idom;
+            }
+        }
+        return b1;
+    }
+
+    // A back edge goes to a block that dominates its source. The loop of a
+    // header is everything that reaches one of its back edges without going
+    // through the header.
+    void loops() {
+        var all = new ArrayList<Loop>();
+        for (var header : rpo) {
+            Loop loop = null;
+            var work = new ArrayDeque<Block>();
+            for (var pred : header.preds) {
+                if (header.dominates(pred)) {
+                    if (loop == null) {
+                        loop = new Loop(header);
+                        loop.blocks.set(header.id);
+                    }
+                    if (!loop.blocks.get(pred.id)) {
+                        loop.blocks.set(pred.id);
+                        work.push(pred);
+                    }
+                }
+            }
+            while (!work.isEmpty()) {
+                for (var pred : work.pop().preds) {
+                    if (pred.reachable() && !loop.blocks.get(pred.id)) {
+                        loop.blocks.set(pred.id);
+                        work.push(pred);
+                    }
+                }
+            }
+            if (loop != null) {
+                all.add(loop);
+            }
+        }
+
+        // Headers come in reverse postorder, so an enclosing loop is always
+        // found before the loops inside it. The innermost is the last one.
+        for (int i = 0; i < all.size(); i++) {
+            var loop = all.get(i);
+            for (int j = i - 1; j >= 0; j--) {
+                if (all.get(j).contains(loop.header)) {
+                    loop.parent = all.get(j);
+                    break;
+                }
+            }
+            if (loop.parent == null) {
+                loops.add(loop);
+            } else {
+                loop.parent.children.add(loop);
+                loop.depth = loop.parent.depth + 1;
+            }
+            for (int id = loop.blocks.nextSetBit(0); id >= 0;
+                 id = loop.blocks.nextSetBit(id + 1)) {
+                blocks.get(id).loop = loop;
+            }
+        }
+    }
+}
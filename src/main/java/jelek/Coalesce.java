@@ -0,0 +1,243 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// Temp coalescing over a method out of SSA form. Two variables interfere if
+// one is assigned where the other is live, other than by a copy of it.
+//
+// First a temp copied to or from another variable it doesn't interfere with
+// is merged into it, so the copy assigns a variable to itself and goes.
+// Then the temps left are given names again, _t0, _t1, ... in order of
+// appearance, with temps that don't interfere sharing a name where their
+// types agree. Variables nothing refers to any more are no longer declared.
+class Coalesce {
+    // Returns the number of statements removed
+    static int run(Ir3.Method method) {
+        var cfg = Cfg.build(method);
+        var vars = new Dataflow.Vars(method);
+        var types = Ssa.types(method, vars);
+        var graph = interference(cfg, vars);
+
+        // Merge along copies. A class of merged variables is named for its
+        // one variable that isn't a temp, if it has one.
+        var rep = new int[vars.size()];
+        for (int var = 0; var < vars.size(); var++) {
+            rep[var] = var;
+        }
+        for (var stmt : method.stmts) {
+            if (!(stmt instanceof Ir3.Stmt.Assign)) {
+                continue;
+            }
+            var assign = (Ir3.Stmt.Assign)stmt;
+            int from = CopyProp.var(assign.rhs, vars);
+            if (from < 0) {
+                continue;
+            }
+            int a = find(rep, vars.id(assign.lhs));
+            int b = find(rep, from);
+            if (a == b || types[a] != types[b] || graph.get(a).contains(b)) {
+                continue;
+            }
+            boolean aTemp = isTemp(vars.names.get(a));
+            boolean bTemp = isTemp(vars.names.get(b));
+            if (!aTemp && !bTemp) {
+                continue;
+            } else if (aTemp && (!bTemp || b < a)) {
+                int swap = a;
+                a = b;
+                b = swap;
+            }
+            // b goes into a
+            rep[b] = a;
+            for (int other : graph.get(b)) {
+                graph.get(other).remove(b);
+                graph.get(other).add(a);
+                graph.get(a).add(other);
+            }
+            graph.set(b, null);
+        }
+
+        // Name the temps left, in order of appearance
+        var colors = new int[vars.size()]; // By class, 1 + its color
+        var colorTypes = new ArrayList<Ast.Type>();
+        var taken = new HashSet<Integer>();
+        var names = new String[vars.size()];
+        for (var stmt : method.stmts) {
+            forVars(stmt, vars, var -> {
+                int class_ = find(rep, var);
+                if (names[var] != null) {
+                    return;
+                } else if (!isTemp(vars.names.get(class_))) {
+                    names[var] = vars.names.get(class_);
+                    return;
+                }
+                if (colors[class_] == 0) {
+                    taken.clear();
+                    for (int other : graph.get(class_)) {
+                        taken.add(colors[other] - 1);
+                    }
+                    int color = 0;
+                    while (color < colorTypes.size() &&
+                           (taken.contains(color) ||
+                            colorTypes.get(color) != types[class_])) {
+                        color++;
+                    }
+                    if (color == colorTypes.size()) {
+                        colorTypes.add(types[class_]);
+                    }
+                    colors[class_] = color + 1;
+                }
+                names[var] = "_t" + (colors[class_] - 1);
+            });
+        }
+
+        // Rename, dropping the copies this makes x = x
+        int removed = 0;
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (var stmt : method.stmts) {
+            Ir3.mapUses(stmt, id -> {
+                int var = vars.id(id.id);
+                return var < 0 || names[var].equals(id.id)
+                    ? id
+                    : Ssa.id(names[var], id.type);
+            });
+            if (stmt instanceof Ir3.Stmt.Assign) {
+                var assign = (Ir3.Stmt.Assign)stmt;
+                assign.lhs = names[vars.id(assign.lhs)];
+                if (assign.rhs instanceof Ast.Expr.Id &&
+                    ((Ast.Expr.Id)assign.rhs).id.equals(assign.lhs)) {
+                    removed++;
+                    continue;
+                }
+            } else if (stmt instanceof Ir3.Stmt.Readln) {
+                var readln = (Ir3.Stmt.Readln)stmt;
+                readln.id = names[vars.id(readln.id)];
+            }
+            stmts.add(stmt);
+        }
+        method.stmts = stmts;
+
+        // Declare what is still referred to, temps last
+        var declared = new ArrayList<Ast.Var>();
+        var seen = new HashSet<String>();
+        for (var param : method.params) {
+            seen.add(param.id);
+        }
+        for (int var = 0; var < vars.size(); var++) {
+            var name = names[var];
+            if (name != null && !isTemp(name) && seen.add(name)) {
+                declared.add(new Ast.Var(types[var], name));
+            }
+        }
+        for (int color = 0; color < colorTypes.size(); color++) {
+            declared.add(new Ast.Var(colorTypes.get(color), "_t" + color));
+        }
+        method.vars = declared;
+        method.tempCounter = colorTypes.size();
+        return removed;
+    }
+
+    // Ir3Gen's temps. Ids in the source can't start with an underscore.
+    static boolean isTemp(String name) { return name.startsWith("_t"); }
+
+    static int find(int[] rep, int var) {
+        while (rep[var] != var) {
+            rep[var] = rep[rep[var]];
+            var = rep[var];
+        }
+        return var;
+    }
+
+    // Calls action with every variable a statement assigns or reads
+    static void forVars(Ir3.Stmt stmt, Dataflow.Vars vars,
+                        java.util.function.IntConsumer action) {
+        Dataflow.uses(stmt, vars, action);
+        int def = Dataflow.def(stmt, vars);
+        if (def >= 0) {
+            action.accept(def);
+        }
+    }
+
+    // By var, the vars it interferes with. Liveness across blocks is only
+    // solved for the variables some block reads before assigning, which
+    // leaves out nearly all temps. The rest are followed within each block.
+    static ArrayList<HashSet<Integer>> interference(Cfg cfg,
+                                                    Dataflow.Vars vars) {
+        var graph = new ArrayList<HashSet<Integer>>();
+        for (int var = 0; var < vars.size(); var++) {
+            graph.add(new HashSet<>());
+        }
+        var globals = Ssa.globals(cfg, vars);
+        var liveness = new Dataflow.Liveness(cfg, globals);
+        var globalVars = new int[globals.size()];
+        for (int global = 0; global < globals.size(); global++) {
+            globalVars[global] = vars.id(globals.names.get(global));
+        }
+
+        var live = new LiveSet(vars.size());
+        for (var block : cfg.rpo) {
+            live.clear();
+            var out = liveness.liveOut(block);
+            for (int global = out.nextSetBit(0); global >= 0;
+                 global = out.nextSetBit(global + 1)) {
+                live.add(globalVars[global]);
+            }
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                var stmt = block.stmts.get(i);
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    int copied = stmt instanceof Ir3.Stmt.Assign
+                                     ? CopyProp.var(
+                                           ((Ir3.Stmt.Assign)stmt).rhs, vars)
+                                     : -1;
+                    for (int j = 0; j < live.size; j++) {
+                        int var = live.dense[j];
+                        if (var != def && var != copied) {
+                            graph.get(def).add(var);
+                            graph.get(var).add(def);
+                        }
+                    }
+                    live.remove(def);
+                }
+                Dataflow.uses(stmt, vars, live::add);
+            }
+        }
+        return graph;
+    }
+
+    // A set of small ints that clears, adds, removes and iterates in time
+    // proportional to its size rather than its range (Briggs and Torczon)
+    static class LiveSet {
+        final int[] dense;
+        final int[] sparse;
+        int size = 0;
+
+        LiveSet(int range) {
+            dense = new int[range];
+            sparse = new int[range];
+        }
+
+        boolean contains(int i) {
+            int at = sparse[i];
+            return at < size && dense[at] == i;
+        }
+
+        void add(int i) {
+            if (!contains(i)) {
+                dense[size] = i;
+                sparse[i] = size++;
+            }
+        }
+
+        void remove(int i) {
+            if (contains(i)) {
+                int last = dense[--size];
+                dense[sparse[i]] = last;
+                sparse[last] = sparse[i];
+            }
+        }
+
+        void clear() { size = 0; }
+    }
+}
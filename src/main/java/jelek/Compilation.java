@@ -0,0 +1,22 @@
+package jelek;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+
+// Everything a single compilation mutates. StaticCheck and Ir3Gen keep no
+// state of their own, so any number of compilations can run side by side.
+class Compilation {
+    // Populated by the scanner
+    final Symbols symbols = new Symbols();
+
+    // Populated by the parser and StaticCheck.init
+    final Types types = new Types();
+
+    // Populated by StaticCheck.init
+    final IdentityHashMap<String, StaticCheck.ClassDesc> classDescs =
+        new IdentityHashMap<>();
+
+    // Populated by Ir3Gen.gen, in source order
+    final LinkedHashMap<String, Ir3.Data> datas = new LinkedHashMap<>();
+    final LinkedHashMap<String, Ir3.Method> methods = new LinkedHashMap<>();
+}
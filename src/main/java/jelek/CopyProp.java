@@ -0,0 +1,119 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Copy propagation over a method in SSA form. Every read of a variable
+// assigned a copy of another reads the other instead, and the copy goes.
+// A phi whose args are all one variable, or the phi itself, is a copy too.
+//
+// In SSA form this is always safe: the copied variable is assigned once,
+// before the copy, so it still holds the same value wherever the copy is
+// read.
+class CopyProp {
+    // Returns the number of statements removed
+    static int run(Cfg cfg) {
+        var vars = new Dataflow.Vars(cfg.method);
+        var to = new int[vars.size()]; // By var, what it copies, or -1
+        Arrays.fill(to, -1);
+
+        // Only in reachable blocks, which alone are in SSA form
+        var phis = new ArrayList<Ir3.Stmt.Phi>();
+        for (var block : cfg.rpo) {
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.Phi) {
+                    phis.add((Ir3.Stmt.Phi)stmt);
+                } else if (stmt instanceof Ir3.Stmt.Assign) {
+                    var assign = (Ir3.Stmt.Assign)stmt;
+                    int from = assign.rhs instanceof Ast.Expr.This
+                                   ? vars.id("this")
+                                   : var(assign.rhs, vars);
+                    int var = vars.id(assign.lhs);
+                    if (from >= 0 && from != var) {
+                        to[var] = from;
+                    }
+                }
+            }
+        }
+
+        // A phi can become a copy once its args are resolved
+        for (boolean changed = true; changed;) {
+            changed = false;
+            for (var phi : phis) {
+                int var = vars.id(phi.lhs);
+                if (to[var] >= 0) {
+                    continue;
+                }
+                int only = -1;
+                for (var arg : phi.args) {
+                    int from = var(arg, vars);
+                    from = from < 0 ? -2 : find(to, from);
+                    if (from == var) {
+                        continue;
+                    } else if (only == -1) {
+                        only = from;
+                    } else if (only != from) {
+                        only = -2;
+                    }
+                }
+                if (only >= 0) {
+                    to[var] = only;
+                    changed = true;
+                }
+            }
+        }
+
+        int removed = 0;
+        for (var block : cfg.blocks) {
+            var stmts = new ArrayList<Ir3.Stmt>();
+            for (var stmt : block.stmts) {
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0 && to[def] >= 0 && block.reachable()) {
+                    if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                        removed++;
+                    }
+                    continue;
+                }
+                if (stmt instanceof Ir3.Stmt.Phi) {
+                    var args = ((Ir3.Stmt.Phi)stmt).args;
+                    for (int i = 0; i < args.size(); i++) {
+                        args.set(i, Ir3.mapUses(args.get(i),
+                                                id -> replace(id, to, vars)));
+                    }
+                } else {
+                    Ir3.mapUses(stmt, id -> replace(id, to, vars));
+                }
+                stmts.add(stmt);
+            }
+            block.stmts.clear();
+            block.stmts.addAll(stmts);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return removed;
+    }
+
+    // The variable an expression is, or -1
+    static int var(Ast.Expr expr, Dataflow.Vars vars) {
+        return expr instanceof Ast.Expr.Id ? vars.id(((Ast.Expr.Id)expr).id)
+                                           : -1;
+    }
+
+    // Follows copies of copies to the original
+    static int find(int[] to, int var) {
+        while (to[var] >= 0) {
+            if (to[to[var]] >= 0) {
+                to[var] = to[to[var]];
+            }
+            var = to[var];
+        }
+        return var;
+    }
+
+    static Ast.Expr replace(Ast.Expr.Id id, int[] to, Dataflow.Vars vars) {
+        int var = vars.id(id.id);
+        if (var < 0 || to[var] < 0) {
+            return id;
+        }
+        return Ssa.id(vars.names.get(find(to, var)), id.type);
+    }
+}
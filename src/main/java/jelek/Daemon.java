@@ -0,0 +1,150 @@
+package jelek;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import jelek.StaticCheck.StaticCheckException;
+
+// Keeps a warm JVM around to serve compile requests on a loopback port:
+//
+//     [OPTIONS] --daemon [PORT]
+//
+// A client sends JLite source and shuts down its side of the connection.
+// The daemon replies with the IR3 or the diagnostic, then closes it, e.g.
+//
+//     nc -N localhost 4212 < src/test/pass/ir3.j
+//
+// A request larger than MAX_REQUEST bytes is refused, and so is one that
+// takes longer than TIMEOUT milliseconds to arrive in full, however slowly
+// it trickles in. Requests are compiled on one thread per processor, with at
+// most QUEUE more waiting. Past that, new connections are turned away at
+// once, so the accepting thread never blocks on a client.
+class Daemon {
+    static final int DEFAULT_PORT = 4212;
+    static final int MAX_REQUEST = 16 << 20;
+    static final int TIMEOUT = 10_000;
+    static final int QUEUE = 64;
+    static final byte[] WARM_UP =
+        "class Main { Void main() { return; } }".getBytes();
+
+    static void run(String[] args, Options options) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+
+        // Pay for class initialization of the parser and scanner tables up
+        // front instead of on the first request
+        try {
+            App.compile(new Source("warm-up", ByteBuffer.wrap(WARM_UP)),
+                        options,
+                        new PrintStream(OutputStream.nullOutputStream()));
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        var executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE));
+        try (var server =
+                 new ServerSocket(port, 0, InetAddress.getLoopbackAddress())) {
+            System.err.println("Listening on " +
+                               server.getLocalSocketAddress());
+            while (true) {
+                var socket = server.accept();
+                try {
+                    executor.execute(() -> handle(socket, options));
+                } catch (RejectedExecutionException e) {
+                    refuse(socket);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static void handle(Socket socket, Options options) {
+        try (socket) {
+            var out = new PrintStream(
+                new BufferedOutputStream(socket.getOutputStream()), false,
+                StandardCharsets.UTF_8);
+            // Read the whole request first: the scanner closes its reader at
+            // end of input, which would close the socket with it
+            byte[] request;
+            try {
+                request = read(socket);
+            } catch (SocketTimeoutException e) {
+                out.println("Request took longer than " + TIMEOUT + " ms");
+                out.flush();
+                return;
+            }
+            if (request.length > MAX_REQUEST) {
+                out.println("Request larger than " + MAX_REQUEST + " bytes");
+                out.flush();
+                return;
+            }
+            var source = new Source(socket.getRemoteSocketAddress().toString(),
+                                    ByteBuffer.wrap(request));
+            try {
+                var stats = App.compile(source, options, out);
+                if (stats != null) {
+                    stats.print(out);
+                }
+            } catch (StaticCheckException e) {
+                out.println("StaticCheckException: " + e.getMessage());
+            } catch (Exception e) {
+                out.println(e);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+
+    // Reads until the client shuts down its side, or past MAX_REQUEST
+    // bytes. The timeout of each read is what is left of TIMEOUT, so the
+    // deadline holds across them.
+    static byte[] read(Socket socket) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT * 1_000_000L;
+        var in = socket.getInputStream();
+        var buffer = new byte[8192];
+        int size = 0;
+        while (size <= MAX_REQUEST) {
+            long left = (deadline - System.nanoTime()) / 1_000_000;
+            if (left <= 0) {
+                throw new SocketTimeoutException();
+            }
+            socket.setSoTimeout((int)left);
+            if (size == buffer.length) {
+                buffer = Arrays.copyOf(
+                    buffer, Math.min(size * 2, MAX_REQUEST + 1));
+            }
+            int n = in.read(buffer, size, buffer.length - size);
+            if (n < 0) {
+                break;
+            }
+            size += n;
+        }
+        return Arrays.copyOf(buffer, size);
+    }
+
+    // Turns a client away when every thread is busy and the queue is full
+    static void refuse(Socket socket) {
+        try (socket) {
+            socket.getOutputStream().write(
+                "Too many requests\n".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+    }
+}
@@ -0,0 +1,469 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+// Iterative bit-vector dataflow over a Cfg. A problem gives every block a
+// gen and a kill set over some universe of facts, and solve finds the facts
+// at the start (in) and end (out) of every reachable block, with
+//
+//     forward:  in = meet of preds' out,  out = gen | (in - kill)
+//     backward: out = meet of succs' in,  in = gen | (out - kill)
+//
+// where meet is union or intersection. Blocks are visited in reverse
+// postorder (forward) or postorder (backward), and then only again when one
+// of their neighbours changed, so on the structured code Ir3Gen emits this
+// settles in a couple of passes, each linear in the size of the method.
+class Dataflow {
+    enum Direction { FORWARD, BACKWARD }
+
+    enum Meet { UNION, INTERSECTION }
+
+    final Cfg cfg;
+    final Direction direction;
+    final Meet meet;
+    final int size;
+    // By block id
+    final BitSet[] gen;
+    final BitSet[] kill;
+    final BitSet[] in;
+    final BitSet[] out;
+    // Facts on entry to the method (forward) or on exit (backward)
+    final BitSet boundary = new BitSet();
+
+    Dataflow(Cfg cfg, Direction direction, Meet meet, int size) {
+        this.cfg = cfg;
+        this.direction = direction;
+        this.meet = meet;
+        this.size = size;
+        int blocks = cfg.blocks.size();
+        gen = new BitSet[blocks];
+        kill = new BitSet[blocks];
+        in = new BitSet[blocks];
+        out = new BitSet[blocks];
+        for (int i = 0; i < blocks; i++) {
+            gen[i] = new BitSet();
+            kill[i] = new BitSet();
+            in[i] = new BitSet();
+            out[i] = new BitSet();
+        }
+    }
+
+    void solve() {
+        boolean forward = direction == Direction.FORWARD;
+        var order = new ArrayList<>(cfg.rpo);
+        if (!forward) {
+            Collections.reverse(order);
+        }
+        // By block id, the position in order
+        var position = new int[cfg.blocks.size()];
+        for (int i = 0; i < order.size(); i++) {
+            position[order.get(i).id] = i;
+        }
+
+        // Under intersection, everything starts out true and is whittled
+        // down
+        if (meet == Meet.INTERSECTION) {
+            for (var block : order) {
+                (forward ? out : in)[block.id].set(0, size);
+            }
+        }
+
+        // Sweep over the blocks waiting to be visited, in order. Changes
+        // along forward edges are picked up in the same sweep, and only
+        // those along back edges wait for the next one.
+        var pending = new BitSet();
+        pending.set(0, order.size());
+        while (!pending.isEmpty()) {
+            for (int i = pending.nextSetBit(0); i >= 0;
+                 i = pending.nextSetBit(i + 1)) {
+                pending.clear(i);
+                var block = order.get(i);
+                if (visit(block, forward)) {
+                    for (var next : forward ? block.succs : block.preds) {
+                        if (next.reachable()) {
+                            pending.set(position[next.id]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Recomputes the facts of a block, returning whether they changed
+    boolean visit(Cfg.Block block, boolean forward) {
+        var from = forward ? out : in;
+        var meetSet = forward ? in[block.id] : out[block.id];
+        boolean first = true;
+        meetSet.clear();
+        for (var edge : forward ? block.preds : block.succs) {
+            if (!edge.reachable()) {
+                continue;
+            }
+            if (first || meet == Meet.UNION) {
+                meetSet.or(from[edge.id]);
+            } else {
+                meetSet.and(from[edge.id]);
+            }
+            first = false;
+        }
+        if (forward ? block == cfg.entry() : block.succs.isEmpty()) {
+            meetSet.or(boundary);
+        }
+
+        var result = (BitSet)meetSet.clone();
+        result.andNot(kill[block.id]);
+        result.or(gen[block.id]);
+        var old = forward ? out[block.id] : in[block.id];
+        if (result.equals(old)) {
+            return false;
+        }
+        (forward ? out : in)[block.id] = result;
+        return true;
+    }
+
+    // The params and vars of a method, temps included, numbered densely in
+    // order of declaration. A pass that only cares about some of them can
+    // add just those to an empty one; the rest are then not variables.
+    static class Vars {
+        final ArrayList<String> names = new ArrayList<>();
+        final HashMap<String, Integer> ids = new HashMap<>();
+
+        Vars() {}
+
+        Vars(Ir3.Method method) {
+            for (var var : method.params) {
+                add(var.id);
+            }
+            for (var var : method.vars) {
+                add(var.id);
+            }
+        }
+
+        void add(String name) {
+            ids.put(name, names.size());
+            names.add(name);
+        }
+
+        int size() { return names.size(); }
+
+        // -1 for names that aren't variables, like those of methods
+        int id(String name) {
+            Integer id = ids.get(name);
+            return id == null ? -1 : id;
+        }
+    }
+
+    // The variable a statement assigns, or -1
+    static int def(Ir3.Stmt stmt, Vars vars) {
+        if (stmt instanceof Ir3.Stmt.Assign) {
+            return vars.id(((Ir3.Stmt.Assign)stmt).lhs);
+        } else if (stmt instanceof Ir3.Stmt.Readln) {
+            return vars.id(((Ir3.Stmt.Readln)stmt).id);
+        } else if (stmt instanceof Ir3.Stmt.Phi) {
+            return vars.id(((Ir3.Stmt.Phi)stmt).lhs);
+        } else {
+            return -1;
+        }
+    }
+
+    // Calls action with every variable a statement reads, once per
+    // occurrence. This reads the "this" param. A phi is taken to read all its
+    // args where it stands, which is more than is live in SSA form, but
+    // still safe.
+    static void uses(Ir3.Stmt stmt, Vars vars, IntConsumer action) {
+        if (stmt instanceof Ir3.Stmt.If) {
+            uses(((Ir3.Stmt.If)stmt).cond, vars, action);
+        } else if (stmt instanceof Ir3.Stmt.Println) {
+            uses(((Ir3.Stmt.Println)stmt).expr, vars, action);
+        } else if (stmt instanceof Ir3.Stmt.Assign) {
+            uses(((Ir3.Stmt.Assign)stmt).rhs, vars, action);
+        } else if (stmt instanceof Ir3.Stmt.FieldAssign) {
+            var assign = (Ir3.Stmt.FieldAssign)stmt;
+            uses(assign.lhsExpr, vars, action);
+            uses(assign.rhs, vars, action);
+        } else if (stmt instanceof Ir3.Stmt.Call) {
+            for (var arg : ((Ir3.Stmt.Call)stmt).args) {
+                uses(arg, vars, action);
+            }
+        } else if (stmt instanceof Ir3.Stmt.Return) {
+            var expr = ((Ir3.Stmt.Return)stmt).expr;
+            if (expr != null) {
+                uses(expr, vars, action);
+            }
+        } else if (stmt instanceof Ir3.Stmt.Phi) {
+            for (var arg : ((Ir3.Stmt.Phi)stmt).args) {
+                uses(arg, vars, action);
+            }
+        }
+    }
+
+    static void uses(Ast.Expr expr, Vars vars, IntConsumer action) {
+        if (expr instanceof Ast.Expr.Id) {
+            int id = vars.id(((Ast.Expr.Id)expr).id);
+            if (id >= 0) {
+                action.accept(id);
+            }
+        } else if (expr instanceof Ast.Expr.This) {
+            int id = vars.id("this");
+            if (id >= 0) {
+                action.accept(id);
+            }
+        } else if (expr instanceof Ast.Expr.Unary) {
+            uses(((Ast.Expr.Unary)expr).atom, vars, action);
+        } else if (expr instanceof Ast.Expr.Binary) {
+            uses(((Ast.Expr.Binary)expr).e1, vars, action);
+            uses(((Ast.Expr.Binary)expr).e2, vars, action);
+        } else if (expr instanceof Ast.Expr.Dot) {
+            uses(((Ast.Expr.Dot)expr).atom, vars, action);
+        } else if (expr instanceof Ast.Expr.Call) {
+            // The callee is a method name
+            for (var arg : ((Ast.Expr.Call)expr).args) {
+                uses(arg, vars, action);
+            }
+        }
+    }
+
+    // Live variables, by Vars id: those some path from the point reads
+    // before assigning
+    static class Liveness {
+        final Cfg cfg;
+        final Vars vars;
+        final Dataflow dataflow;
+
+        Liveness(Cfg cfg, Vars vars) {
+            this.cfg = cfg;
+            this.vars = vars;
+            dataflow = new Dataflow(cfg, Direction.BACKWARD, Meet.UNION,
+                                   vars.size());
+            for (var block : cfg.rpo) {
+                // Reads not preceded by an assignment in the block
+                var gen = dataflow.gen[block.id];
+                var kill = dataflow.kill[block.id];
+                for (var stmt : block.stmts) {
+                    uses(stmt, vars, id -> {
+                        if (!kill.get(id)) {
+                            gen.set(id);
+                        }
+                    });
+                    int def = def(stmt, vars);
+                    if (def >= 0) {
+                        kill.set(def);
+                    }
+                }
+            }
+            dataflow.solve();
+        }
+
+        BitSet liveIn(Cfg.Block block) { return dataflow.in[block.id]; }
+
+        BitSet liveOut(Cfg.Block block) { return dataflow.out[block.id]; }
+
+        // What is live after each statement of a block, walking back from
+        // the end
+        BitSet[] liveAfter(Cfg.Block block) {
+            var live = (BitSet)liveOut(block).clone();
+            var after = new BitSet[block.stmts.size()];
+            for (int i = block.stmts.size() - 1; i >= 0; i--) {
+                var stmt = block.stmts.get(i);
+                after[i] = (BitSet)live.clone();
+                int def = def(stmt, vars);
+                if (def >= 0) {
+                    live.clear(def);
+                }
+                uses(stmt, vars, live::set);
+            }
+            return after;
+        }
+    }
+
+    // Definitions reaching each point, and the def-use chains they give.
+    // Every Assign and Readln is a definition, and so is every param, on
+    // entry to the method.
+    //
+    // Only variables that some block reads before assigning can have a def
+    // from another block reach a use. The others, which are nearly all the
+    // temps Ir3Gen makes, are resolved within their block, and the bit sets
+    // cover just the defs of the former. These are numbered by variable, so
+    // the defs of one variable are a range of bits.
+    static class ReachingDefs {
+        final Cfg cfg;
+        final Vars vars;
+        // By id
+        final ArrayList<Def> defs = new ArrayList<>();
+        // By variable, its defs are ids defStarts[var] to defEnds[var]
+        final int[] defStarts;
+        final int[] defEnds;
+        final BitSet global = new BitSet(); // By variable
+        final IdentityHashMap<Ir3.Stmt, Def> defOf =
+            new IdentityHashMap<>();
+        // Of every statement that reads a variable, in statement order
+        final IdentityHashMap<Ir3.Stmt, List<Use>> usesOf =
+            new IdentityHashMap<>();
+        final Dataflow dataflow;
+
+        static class Def {
+            int id;
+            final int var;
+            final Ir3.Stmt stmt; // Null for params
+            final Cfg.Block block; // Null for params
+            final ArrayList<Use> uses = new ArrayList<>();
+
+            Def(int var, Ir3.Stmt stmt, Cfg.Block block) {
+                this.var = var;
+                this.stmt = stmt;
+                this.block = block;
+            }
+        }
+
+        // One read of a variable, and the defs that can reach it
+        static class Use {
+            final int var;
+            final Ir3.Stmt stmt;
+            final Cfg.Block block;
+            final ArrayList<Def> defs = new ArrayList<>();
+
+            Use(int var, Ir3.Stmt stmt, Cfg.Block block) {
+                this.var = var;
+                this.stmt = stmt;
+                this.block = block;
+            }
+        }
+
+        ReachingDefs(Cfg cfg, Vars vars) {
+            this.cfg = cfg;
+            this.vars = vars;
+            defStarts = new int[vars.size()];
+            defEnds = new int[vars.size()];
+
+            // Find the defs of each variable, and which variables are read
+            // before being assigned in some block
+            var defsOf = new ArrayList<ArrayList<Def>>();
+            for (int i = 0; i < vars.size(); i++) {
+                defsOf.add(new ArrayList<>());
+            }
+            for (var param : cfg.method.params) {
+                int var = vars.id(param.id);
+                defsOf.get(var).add(new Def(var, null, null));
+            }
+            var assigned = new BitSet();
+            for (var block : cfg.rpo) {
+                assigned.clear();
+                for (var stmt : block.stmts) {
+                    uses(stmt, vars, var -> {
+                        if (!assigned.get(var)) {
+                            global.set(var);
+                        }
+                    });
+                    int var = def(stmt, vars);
+                    if (var >= 0) {
+                        var def = new Def(var, stmt, block);
+                        defsOf.get(var).add(def);
+                        defOf.put(stmt, def);
+                        assigned.set(var);
+                    }
+                }
+            }
+
+            // Global variables first
+            for (int var = global.nextSetBit(0); var >= 0;
+                 var = global.nextSetBit(var + 1)) {
+                number(var, defsOf.get(var));
+            }
+            int size = defs.size();
+            for (int var = 0; var < vars.size(); var++) {
+                if (!global.get(var)) {
+                    number(var, defsOf.get(var));
+                }
+            }
+
+            dataflow = new Dataflow(cfg, Direction.FORWARD, Meet.UNION, size);
+            for (var param : cfg.method.params) {
+                int var = vars.id(param.id);
+                if (global.get(var)) {
+                    dataflow.boundary.set(defStarts[var]);
+                }
+            }
+            for (var block : cfg.rpo) {
+                // The last def of each variable, which kills all the others
+                var gen = dataflow.gen[block.id];
+                var kill = dataflow.kill[block.id];
+                for (var stmt : block.stmts) {
+                    var def = defOf.get(stmt);
+                    if (def != null && global.get(def.var)) {
+                        kill.set(defStarts[def.var], defEnds[def.var]);
+                        gen.clear(defStarts[def.var], defEnds[def.var]);
+                        gen.set(def.id);
+                    }
+                }
+            }
+            dataflow.solve();
+
+            chain();
+        }
+
+        void number(int var, ArrayList<Def> defsOfVar) {
+            defStarts[var] = defs.size();
+            for (var def : defsOfVar) {
+                def.id = defs.size();
+                defs.add(def);
+            }
+            defEnds[var] = defs.size();
+        }
+
+        // Links every use to its reaching defs
+        void chain() {
+            // By variable, the last def in the block so far, if any
+            var last = new Def[vars.size()];
+            for (var block : cfg.rpo) {
+                var reaching = (BitSet)dataflow.in[block.id].clone();
+                for (var stmt : block.stmts) {
+                    var uses = new ArrayList<Use>();
+                    uses(stmt, vars, var -> {
+                        var use = new Use(var, stmt, block);
+                        if (last[var] != null) {
+                            use.defs.add(last[var]);
+                        } else {
+                            for (int i = reaching.nextSetBit(defStarts[var]);
+                                 i >= 0 && i < defEnds[var];
+                                 i = reaching.nextSetBit(i + 1)) {
+                                use.defs.add(defs.get(i));
+                            }
+                        }
+                        for (var def : use.defs) {
+                            def.uses.add(use);
+                        }
+                        uses.add(use);
+                    });
+                    if (!uses.isEmpty()) {
+                        usesOf.put(stmt, uses);
+                    }
+
+                    var def = defOf.get(stmt);
+                    if (def != null) {
+                        last[def.var] = def;
+                    }
+                }
+                for (var stmt : block.stmts) {
+                    var def = defOf.get(stmt);
+                    if (def != null) {
+                        last[def.var] = null;
+                    }
+                }
+            }
+        }
+
+        List<Def> defsOf(int var) {
+            return defs.subList(defStarts[var], defEnds[var]);
+        }
+
+        List<Use> usesIn(Ir3.Stmt stmt) {
+            return usesOf.getOrDefault(stmt, List.of());
+        }
+    }
+}
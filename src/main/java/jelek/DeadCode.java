@@ -0,0 +1,98 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+// Removes assignments to variables that are never read, over a method in
+// SSA form. Removing one can leave the variables it read unread in turn, so
+// this works back through chains of them, phis included.
+//
+// Calls, reads of fields, and divisions by anything but a nonzero literal
+// can fail at run time, and so are kept even when their result isn't used.
+// That includes fields of this, which is null in a method called on null.
+// readln is kept for the input it consumes.
+class DeadCode {
+    // Returns the number of statements removed
+    static int run(Cfg cfg) {
+        var vars = new Dataflow.Vars(cfg.method);
+        var reads = new int[vars.size()]; // By var
+        var defs = new ArrayList<ArrayList<Ir3.Stmt>>(); // By var
+        for (int i = 0; i < vars.size(); i++) {
+            defs.add(new ArrayList<>());
+        }
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                Dataflow.uses(stmt, vars, var -> reads[var]++);
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    defs.get(def).add(stmt);
+                }
+            }
+        }
+
+        Set<Ir3.Stmt> dead =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+        var work = new ArrayDeque<Integer>();
+        for (int var = 0; var < vars.size(); var++) {
+            if (reads[var] == 0) {
+                work.add(var);
+            }
+        }
+        while (!work.isEmpty()) {
+            for (var stmt : defs.get(work.poll())) {
+                if (!removable(stmt) || !dead.add(stmt)) {
+                    continue;
+                }
+                Dataflow.uses(stmt, vars, var -> {
+                    if (--reads[var] == 0) {
+                        work.add(var);
+                    }
+                });
+            }
+        }
+
+        int removed = 0;
+        for (var block : cfg.blocks) {
+            var stmts = new ArrayList<Ir3.Stmt>();
+            for (var stmt : block.stmts) {
+                if (!dead.contains(stmt)) {
+                    stmts.add(stmt);
+                } else if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                    removed++;
+                }
+            }
+            block.stmts.clear();
+            block.stmts.addAll(stmts);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return removed;
+    }
+
+    static boolean removable(Ir3.Stmt stmt) {
+        return stmt instanceof Ir3.Stmt.Phi ||
+            (stmt instanceof Ir3.Stmt.Assign &&
+             pure(((Ir3.Stmt.Assign)stmt).rhs));
+    }
+
+    // Whether evaluating an expression can't fail or have an effect
+    static boolean pure(Ast.Expr expr) {
+        if (expr instanceof Ast.Expr.Call || expr instanceof Ast.Expr.Dot) {
+            return false;
+        } else if (expr instanceof Ast.Expr.Binary) {
+            var binary = (Ast.Expr.Binary)expr;
+            if (binary.op == Ast.Expr.BinaryOp.DIV &&
+                !(binary.e2 instanceof Ast.Expr.Int &&
+                  ((Ast.Expr.Int)binary.e2).value != 0)) {
+                return false;
+            }
+            return pure(binary.e1) && pure(binary.e2);
+        } else if (expr instanceof Ast.Expr.Unary) {
+            return pure(((Ast.Expr.Unary)expr).atom);
+        } else {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Global value numbering over a method in SSA form. In a preorder walk of the
+// dominator tree, an assignment of an expression already computed by a
+// dominating one is removed, and its variable read as the other's instead.
+// Operands are compared by value, so a chain of repeats goes at once.
+//
+// Field reads also depend on what fields hold, which is given a version
+// per field. A call replaces every field's version, an assignment to a field
+// replaces that field's, on any object, and a join of paths that reach it
+// with different versions of a field replaces that one too. Two reads of a
+// field are only the same under the same version. A field assignment stands
+// for a read of what it assigned. readln, calls and new are never taken as
+// repeats.
+class Gvn {
+    final Cfg cfg;
+    final Dataflow.Vars vars;
+    final Ast.Type[] types;
+    final Ast.Expr.Id[] to; // By var, what it is read as instead, or null
+    final Set<Ir3.Stmt> removed =
+        Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Each field the method assigns has a slot, and the rest share the last
+    final HashMap<String, Integer> slots = new HashMap<>();
+    int width;
+
+    // By block and slot, the version on the way in, or -1 if no path has
+    // been seen to reach it yet, and the number of statements that replace
+    // it. At index i = block * width + slot, the block's own versions are 2i
+    // on the way in from a join and 2i + 1 after the last statement that
+    // replaces it. Ones before the last are numbered on from there.
+    int[] memory;
+    int[] stores;
+    int nextVersion;
+
+    // What the walk has seen in the dominators of the block it is in
+    final HashMap<List<Object>, Ast.Expr> available = new HashMap<>();
+    final ArrayList<List<Object>> undo = new ArrayList<>();
+
+    Gvn(Cfg cfg) {
+        this.cfg = cfg;
+        vars = new Dataflow.Vars(cfg.method);
+        types = Ssa.types(cfg.method, vars);
+        to = new Ast.Expr.Id[vars.size()];
+    }
+
+    // Returns the number of statements removed
+    static int run(Cfg cfg) {
+        var gvn = new Gvn(cfg);
+        gvn.versions();
+        gvn.walk();
+        return gvn.rewrite();
+    }
+
+    // Solves for the versions into each block. Paths not yet seen are left
+    // out of a join, and versions only ever go from unknown to the block's
+    // own, so this settles.
+    void versions() {
+        for (var stmt : cfg.method.stmts) {
+            if (stmt instanceof Ir3.Stmt.FieldAssign) {
+                slots.putIfAbsent(((Ir3.Stmt.FieldAssign)stmt).lhsField,
+                                  slots.size());
+            }
+        }
+        width = slots.size() + 1;
+        memory = new int[cfg.blocks.size() * width];
+        stores = new int[cfg.blocks.size() * width];
+        nextVersion = 2 * memory.length;
+
+        for (var block : cfg.rpo) {
+            int base = block.id * width;
+            Arrays.fill(memory, base, base + width, -1);
+            for (var stmt : block.stmts) {
+                int slot = slot(stmt);
+                if (slot == width) {
+                    for (int i = 0; i < width; i++) {
+                        stores[base + i]++;
+                    }
+                } else if (slot >= 0) {
+                    stores[base + slot]++;
+                }
+            }
+        }
+        int entry = cfg.entry().id * width;
+        for (int i = entry; i < entry + width; i++) {
+            memory[i] = 2 * i;
+        }
+        for (boolean changed = true; changed;) {
+            changed = false;
+            for (var block : cfg.rpo) {
+                if (block == cfg.entry()) {
+                    continue;
+                }
+                for (int slot = 0; slot < width; slot++) {
+                    int i = block.id * width + slot;
+                    int in = -1;
+                    for (var pred : block.preds) {
+                        int out = out(pred, slot);
+                        if (out < 0) {
+                            continue;
+                        } else if (in < 0) {
+                            in = out;
+                        } else if (in != out) {
+                            in = 2 * i;
+                        }
+                    }
+                    if (in != memory[i]) {
+                        memory[i] = in;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    // The version of a slot on the way out of a block, or -1
+    int out(Cfg.Block block, int slot) {
+        int i = block.id * width + slot;
+        if (!block.reachable()) {
+            return -1;
+        }
+        return stores[i] > 0 ? 2 * i + 1 : memory[i];
+    }
+
+    // The slot a statement replaces the version of, width for all of them,
+    // or -1
+    int slot(Ir3.Stmt stmt) {
+        if (stmt instanceof Ir3.Stmt.FieldAssign) {
+            return slots.get(((Ir3.Stmt.FieldAssign)stmt).lhsField);
+        } else if (stmt instanceof Ir3.Stmt.Call ||
+                   (stmt instanceof Ir3.Stmt.Assign &&
+                    ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Call)) {
+            return width;
+        } else {
+            return -1;
+        }
+    }
+
+    // Without recursion, since the tree can be very deep. A block is pushed
+    // once to be entered and once more to be left.
+    void walk() {
+        var stack = new ArrayDeque<Cfg.Block>();
+        var marks = new int[cfg.blocks.size()];
+        var entered = new BitSet();
+        stack.push(cfg.entry());
+        while (!stack.isEmpty()) {
+            var block = stack.pop();
+            if (entered.get(block.id)) {
+                while (undo.size() > marks[block.id]) {
+                    available.remove(undo.remove(undo.size() - 1));
+                }
+                continue;
+            }
+            entered.set(block.id);
+            marks[block.id] = undo.size();
+            number(block);
+            stack.push(block);
+            for (var child : block.dominated) {
+                stack.push(child);
+            }
+        }
+    }
+
+    void number(Cfg.Block block) {
+        int base = block.id * width;
+        var version = Arrays.copyOfRange(memory, base, base + width);
+        var storesLeft = Arrays.copyOfRange(stores, base, base + width);
+        for (var stmt : block.stmts) {
+            int slot = slot(stmt);
+            for (int i = 0; i < width; i++) {
+                if (slot == i || slot == width) {
+                    version[i] = --storesLeft[i] == 0 ? 2 * (base + i) + 1
+                                                      : nextVersion++;
+                }
+            }
+
+            if (stmt instanceof Ir3.Stmt.Phi) {
+                var phi = (Ir3.Stmt.Phi)stmt;
+                var key = new ArrayList<Object>();
+                key.add(block.id);
+                for (var arg : phi.args) {
+                    key.add(operand(arg));
+                }
+                find(phi, phi.lhs, key);
+            } else if (stmt instanceof Ir3.Stmt.Assign) {
+                var assign = (Ir3.Stmt.Assign)stmt;
+                var key = key(assign.rhs, version);
+                if (key != null) {
+                    find(assign, assign.lhs, key);
+                }
+            } else if (stmt instanceof Ir3.Stmt.FieldAssign) {
+                var assign = (Ir3.Stmt.FieldAssign)stmt;
+                var value = assign.rhs;
+                if (value instanceof Ast.Expr.Id) {
+                    value = resolve((Ast.Expr.Id)value);
+                }
+                if (value instanceof Ast.Expr.Id || literal(value)) {
+                    put(List.of(".", operand(assign.lhsExpr),
+                                assign.lhsField, version[slot]),
+                        value);
+                }
+            }
+        }
+    }
+
+    // Records what var is read as if key has been seen, and otherwise that
+    // it has been seen as var
+    void find(Ir3.Stmt stmt, String lhs, List<Object> key) {
+        int var = vars.id(lhs);
+        var found = available.get(key);
+        if (found instanceof Ast.Expr.Id) {
+            to[var] = (Ast.Expr.Id)found;
+            removed.add(stmt);
+        } else if (found != null) {
+            // A literal a field was assigned. A literal can't stand everywhere
+            // a name can, so the assignment stays.
+            ((Ir3.Stmt.Assign)stmt).rhs = found;
+        } else {
+            put(key, Ssa.id(lhs, types[var]));
+        }
+    }
+
+    void put(List<Object> key, Ast.Expr value) {
+        if (available.putIfAbsent(key, value) == null) {
+            undo.add(key);
+        }
+    }
+
+    // What identifies the value of expr, or null if it can't be a repeat
+    List<Object> key(Ast.Expr expr, int[] version) {
+        if (expr instanceof Ast.Expr.Binary) {
+            var binary = (Ast.Expr.Binary)expr;
+            var op = binary.op;
+            Object a = operand(binary.e1);
+            Object b = operand(binary.e2);
+            boolean swap;
+            switch (op) {
+            case GT:
+                op = Ast.Expr.BinaryOp.LT;
+                swap = true;
+                break;
+            case GEQ:
+                op = Ast.Expr.BinaryOp.LEQ;
+                swap = true;
+                break;
+            case PLUS:
+            case MUL:
+            case EQ:
+            case NEQ:
+            case AND:
+            case OR:
+                swap = a.toString().compareTo(b.toString()) > 0;
+                break;
+            default:
+                swap = false;
+            }
+            return swap ? List.of(op, b, a) : List.of(op, a, b);
+        } else if (expr instanceof Ast.Expr.Unary) {
+            var unary = (Ast.Expr.Unary)expr;
+            return List.of(unary.op, operand(unary.atom));
+        } else if (expr instanceof Ast.Expr.Dot) {
+            var dot = (Ast.Expr.Dot)expr;
+            int slot = slots.getOrDefault(dot.member, width - 1);
+            return List.of(".", operand(dot.atom), dot.member,
+                           version[slot]);
+        } else {
+            return null;
+        }
+    }
+
+    // Variables by number and literals by value. Literals of different types
+    // never meet in one operator, so their values can't be confused.
+    Object operand(Ast.Expr expr) {
+        if (expr instanceof Ast.Expr.Id) {
+            var id = resolve((Ast.Expr.Id)expr);
+            int var = vars.id(id.id);
+            return var < 0 ? id.id : var;
+        } else if (expr instanceof Ast.Expr.This) {
+            int var = vars.id("this");
+            return var < 0 ? "this" : var;
+        } else if (expr instanceof Ast.Expr.Int) {
+            return "" + ((Ast.Expr.Int)expr).value;
+        } else if (expr instanceof Ast.Expr.Bool) {
+            return "" + ((Ast.Expr.Bool)expr).value;
+        } else if (expr instanceof Ast.Expr.Str) {
+            return "\"" + ((Ast.Expr.Str)expr).value;
+        } else {
+            return "null";
+        }
+    }
+
+    static boolean literal(Ast.Expr expr) {
+        return expr instanceof Ast.Expr.Int || expr instanceof Ast.Expr.Bool ||
+            expr instanceof Ast.Expr.Str;
+    }
+
+    Ast.Expr.Id resolve(Ast.Expr.Id id) {
+        int var = vars.id(id.id);
+        return var < 0 || to[var] == null ? id : to[var];
+    }
+
+    int rewrite() {
+        int count = 0;
+        for (var block : cfg.blocks) {
+            var stmts = new ArrayList<Ir3.Stmt>();
+            for (var stmt : block.stmts) {
+                if (removed.contains(stmt)) {
+                    if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                        count++;
+                    }
+                    continue;
+                }
+                if (stmt instanceof Ir3.Stmt.Phi) {
+                    var args = ((Ir3.Stmt.Phi)stmt).args;
+                    for (int i = 0; i < args.size(); i++) {
+                        args.set(i, Ir3.mapUses(args.get(i), this::resolve));
+                    }
+                } else {
+                    Ir3.mapUses(stmt, this::resolve);
+                }
+                stmts.add(stmt);
+            }
+            block.stmts.clear();
+            block.stmts.addAll(stmts);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return count;
+    }
+}
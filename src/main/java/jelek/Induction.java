@@ -0,0 +1,411 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Strength reduction of induction variables over a method in SSA form. A
+// basic induction variable is one its loop's header picks between its value
+// on entry and itself plus or minus some amount the loop doesn't change. A
+// multiplication of one by what the loop doesn't change is then kept up as
+// a variable of its own instead: the product on entry, computed in the
+// preheader, and the step times the same factor added each time round,
+// right after the variable's own step. Ints wrap, so this is exact even
+// when they overflow.
+//
+// If the loop's test in its header is then all that still reads the basic
+// variable, and its start, step and bound are literals, the test is put in
+// terms of the product instead (linear function test replacement), and the
+// basic variable goes. The factor has to be a positive literal, and neither
+// may overflow before the test fails.
+//
+// Divisions are left as they are: a signed one isn't a shift, and IR3 has
+// no shifts anyway.
+class Induction {
+    // A variable its loop's header picks between init and next, which adds
+    // step to it, or takes it away if down
+    static class Iv {
+        final Ir3.Stmt.Phi phi;
+        final Ast.Expr init;
+        final Ir3.Stmt.Assign next;
+        final Ast.Expr step;
+        final boolean down;
+        final Cfg.Block block; // Of next
+        Ast.Expr.Id reduced; // Times factor, for the test
+        int factor;
+
+        Iv(Ir3.Stmt.Phi phi, Ast.Expr init, Ir3.Stmt.Assign next,
+           Ast.Expr step, boolean down, Cfg.Block block) {
+            this.phi = phi;
+            this.init = init;
+            this.next = next;
+            this.step = step;
+            this.down = down;
+            this.block = block;
+        }
+    }
+
+    final Cfg cfg;
+    final Ir3.Method method;
+    final Dataflow.Vars vars;
+    final int[] uses; // By var
+    // By name, the blocks and statements assigning variables
+    final HashMap<String, Cfg.Block> blocks = new HashMap<>();
+    final HashMap<String, Ir3.Stmt> defs = new HashMap<>();
+
+    Induction(Cfg cfg) {
+        this.cfg = cfg;
+        method = cfg.method;
+        vars = new Dataflow.Vars(method);
+        uses = new int[vars.size()];
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                Dataflow.uses(stmt, vars, var -> uses[var]++);
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    blocks.put(vars.names.get(def), block);
+                    defs.put(vars.names.get(def), stmt);
+                }
+            }
+        }
+    }
+
+    // Returns the number of multiplications reduced
+    static int run(Cfg cfg) {
+        var induction = new Induction(cfg);
+        int reduced = 0;
+        for (var loop : cfg.loops) {
+            reduced += induction.reduce(loop);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return reduced;
+    }
+
+    int reduce(Cfg.Loop loop) {
+        int reduced = 0;
+        for (var child : loop.children) {
+            reduced += reduce(child);
+        }
+
+        var preheader = Licm.preheader(loop);
+        if (preheader == null) {
+            return reduced;
+        }
+        var ivs = ivs(loop, preheader);
+        if (ivs.isEmpty()) {
+            return reduced;
+        }
+
+        // Found first, as reducing adds statements to the loop
+        var products = new ArrayList<Ir3.Stmt.Assign>();
+        for (var block : cfg.rpo) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.Assign &&
+                    iv(((Ir3.Stmt.Assign)stmt).rhs, ivs, loop) != null) {
+                    products.add((Ir3.Stmt.Assign)stmt);
+                }
+            }
+        }
+
+        var reductions = new HashMap<List<Object>, Ast.Expr.Id>();
+        for (var product : products) {
+            var binary = (Ast.Expr.Binary)product.rhs;
+            var iv = iv(binary, ivs, loop);
+            var factor = binary.e1 == iv ? binary.e2 : binary.e1;
+            var basic = ivs.get(iv.id);
+            var key = List.of(iv.id, factor instanceof Ast.Expr.Int
+                                         ? (Object)((Ast.Expr.Int)factor).value
+                                         : ((Ast.Expr.Id)factor).id);
+            var reduction = reductions.get(key);
+            if (reduction == null) {
+                reduction = reduction(loop, preheader, basic, factor);
+                reductions.put(key, reduction);
+            }
+            count(product, -1);
+            product.rhs = Ssa.id(reduction.id, reduction.type);
+            count(product, 1);
+            reduced++;
+        }
+
+        for (var iv : ivs.values()) {
+            replaceTest(loop, iv);
+        }
+        return reduced;
+    }
+
+    // The basic induction variables of a loop, by name
+    LinkedHashMap<String, Iv> ivs(Cfg.Loop loop, Cfg.Block preheader) {
+        var ivs = new LinkedHashMap<String, Iv>();
+        var header = loop.header;
+        for (var stmt : header.stmts) {
+            if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                continue;
+            }
+            var phi = (Ir3.Stmt.Phi)stmt;
+            Ast.Expr init = null;
+            String next = null;
+            boolean valid = true;
+            for (int i = 0; i < header.preds.size(); i++) {
+                var pred = header.preds.get(i);
+                var arg = phi.args.get(i);
+                if (pred == preheader) {
+                    init = arg;
+                } else if (!loop.contains(pred)) {
+                    continue;
+                } else if (!(arg instanceof Ast.Expr.Id) ||
+                           (next != null &&
+                            !next.equals(((Ast.Expr.Id)arg).id))) {
+                    valid = false;
+                } else {
+                    next = ((Ast.Expr.Id)arg).id;
+                }
+            }
+            if (!valid || init == null || next == null ||
+                !(defs.get(next) instanceof Ir3.Stmt.Assign) ||
+                !loop.contains(blocks.get(next))) {
+                continue;
+            }
+
+            var assign = (Ir3.Stmt.Assign)defs.get(next);
+            if (!(assign.rhs instanceof Ast.Expr.Binary)) {
+                continue;
+            }
+            var binary = (Ast.Expr.Binary)assign.rhs;
+            Ast.Expr step = null;
+            if (binary.op == Ast.Expr.BinaryOp.PLUS &&
+                is(binary.e1, phi.lhs)) {
+                step = binary.e2;
+            } else if (binary.op == Ast.Expr.BinaryOp.PLUS &&
+                       is(binary.e2, phi.lhs)) {
+                step = binary.e1;
+            } else if (binary.op == Ast.Expr.BinaryOp.MINUS &&
+                       is(binary.e1, phi.lhs)) {
+                step = binary.e2;
+            }
+            if (step != null && invariant(step, loop)) {
+                ivs.put(phi.lhs, new Iv(phi, init, assign, step,
+                                        binary.op == Ast.Expr.BinaryOp.MINUS,
+                                        blocks.get(next)));
+            }
+        }
+        return ivs;
+    }
+
+    static boolean is(Ast.Expr expr, String name) {
+        return expr instanceof Ast.Expr.Id &&
+            ((Ast.Expr.Id)expr).id.equals(name);
+    }
+
+    // Whether expr is a literal or a variable assigned outside the loop, if
+    // at all
+    boolean invariant(Ast.Expr expr, Cfg.Loop loop) {
+        if (expr instanceof Ast.Expr.Int) {
+            return true;
+        } else if (!(expr instanceof Ast.Expr.Id)) {
+            return false;
+        }
+        var block = blocks.get(((Ast.Expr.Id)expr).id);
+        return block == null || !loop.contains(block);
+    }
+
+    // The basic induction variable expr multiplies by something the loop
+    // doesn't change, or null. Factors of 0 and 1 are left for later.
+    Ast.Expr.Id iv(Ast.Expr expr, HashMap<String, Iv> ivs, Cfg.Loop loop) {
+        if (!(expr instanceof Ast.Expr.Binary) ||
+            ((Ast.Expr.Binary)expr).op != Ast.Expr.BinaryOp.MUL) {
+            return null;
+        }
+        var binary = (Ast.Expr.Binary)expr;
+        for (int i = 0; i < 2; i++) {
+            var iv = i == 0 ? binary.e1 : binary.e2;
+            var factor = i == 0 ? binary.e2 : binary.e1;
+            if (iv instanceof Ast.Expr.Id &&
+                ivs.containsKey(((Ast.Expr.Id)iv).id) &&
+                invariant(factor, loop) &&
+                !(factor instanceof Ast.Expr.Int &&
+                  ((Ast.Expr.Int)factor).value >= 0 &&
+                  ((Ast.Expr.Int)factor).value <= 1)) {
+                return (Ast.Expr.Id)iv;
+            }
+        }
+        return null;
+    }
+
+    // A new variable always iv times factor: a phi in the header, and a
+    // step after the iv's own
+    Ast.Expr.Id reduction(Cfg.Loop loop, Cfg.Block preheader, Iv iv,
+                          Ast.Expr factor) {
+        var init = multiply(preheader, iv.init, factor);
+        var step = multiply(preheader, iv.step, factor);
+        var reduction = temp();
+        var next = temp();
+
+        var header = loop.header;
+        var args = new ArrayList<Ast.Expr>();
+        for (var pred : header.preds) {
+            if (loop.contains(pred)) {
+                args.add(Ssa.id(next.id, next.type));
+            } else {
+                args.add(init instanceof Ast.Expr.Id
+                             ? Ssa.id(((Ast.Expr.Id)init).id, init.type)
+                             : init);
+            }
+        }
+        var phi = new Ir3.Stmt.Phi(reduction.id, args);
+        header.stmts.add(Ssa.labels(header), phi);
+        define(phi, header);
+
+        var binary = new Ast.Expr.Binary(iv.down ? Ast.Expr.BinaryOp.MINUS
+                                                 : Ast.Expr.BinaryOp.PLUS,
+                                         reduction, step);
+        binary.type = Ast.Type.INT;
+        var assign = new Ir3.Stmt.Assign(next.id, binary);
+        var stmts = iv.block.stmts;
+        stmts.add(stmts.indexOf(iv.next) + 1, assign);
+        define(assign, iv.block);
+
+        if (factor instanceof Ast.Expr.Int &&
+            ((Ast.Expr.Int)factor).value > 0 && iv.reduced == null) {
+            iv.reduced = reduction;
+            iv.factor = ((Ast.Expr.Int)factor).value;
+        }
+        return reduction;
+    }
+
+    // e1 times e2, folded if both are literals or either is 1, or else
+    // computed at the end of the preheader
+    Ast.Expr multiply(Cfg.Block preheader, Ast.Expr e1, Ast.Expr e2) {
+        if (e1 instanceof Ast.Expr.Int && e2 instanceof Ast.Expr.Int) {
+            return Sccp.literal(Sccp.fold(Ast.Expr.BinaryOp.MUL,
+                                          ((Ast.Expr.Int)e1).value,
+                                          ((Ast.Expr.Int)e2).value));
+        } else if (e1 instanceof Ast.Expr.Int &&
+                   ((Ast.Expr.Int)e1).value == 1) {
+            return e2;
+        } else if (e2 instanceof Ast.Expr.Int &&
+                   ((Ast.Expr.Int)e2).value == 1) {
+            return e1;
+        }
+        var product = temp();
+        var binary = new Ast.Expr.Binary(Ast.Expr.BinaryOp.MUL, e1, e2);
+        binary.type = Ast.Type.INT;
+        var assign = new Ir3.Stmt.Assign(product.id, binary);
+        var stmts = preheader.stmts;
+        int at = stmts.size();
+        if (at > 0 && stmts.get(at - 1) instanceof Ir3.Stmt.Goto) {
+            at--;
+        }
+        stmts.add(at, assign);
+        define(assign, preheader);
+        return product;
+    }
+
+    Ast.Expr.Id temp() {
+        var temp = new Ast.Var(Ast.Type.INT, "_t" + method.tempCounter++);
+        method.vars.add(temp);
+        return Ssa.id(temp.id, temp.type);
+    }
+
+    // Records a statement added to block, whose operands may be variables
+    // of an outer loop
+    void define(Ir3.Stmt stmt, Cfg.Block block) {
+        var name = stmt instanceof Ir3.Stmt.Phi
+                       ? ((Ir3.Stmt.Phi)stmt).lhs
+                       : ((Ir3.Stmt.Assign)stmt).lhs;
+        blocks.put(name, block);
+        defs.put(name, stmt);
+        count(stmt, 1);
+    }
+
+    // Adds by to the uses of each variable stmt reads
+    void count(Ir3.Stmt stmt, int by) {
+        Dataflow.uses(stmt, vars, var -> uses[var] += by);
+    }
+
+    // Tests iv's reduction against the bound times its factor instead, if
+    // the header's test is all that still reads iv, and removes iv
+    void replaceTest(Cfg.Loop loop, Iv iv) {
+        var header = loop.header;
+        if (iv.reduced == null || !(header.last() instanceof Ir3.Stmt.If) ||
+            !(iv.init instanceof Ast.Expr.Int) ||
+            !(iv.step instanceof Ast.Expr.Int)) {
+            return;
+        }
+        var if_ = (Ir3.Stmt.If)header.last();
+        if (!(if_.cond instanceof Ast.Expr.Binary)) {
+            return;
+        }
+        var cond = (Ast.Expr.Binary)if_.cond;
+        if (!is(cond.e1, iv.phi.lhs) || !(cond.e2 instanceof Ast.Expr.Int)) {
+            return;
+        }
+
+        // Read by its step and the test, and its step only by the phi
+        int next = 0;
+        for (var arg : iv.phi.args) {
+            if (is(arg, iv.next.lhs)) {
+                next++;
+            }
+        }
+        if (uses[vars.id(iv.phi.lhs)] != 2 ||
+            uses[vars.id(iv.next.lhs)] != next) {
+            return;
+        }
+
+        // The loop keeps going while iv op bound, and iv heads towards it
+        Cfg.Block inside = null;
+        Cfg.Block outside = null;
+        for (var succ : header.succs) {
+            if (loop.contains(succ)) {
+                inside = succ;
+            } else {
+                outside = succ;
+            }
+        }
+        if (inside == null || outside == null) {
+            return;
+        }
+        var op = Ssa.labelled(inside, if_.label)
+                     ? cond.op
+                     : Ir3Gen.ExprGen.negated(cond.op);
+        long init = ((Ast.Expr.Int)iv.init).value;
+        long step = ((Ast.Expr.Int)iv.step).value;
+        long bound = ((Ast.Expr.Int)cond.e2).value;
+        step = iv.down ? -step : step;
+        if (!((op == Ast.Expr.BinaryOp.LT || op == Ast.Expr.BinaryOp.LEQ) &&
+              step > 0) &&
+            !((op == Ast.Expr.BinaryOp.GT || op == Ast.Expr.BinaryOp.GEQ) &&
+              step < 0)) {
+            return;
+        }
+
+        // The values iv can take, from init until it passes the bound
+        long low = Math.min(init, bound - Math.abs(step));
+        long high = Math.max(init, bound + Math.abs(step));
+        if (!fits(low) || !fits(high) || !fits(low * iv.factor) ||
+            !fits(high * iv.factor)) {
+            return;
+        }
+
+        var scaled = new Ast.Expr.Int((int)bound * iv.factor);
+        scaled.type = Ast.Type.INT;
+        var binary = new Ast.Expr.Binary(
+            cond.op, Ssa.id(iv.reduced.id, iv.reduced.type), scaled);
+        binary.type = Ast.Type.BOOL;
+        count(if_, -1);
+        if_.cond = binary;
+        count(if_, 1);
+        header.stmts.remove(iv.phi);
+        count(iv.phi, -1);
+        iv.block.stmts.remove(iv.next);
+        count(iv.next, -1);
+    }
+
+    static boolean fits(long value) {
+        return value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE;
+    }
+}
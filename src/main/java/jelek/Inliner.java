@@ -0,0 +1,245 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Inlines calls to small methods. JLite has no inheritance, so the method a
+// call reaches is known from its name alone.
+//
+// A method of at most SIZE statements, not counting labels, is inlined, and
+// so are the calls in its body in turn, up to DEPTH deep, but never into a
+// copy of itself. The callee's params, locals and temps become new temps of
+// the caller, with the locals set to 0, false or null first, its labels new
+// labels, and each return an assignment of the result and a jump past the
+// end. A caller takes no more once it has grown to twice its size plus
+// GROWTH statements.
+//
+// Callees are copied as they were when the inliner was made, so callers can
+// be inlined into in parallel. Only the caller is changed, and a callee's
+// params, variables and body are read from copies of its lists, since the
+// method itself may be a caller another thread is adding temps to.
+class Inliner {
+    static final int SIZE = 12;
+    static final int DEPTH = 3;
+    static final int GROWTH = 64;
+
+    // A method as it was when the inliner was made
+    static class Callee {
+        final List<Ast.Var> params;
+        final List<Ast.Var> vars;
+        final List<Ir3.Stmt> stmts;
+
+        Callee(Ir3.Method method) {
+            params = List.copyOf(method.params);
+            vars = List.copyOf(method.vars);
+            stmts = List.copyOf(method.stmts);
+        }
+    }
+
+    final HashMap<String, Callee> callees = new HashMap<>(); // By name
+
+    Inliner(Ir3.Program program) {
+        for (var method : program.methods) {
+            if (size(method.stmts) <= SIZE) {
+                callees.put(method.name, new Callee(method));
+            }
+        }
+    }
+
+    // Returns the number of calls inlined
+    int inline(Ir3.Method method) {
+        var chain = new ArrayDeque<String>();
+        chain.push(method.name);
+        var stmts = new ArrayList<Ir3.Stmt>();
+        int limit = 2 * method.stmts.size() + GROWTH;
+        int inlined = expand(method, method.stmts, stmts, chain, limit);
+        if (inlined > 0) {
+            method.stmts = stmts;
+        }
+        return inlined;
+    }
+
+    // Adds the statements of body to stmts, with the calls in it inlined.
+    // chain is the caller and the callees being inlined, innermost first.
+    int expand(Ir3.Method method, List<Ir3.Stmt> body,
+               ArrayList<Ir3.Stmt> stmts, ArrayDeque<String> chain,
+               int limit) {
+        int inlined = 0;
+        for (var stmt : body) {
+            String callee = null;
+            List<Ast.Expr> args = null;
+            String result = null;
+            if (stmt instanceof Ir3.Stmt.Call) {
+                callee = ((Ir3.Stmt.Call)stmt).id;
+                args = ((Ir3.Stmt.Call)stmt).args;
+            } else if (stmt instanceof Ir3.Stmt.Assign &&
+                       ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Call) {
+                var call = (Ast.Expr.Call)((Ir3.Stmt.Assign)stmt).rhs;
+                callee = ((Ast.Expr.Id)call.callee).id;
+                args = call.args;
+                result = ((Ir3.Stmt.Assign)stmt).lhs;
+            }
+            if (callee == null || !callees.containsKey(callee) ||
+                chain.contains(callee) || chain.size() > DEPTH ||
+                stmts.size() + callees.get(callee).stmts.size() > limit) {
+                stmts.add(stmt);
+                continue;
+            }
+
+            var copy = copy(method, callees.get(callee), args, result);
+            chain.push(callee);
+            inlined += 1 + expand(method, copy, stmts, chain, limit);
+            chain.pop();
+        }
+        return inlined;
+    }
+
+    static int size(List<Ir3.Stmt> stmts) {
+        int size = 0;
+        for (var stmt : stmts) {
+            if (!(stmt instanceof Ir3.Stmt.Label)) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    // The body of callee as it reads in method, called with args and its
+    // result assigned to result, if not null
+    List<Ir3.Stmt> copy(Ir3.Method method, Callee callee,
+                        List<Ast.Expr> args, String result) {
+        var copier = new Copier(method);
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (int i = 0; i < callee.params.size(); i++) {
+            var param = copier.rename(callee.params.get(i));
+            stmts.add(new Ir3.Stmt.Assign(param.id, args.get(i)));
+        }
+        for (var var : callee.vars) {
+            var id = copier.rename(var);
+            // A local can be read before it is assigned, and in a loop the
+            // copy would see the last call's value. Temps never are.
+            if (!Coalesce.isTemp(var.id)) {
+                stmts.add(new Ir3.Stmt.Assign(id.id,
+                                              Scalars.initial(var.type)));
+            }
+        }
+
+        var body = callee.stmts;
+        int end = -1;
+        for (int i = 0; i < body.size(); i++) {
+            var stmt = body.get(i);
+            if (!(stmt instanceof Ir3.Stmt.Return)) {
+                stmts.add(copier.copy(stmt));
+                continue;
+            }
+            var expr = ((Ir3.Stmt.Return)stmt).expr;
+            if (result != null && expr != null) {
+                stmts.add(new Ir3.Stmt.Assign(result, copier.copy(expr)));
+            }
+            if (i < body.size() - 1) {
+                if (end < 0) {
+                    end = method.labelCounter++;
+                }
+                stmts.add(new Ir3.Stmt.Goto(end));
+            }
+        }
+        if (end >= 0) {
+            stmts.add(new Ir3.Stmt.Label(end));
+        }
+        return stmts;
+    }
+
+    // Copies statements of a callee into a caller, with new names for its
+    // variables and labels
+    static class Copier {
+        final Ir3.Method method;
+        final HashMap<String, Ast.Expr.Id> vars = new HashMap<>();
+        final HashMap<Integer, Integer> labels = new HashMap<>();
+
+        Copier(Ir3.Method method) { this.method = method; }
+
+        Ast.Expr.Id rename(Ast.Var var) {
+            var temp = new Ast.Var(var.type, "_t" + method.tempCounter++);
+            method.vars.add(temp);
+            var id = Ssa.id(temp.id, temp.type);
+            vars.put(var.id, id);
+            return id;
+        }
+
+        int label(int label) {
+            return labels.computeIfAbsent(label, l -> method.labelCounter++);
+        }
+
+        Ir3.Stmt copy(Ir3.Stmt stmt) {
+            if (stmt instanceof Ir3.Stmt.Label) {
+                return new Ir3.Stmt.Label(label(((Ir3.Stmt.Label)stmt).label));
+            } else if (stmt instanceof Ir3.Stmt.If) {
+                var if_ = (Ir3.Stmt.If)stmt;
+                return new Ir3.Stmt.If(copy(if_.cond), label(if_.label));
+            } else if (stmt instanceof Ir3.Stmt.Goto) {
+                return new Ir3.Stmt.Goto(label(((Ir3.Stmt.Goto)stmt).label));
+            } else if (stmt instanceof Ir3.Stmt.Readln) {
+                return new Ir3.Stmt.Readln(
+                    vars.get(((Ir3.Stmt.Readln)stmt).id).id);
+            } else if (stmt instanceof Ir3.Stmt.Println) {
+                return new Ir3.Stmt.Println(
+                    copy(((Ir3.Stmt.Println)stmt).expr));
+            } else if (stmt instanceof Ir3.Stmt.Assign) {
+                var assign = (Ir3.Stmt.Assign)stmt;
+                return new Ir3.Stmt.Assign(vars.get(assign.lhs).id,
+                                           copy(assign.rhs));
+            } else if (stmt instanceof Ir3.Stmt.FieldAssign) {
+                var assign = (Ir3.Stmt.FieldAssign)stmt;
+                return new Ir3.Stmt.FieldAssign(copy(assign.lhsExpr),
+                                                assign.lhsField,
+                                                copy(assign.rhs));
+            } else if (stmt instanceof Ir3.Stmt.Call) {
+                var call = (Ir3.Stmt.Call)stmt;
+                return new Ir3.Stmt.Call(call.id, copy(call.args));
+            } else if (stmt instanceof Ir3.Stmt.Return) {
+                var expr = ((Ir3.Stmt.Return)stmt).expr;
+                return new Ir3.Stmt.Return(expr == null ? null : copy(expr));
+            } else {
+                throw new AssertionError();
+            }
+        }
+
+        // this is the first param, so a variable like the rest
+        Ast.Expr copy(Ast.Expr expr) {
+            Ast.Expr copy = expr;
+            if (expr instanceof Ast.Expr.Id) {
+                var id = vars.get(((Ast.Expr.Id)expr).id);
+                copy = id == null ? expr : id;
+            } else if (expr instanceof Ast.Expr.This) {
+                copy = vars.get("this");
+            } else if (expr instanceof Ast.Expr.Unary) {
+                var unary = (Ast.Expr.Unary)expr;
+                copy = new Ast.Expr.Unary(unary.op, copy(unary.atom));
+            } else if (expr instanceof Ast.Expr.Binary) {
+                var binary = (Ast.Expr.Binary)expr;
+                copy = new Ast.Expr.Binary(binary.op, copy(binary.e1),
+                                           copy(binary.e2));
+            } else if (expr instanceof Ast.Expr.Dot) {
+                var dot = (Ast.Expr.Dot)expr;
+                copy = new Ast.Expr.Dot(copy(dot.atom), dot.member);
+            } else if (expr instanceof Ast.Expr.Call) {
+                var call = (Ast.Expr.Call)expr;
+                copy = new Ast.Expr.Call(call.callee, copy(call.args));
+            }
+            if (copy != expr && !(copy instanceof Ast.Expr.Id)) {
+                copy.type = expr.type;
+            }
+            return copy;
+        }
+
+        List<Ast.Expr> copy(List<Ast.Expr> exprs) {
+            var copies = new ArrayList<Ast.Expr>();
+            for (var expr : exprs) {
+                copies.add(copy(expr));
+            }
+            return copies;
+        }
+    }
+}
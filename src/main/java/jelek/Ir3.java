@@ -1,8 +1,8 @@
 package jelek;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
+import java.util.function.Function;
 import jelek.Ast.Expr;
 import jelek.Ast.Type;
 import jelek.Ast.Var;
@@ -33,8 +33,14 @@ class Ir3 {
         String name;
         List<Var> params = new ArrayList<>();
         List<Var> vars = new ArrayList<>();
-        HashMap<String, String> varMap = new HashMap<>();
+        // IR3 names of the source params and locals, by the slot StaticCheck
+        // resolved them to
+        List<String> slotNames = new ArrayList<>();
         List<Stmt> stmts = new ArrayList<>();
+        // The next unused label and temp numbers. Both count from 0 in every
+        // method, so methods can be lowered independently.
+        int labelCounter = 0;
+        int tempCounter = 0;
 
         Method(String name, Type returnType) {
             this.name = name;
@@ -57,6 +63,7 @@ class Ir3 {
             R visitFieldAssign(FieldAssign stmt);
             R visitCall(Call stmt);
             R visitReturn(Return stmt);
+            R visitPhi(Phi stmt);
         }
 
         static class Label extends Stmt {
@@ -175,5 +182,118 @@ class Ir3 {
                 return visitor.visitReturn(this);
             }
         }
+
+        // Only in SSA form, at the start of a block after its labels. There
+        // is one arg per predecessor, in the order of Cfg.Block.preds.
+        static class Phi extends Stmt {
+            String lhs;
+            List<Expr> args;
+
+            Phi(String lhs, List<Expr> args) {
+                this.lhs = lhs;
+                this.args = args;
+            }
+
+            @Override
+            <R> R accept(Visitor<R> visitor) {
+                return visitor.visitPhi(this);
+            }
+        }
+    }
+
+    // Replaces every variable a statement reads with what f returns for it,
+    // rebuilding the expressions in between. Where IR3 wants a name, as the
+    // object of a field access or assignment and the operand of a return,
+    // only a name is put in. Phi args are left alone, since they are read
+    // on the way in from a predecessor.
+    static void mapUses(Stmt stmt, Function<Expr.Id, Expr> f) {
+        if (stmt instanceof Stmt.If) {
+            var if_ = (Stmt.If)stmt;
+            if_.cond = mapUses(if_.cond, f);
+        } else if (stmt instanceof Stmt.Println) {
+            var println = (Stmt.Println)stmt;
+            println.expr = mapUses(println.expr, f);
+        } else if (stmt instanceof Stmt.Assign) {
+            var assign = (Stmt.Assign)stmt;
+            assign.rhs = mapUses(assign.rhs, f);
+        } else if (stmt instanceof Stmt.FieldAssign) {
+            var assign = (Stmt.FieldAssign)stmt;
+            assign.lhsExpr = mapName(assign.lhsExpr, f);
+            assign.rhs = mapUses(assign.rhs, f);
+        } else if (stmt instanceof Stmt.Call) {
+            var call = (Stmt.Call)stmt;
+            call.args = mapUses(call.args, f);
+        } else if (stmt instanceof Stmt.Return) {
+            var return_ = (Stmt.Return)stmt;
+            if (return_.expr != null) {
+                return_.expr = mapName(return_.expr, f);
+            }
+        }
+    }
+
+    static Expr mapUses(Expr expr, Function<Expr.Id, Expr> f) {
+        Expr mapped = expr;
+        if (expr instanceof Expr.Id) {
+            mapped = f.apply((Expr.Id)expr);
+        } else if (expr instanceof Expr.This) {
+            // A read of the "this" param like any other, which can be
+            // renamed once a tail call assigns it
+            var id = new Expr.Id("this");
+            id.type = expr.type;
+            mapped = f.apply(id);
+            if (mapped == id) {
+                mapped = expr;
+            }
+        } else if (expr instanceof Expr.Unary) {
+            var unary = (Expr.Unary)expr;
+            var atom = mapUses(unary.atom, f);
+            if (atom != unary.atom) {
+                mapped = new Expr.Unary(unary.op, atom);
+            }
+        } else if (expr instanceof Expr.Binary) {
+            var binary = (Expr.Binary)expr;
+            var e1 = mapUses(binary.e1, f);
+            var e2 = mapUses(binary.e2, f);
+            if (e1 != binary.e1 || e2 != binary.e2) {
+                mapped = new Expr.Binary(binary.op, e1, e2);
+            }
+        } else if (expr instanceof Expr.Dot) {
+            var dot = (Expr.Dot)expr;
+            var atom = mapName(dot.atom, f);
+            if (atom != dot.atom) {
+                mapped = new Expr.Dot(atom, dot.member);
+            }
+        } else if (expr instanceof Expr.Call) {
+            // The callee is a method name
+            var call = (Expr.Call)expr;
+            var args = mapUses(call.args, f);
+            if (args != call.args) {
+                mapped = new Expr.Call(call.callee, args);
+            }
+        }
+        if (mapped != expr) {
+            mapped.type = expr.type;
+        }
+        return mapped;
+    }
+
+    // Returns args itself if nothing changed
+    static List<Expr> mapUses(List<Expr> args, Function<Expr.Id, Expr> f) {
+        List<Expr> mapped = args;
+        for (int i = 0; i < args.size(); i++) {
+            var arg = mapUses(args.get(i), f);
+            if (arg != args.get(i)) {
+                if (mapped == args) {
+                    mapped = new ArrayList<>(args);
+                }
+                mapped.set(i, arg);
+            }
+        }
+        return mapped;
+    }
+
+    static Expr mapName(Expr expr, Function<Expr.Id, Expr> f) {
+        var mapped = mapUses(expr, f);
+        return mapped instanceof Expr.Id ? mapped : expr;
     }
 }
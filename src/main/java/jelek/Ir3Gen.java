@@ -1,26 +1,25 @@
 package jelek;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import jelek.StaticCheck.StaticCheckException;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+import jelek.StaticCheck.Env;
 
 class Ir3Gen {
-    static int labelCounter = 0;
-    static int tempCounter = 0;
-    static HashMap<String, Ir3.Data> datas = new HashMap<>();
-    static HashMap<String, Ir3.Method> methods = new HashMap<>();
-
     static Ast.Expr.Id genTemp(Ast.Expr expr, Ir3.Method method) {
-        var temp = new Ast.Var(expr.type, "_t" + tempCounter++);
+        var temp = new Ast.Var(expr.type, "_t" + method.tempCounter++);
         method.vars.add(temp);
-        method.varMap.put(temp.id, temp.id);
         method.stmts.add(new Ir3.Stmt.Assign(temp.id, expr));
         var tempExpr = new Ast.Expr.Id(temp.id);
         tempExpr.type = temp.type;
         return tempExpr;
     }
 
-    static Ir3.Program gen(Ast.Program program) {
+    static Ir3.Program gen(Ast.Program program, Compilation compilation) {
+        var datas = compilation.datas;
+        var methods = compilation.methods;
+
         // Populate datas
         for (var class_ : program.classes) {
             var data = new Ir3.Data(class_.name, class_.vars);
@@ -28,6 +27,9 @@ class Ir3Gen {
         }
 
         // Populate methods
+        var classes = new ArrayList<Ast.Class>();
+        var astMethods = new ArrayList<Ast.Method>();
+        var ir3Methods = new ArrayList<Ir3.Method>();
         for (var class_ : program.classes) {
             for (var method : class_.methods) {
                 String name;
@@ -36,87 +38,134 @@ class Ir3Gen {
                 } else {
                     name = "%" + class_.name + "_" + method.id;
                 }
-                methods.put(name, new Ir3.Method(name, method.returnType));
+                // A later main replaces an earlier one in methods, but
+                // every method is still lowered into a shell of its own
+                var ir3Method = new Ir3.Method(name, method.returnType);
+                methods.put(name, ir3Method);
+                classes.add(class_);
+                astMethods.add(method);
+                ir3Methods.add(ir3Method);
             }
         }
 
-        for (var class_ : program.classes) {
-            genClass(class_);
-        }
+        // Each method only writes to its own Ir3.Method, so they are lowered
+        // in parallel. Both maps keep source order, so the output doesn't
+        // depend on scheduling.
+        new GenMethods(classes, astMethods, ir3Methods, program.arena, 0,
+                       astMethods.size(), compilation)
+            .invoke();
 
         return new Ir3.Program(new ArrayList<>(datas.values()),
                                new ArrayList<>(methods.values()));
     }
 
-    static void genClass(Ast.Class class_) {
-        for (var method : class_.methods) {
-            String methodName;
-            if (method.id == "main") {
-                methodName = method.id;
-            } else {
-                methodName = "%" + class_.name + "_" + method.id;
+    // Lowers a range of methods, split until each part has at most LEAF_SIZE
+    static class GenMethods extends RecursiveAction {
+        static final int LEAF_SIZE = 16;
+
+        final List<Ast.Class> classes; // By method
+        final List<Ast.Method> methods;
+        final List<Ir3.Method> ir3Methods;
+        final Arena arena; // Or null
+        final int start;
+        final int end;
+        final Compilation compilation;
+
+        GenMethods(List<Ast.Class> classes, List<Ast.Method> methods,
+                   List<Ir3.Method> ir3Methods, Arena arena, int start,
+                   int end, Compilation compilation) {
+            this.classes = classes;
+            this.methods = methods;
+            this.ir3Methods = ir3Methods;
+            this.arena = arena;
+            this.start = start;
+            this.end = end;
+            this.compilation = compilation;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > LEAF_SIZE) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new GenMethods(classes, methods, ir3Methods, arena,
+                                         start, mid, compilation),
+                          new GenMethods(classes, methods, ir3Methods, arena,
+                                         mid, end, compilation));
+                return;
             }
-            var ir3Method = methods.get(methodName);
-            var nameCounter = new HashMap<String, Integer>();
 
-            ir3Method.params.add(
-                new Ast.Var(new Ast.Type.Class(class_.name), "this"));
-            ir3Method.params.addAll(method.params);
-            for (var param : method.params) {
-                nameCounter.put(param.id, 1);
-                ir3Method.varMap.put(param.id, param.id);
+            for (int i = start; i < end; i++) {
+                genMethod(classes.get(i), methods.get(i), ir3Methods.get(i),
+                          arena, compilation);
             }
+        }
+    }
 
-            for (var var : method.vars) {
-                String name;
-                Integer count = nameCounter.getOrDefault(var.id, 0);
-                if (count == 0) {
-                    name = var.id;
-                    nameCounter.put(var.id, 1);
-                } else {
-                    name = var.id + "$" + count;
-                    nameCounter.put(var.id, count + 1);
-                }
+    // The body is in arena if the method has one there
+    static void genMethod(Ast.Class class_, Ast.Method method,
+                          Ir3.Method ir3Method, Arena arena,
+                          Compilation compilation) {
+        var nameCounter = new IdentityHashMap<String, Integer>();
+
+        ir3Method.params.add(new Ast.Var(
+            compilation.classDescs.get(class_.name).type, "this"));
+        ir3Method.params.addAll(method.params);
+        for (var param : method.params) {
+            nameCounter.put(param.id, 1);
+            ir3Method.slotNames.add(param.id);
+        }
 
-                ir3Method.vars.add(new Ast.Var(var.type, name));
-                ir3Method.varMap.put(var.id, name);
+        for (var var : method.vars) {
+            String name;
+            Integer count = nameCounter.getOrDefault(var.id, 0);
+            if (count == 0) {
+                name = var.id;
+                nameCounter.put(var.id, 1);
+            } else {
+                name = var.id + "$" + count;
+                nameCounter.put(var.id, count + 1);
             }
 
-            for (var stmt : method.stmts) {
-                StmtGen.gen(stmt, ir3Method);
-            }
+            ir3Method.vars.add(new Ast.Var(var.type, name));
+            ir3Method.slotNames.add(name);
+        }
 
-            labelCounter = 0;
-            tempCounter = 0;
+        if (method.body >= 0) {
+            new ArenaGen(arena, ir3Method, compilation).genStmts(method.body);
+            return;
+        }
+        var stmtGen = new StmtGen(ir3Method, compilation);
+        for (var stmt : method.stmts) {
+            stmtGen.gen(stmt);
         }
     }
 
-    static class StmtGen implements Ast.Stmt.Visitor<Void> {
+    // One StmtGen and its ExprGen lower a whole method
+    static class StmtGen implements Ast.Stmt.Visitor<Void, RuntimeException> {
         final Ir3.Method method;
+        final Compilation compilation;
+        final ExprGen exprGen;
 
-        StmtGen(Ir3.Method method) { this.method = method; }
-
-        static void gen(Ast.Stmt stmt, Ir3.Method method) {
-            try {
-                stmt.accept(new StmtGen(method));
-            } catch (StaticCheckException never) {
-                throw new AssertionError();
-            }
+        StmtGen(Ir3.Method method, Compilation compilation) {
+            this.method = method;
+            this.compilation = compilation;
+            this.exprGen = new ExprGen(method, compilation);
         }
 
+        void gen(Ast.Stmt stmt) { stmt.accept(this); }
+
         @Override
         public Void visitIf(Ast.Stmt.If stmt) {
-            var thenLabel = new Ir3.Stmt.Label(labelCounter++);
-            var endLabel = new Ir3.Stmt.Label(labelCounter++);
-            var cond = ExprGen.gen(stmt.cond, method);
-            method.stmts.add(new Ir3.Stmt.If(cond, thenLabel.label));
+            var thenLabel = new Ir3.Stmt.Label(method.labelCounter++);
+            var endLabel = new Ir3.Stmt.Label(method.labelCounter++);
+            exprGen.genBranch(stmt.cond, thenLabel.label, true);
             for (var _stmt : stmt.elseStmts) {
-                StmtGen.gen(_stmt, method);
+                gen(_stmt);
             }
             method.stmts.add(new Ir3.Stmt.Goto(endLabel.label));
             method.stmts.add(thenLabel);
             for (var _stmt : stmt.thenStmts) {
-                StmtGen.gen(_stmt, method);
+                gen(_stmt);
             }
             method.stmts.add(endLabel);
 
@@ -125,30 +174,46 @@ class Ir3Gen {
 
         @Override
         public Void visitWhile(Ast.Stmt.While stmt) {
-            var bodyLabel = new Ir3.Stmt.Label(labelCounter++);
-            var condLabel = new Ir3.Stmt.Label(labelCounter++);
+            var bodyLabel = new Ir3.Stmt.Label(method.labelCounter++);
+            var condLabel = new Ir3.Stmt.Label(method.labelCounter++);
             method.stmts.add(new Ir3.Stmt.Goto(condLabel.label));
             method.stmts.add(bodyLabel);
             for (var _stmt : stmt.stmts) {
-                StmtGen.gen(_stmt, method);
+                gen(_stmt);
             }
             method.stmts.add(condLabel);
-            var cond = ExprGen.gen(stmt.cond, method);
-            method.stmts.add(new Ir3.Stmt.If(cond, bodyLabel.label));
+            exprGen.genBranch(stmt.cond, bodyLabel.label, true);
 
             return null;
         }
 
         @Override
         public Void visitReadln(Ast.Stmt.Readln stmt) {
-            method.stmts.add(new Ir3.Stmt.Readln(method.varMap.get(stmt.id)));
+            if (stmt.depth == Env.METHOD_DEPTH) {
+                method.stmts.add(
+                    new Ir3.Stmt.Readln(method.slotNames.get(stmt.slot)));
+            } else {
+                // Class field, read through a temp
+                var thisExpr = new Ast.Expr.This();
+                thisExpr.type = method.params.get(0).type;
+                var classDesc = compilation.classDescs.get(
+                    ((Ast.Type.Class)thisExpr.type).name);
+                var temp = new Ast.Var(classDesc.vars.get(stmt.id),
+                                       "_t" + method.tempCounter++);
+                method.vars.add(temp);
+                method.stmts.add(new Ir3.Stmt.Readln(temp.id));
+                var tempExpr = new Ast.Expr.Id(temp.id);
+                tempExpr.type = temp.type;
+                method.stmts.add(
+                    new Ir3.Stmt.FieldAssign(thisExpr, stmt.id, tempExpr));
+            }
 
             return null;
         }
 
         @Override
         public Void visitPrintln(Ast.Stmt.Println stmt) {
-            var expr = ExprGen.gen(stmt.expr, method);
+            var expr = exprGen.gen(stmt.expr);
             method.stmts.add(new Ir3.Stmt.Println(expr));
 
             return null;
@@ -156,11 +221,11 @@ class Ir3Gen {
 
         @Override
         public Void visitAssign(Ast.Stmt.Assign stmt) {
-            var rhs = ExprGen.gen(stmt.rhs, method);
+            var rhs = exprGen.gen(stmt.rhs);
 
-            if (method.varMap.containsKey(stmt.lhs)) {
+            if (stmt.depth == Env.METHOD_DEPTH) {
                 method.stmts.add(
-                    new Ir3.Stmt.Assign(method.varMap.get(stmt.lhs), rhs));
+                    new Ir3.Stmt.Assign(method.slotNames.get(stmt.slot), rhs));
             } else {
                 // Class field
                 var thisExpr = new Ast.Expr.This();
@@ -174,8 +239,8 @@ class Ir3Gen {
 
         @Override
         public Void visitFieldAssign(Ast.Stmt.FieldAssign stmt) {
-            var rhsExpr = ExprGen.gen(stmt.rhs, method);
-            var lhsExpr = ExprGen.gen(stmt.lhsExpr, method);
+            var rhsExpr = exprGen.gen(stmt.rhs);
+            var lhsExpr = exprGen.gen(stmt.lhsExpr);
 
             method.stmts.add(
                 new Ir3.Stmt.FieldAssign(lhsExpr, stmt.lhsField, rhsExpr));
@@ -198,7 +263,7 @@ class Ir3Gen {
                 args.add(thisExpr);
             } else if (stmt.callee instanceof Ast.Expr.Dot) {
                 var callee = (Ast.Expr.Dot)stmt.callee;
-                var atom = ExprGen.gen(callee.atom, method);
+                var atom = exprGen.gen(callee.atom);
                 methodName = "%" + ((Ast.Type.Class)atom.type).name + "_" +
                              callee.member;
 
@@ -208,7 +273,7 @@ class Ir3Gen {
             }
 
             for (var arg : stmt.args) {
-                args.add(ExprGen.gen(arg, method));
+                args.add(exprGen.gen(arg));
             }
 
             method.stmts.add(new Ir3.Stmt.Call(methodName, args));
@@ -220,7 +285,7 @@ class Ir3Gen {
         public Void visitReturn(Ast.Stmt.Return stmt) {
             Ast.Expr expr = null;
             if (stmt.expr != null) {
-                expr = ExprGen.gen(stmt.expr, method);
+                expr = exprGen.gen(stmt.expr);
                 expr = genTemp(expr, method);
             }
             method.stmts.add(new Ir3.Stmt.Return(expr));
@@ -229,16 +294,99 @@ class Ir3Gen {
         }
     }
 
-    static class ExprGen implements Ast.Expr.Visitor<Ast.Expr> {
+    static class ExprGen
+        implements Ast.Expr.Visitor<Ast.Expr, RuntimeException> {
         final Ir3.Method method;
+        final Compilation compilation;
 
-        ExprGen(Ir3.Method method) { this.method = method; }
+        ExprGen(Ir3.Method method, Compilation compilation) {
+            this.method = method;
+            this.compilation = compilation;
+        }
 
-        static Ast.Expr gen(Ast.Expr expr, Ir3.Method method) {
-            try {
-                return expr.accept(new ExprGen(method));
-            } catch (StaticCheckException never) {
-                throw new AssertionError();
+        Ast.Expr gen(Ast.Expr expr) { return expr.accept(this); }
+
+        // Jumps to label if cond is sense, and falls through if not. The
+        // right operand of && and || is only evaluated if the left doesn't
+        // decide, a comparison goes in the If itself, and ! swaps the sense.
+        void genBranch(Ast.Expr cond, int label, boolean sense) {
+            if (cond instanceof Ast.Expr.Bool) {
+                if (((Ast.Expr.Bool)cond).value == sense) {
+                    method.stmts.add(new Ir3.Stmt.Goto(label));
+                }
+            } else if (cond instanceof Ast.Expr.Unary &&
+                       ((Ast.Expr.Unary)cond).op == Ast.Expr.UnaryOp.NOT) {
+                genBranch(((Ast.Expr.Unary)cond).atom, label, !sense);
+            } else if (cond instanceof Ast.Expr.Binary &&
+                       (((Ast.Expr.Binary)cond).op == Ast.Expr.BinaryOp.AND ||
+                        ((Ast.Expr.Binary)cond).op == Ast.Expr.BinaryOp.OR)) {
+                var binary = (Ast.Expr.Binary)cond;
+                // Whether the left operand alone decides when it is sense
+                boolean decides = (binary.op == Ast.Expr.BinaryOp.OR) == sense;
+                if (decides) {
+                    genBranch(binary.e1, label, sense);
+                    genBranch(binary.e2, label, sense);
+                } else {
+                    int skip = method.labelCounter++;
+                    genBranch(binary.e1, skip, !sense);
+                    genBranch(binary.e2, label, sense);
+                    method.stmts.add(new Ir3.Stmt.Label(skip));
+                }
+            } else if (cond instanceof Ast.Expr.Binary &&
+                       negated(((Ast.Expr.Binary)cond).op) != null) {
+                var binary = (Ast.Expr.Binary)cond;
+                var e1 = gen(binary.e1);
+                var e2 = gen(binary.e2);
+                var op = sense ? binary.op : negated(binary.op);
+                var binaryExpr = new Ast.Expr.Binary(op, e1, e2);
+                binaryExpr.type = Ast.Type.BOOL;
+                method.stmts.add(new Ir3.Stmt.If(binaryExpr, label));
+            } else {
+                var atom = gen(cond);
+                if (!sense) {
+                    var falseExpr = new Ast.Expr.Bool(false);
+                    falseExpr.type = Ast.Type.BOOL;
+                    atom = new Ast.Expr.Binary(Ast.Expr.BinaryOp.EQ, atom,
+                                               falseExpr);
+                    atom.type = Ast.Type.BOOL;
+                }
+                method.stmts.add(new Ir3.Stmt.If(atom, label));
+            }
+        }
+
+        // The comparison true exactly when op is false, or null if op isn't
+        // a comparison
+        static Ast.Expr.BinaryOp negated(Ast.Expr.BinaryOp op) {
+            switch (op) {
+            case LT:
+                return Ast.Expr.BinaryOp.GEQ;
+            case GT:
+                return Ast.Expr.BinaryOp.LEQ;
+            case LEQ:
+                return Ast.Expr.BinaryOp.GT;
+            case GEQ:
+                return Ast.Expr.BinaryOp.LT;
+            case EQ:
+                return Ast.Expr.BinaryOp.NEQ;
+            case NEQ:
+                return Ast.Expr.BinaryOp.EQ;
+            default:
+                return null;
+            }
+        }
+
+        // Whether evaluating expr can't call a method or fail
+        static boolean effectFree(Ast.Expr expr) {
+            if (expr instanceof Ast.Expr.Call || expr instanceof Ast.Expr.Dot) {
+                return false;
+            } else if (expr instanceof Ast.Expr.Unary) {
+                return effectFree(((Ast.Expr.Unary)expr).atom);
+            } else if (expr instanceof Ast.Expr.Binary) {
+                var binary = (Ast.Expr.Binary)expr;
+                return binary.op != Ast.Expr.BinaryOp.DIV &&
+                    effectFree(binary.e1) && effectFree(binary.e2);
+            } else {
+                return true;
             }
         }
 
@@ -260,8 +408,8 @@ class Ir3Gen {
         @Override
         public Ast.Expr visitId(Ast.Expr.Id expr) {
             Ast.Expr.Id idExpr;
-            if (method.varMap.containsKey(expr.id)) {
-                idExpr = new Ast.Expr.Id(method.varMap.get(expr.id));
+            if (expr.depth == Env.METHOD_DEPTH) {
+                idExpr = new Ast.Expr.Id(method.slotNames.get(expr.slot));
                 idExpr.type = expr.type;
             } else {
                 // Class field
@@ -278,7 +426,7 @@ class Ir3Gen {
 
         @Override
         public Ast.Expr visitUnary(Ast.Expr.Unary expr) {
-            var atom = ExprGen.gen(expr.atom, method);
+            var atom = gen(expr.atom);
             var unaryExpr = new Ast.Expr.Unary(expr.op, atom);
             unaryExpr.type = expr.type;
 
@@ -287,8 +435,25 @@ class Ir3Gen {
 
         @Override
         public Ast.Expr visitBinary(Ast.Expr.Binary expr) {
-            var e1 = ExprGen.gen(expr.e1, method);
-            var e2 = ExprGen.gen(expr.e2, method);
+            if ((expr.op == Ast.Expr.BinaryOp.AND ||
+                 expr.op == Ast.Expr.BinaryOp.OR) &&
+                !effectFree(expr.e2)) {
+                // Short-circuit, as in a condition: the result starts as
+                // what the left operand decides, and the right only runs
+                // if it doesn't
+                boolean decides = expr.op == Ast.Expr.BinaryOp.OR;
+                var decided = new Ast.Expr.Bool(decides);
+                decided.type = Ast.Type.BOOL;
+                var temp = genTemp(decided, method);
+                int skip = method.labelCounter++;
+                genBranch(expr.e1, skip, decides);
+                method.stmts.add(new Ir3.Stmt.Assign(temp.id, gen(expr.e2)));
+                method.stmts.add(new Ir3.Stmt.Label(skip));
+                return temp;
+            }
+
+            var e1 = gen(expr.e1);
+            var e2 = gen(expr.e2);
             var binaryExpr = new Ast.Expr.Binary(expr.op, e1, e2);
             binaryExpr.type = expr.type;
 
@@ -297,7 +462,7 @@ class Ir3Gen {
 
         @Override
         public Ast.Expr visitDot(Ast.Expr.Dot expr) {
-            var atom = ExprGen.gen(expr.atom, method);
+            var atom = gen(expr.atom);
             var dotExpr = new Ast.Expr.Dot(atom, expr.member);
             dotExpr.type = expr.type;
 
@@ -320,7 +485,7 @@ class Ir3Gen {
                 thisExpr.type = method.params.get(0).type;
                 args.add(thisExpr);
             } else if (expr.callee instanceof Ast.Expr.Dot) {
-                var atom = ExprGen.gen(((Ast.Expr.Dot)callee).atom, method);
+                var atom = gen(((Ast.Expr.Dot)callee).atom);
                 var methodName = "%" + ((Ast.Type.Class)atom.type).name + "_" +
                                  ((Ast.Expr.Dot)callee).member;
                 callee = new Ast.Expr.Id(methodName);
@@ -331,7 +496,7 @@ class Ir3Gen {
                 throw new AssertionError();
             }
             for (var arg : expr.args) {
-                args.add(ExprGen.gen(arg, method));
+                args.add(gen(arg));
             }
 
             var callExpr = new Ast.Expr.Call(callee, args);
@@ -355,4 +520,285 @@ class Ir3Gen {
             return expr;
         }
     }
+
+    // Lowers a method body in an Arena the way StmtGen and ExprGen lower
+    // nodes, to the same IR3. Only the IR3 is allocated: the arena's nodes
+    // are read where they are.
+    static class ArenaGen {
+        final Arena arena;
+        final Ir3.Method method;
+        final Compilation compilation;
+
+        ArenaGen(Arena arena, Ir3.Method method, Compilation compilation) {
+            this.arena = arena;
+            this.method = method;
+            this.compilation = compilation;
+        }
+
+        String name(int symbol) { return compilation.symbols.name(symbol); }
+
+        Ast.Expr.This this_() {
+            var thisExpr = new Ast.Expr.This();
+            thisExpr.type = method.params.get(0).type;
+            return thisExpr;
+        }
+
+        void genStmts(int stmts) {
+            for (int i = 0; i < arena.length(stmts); i++) {
+                genStmt(arena.get(stmts, i));
+            }
+        }
+
+        void genStmt(int stmt) {
+            int a = arena.a[stmt];
+            int b = arena.b[stmt];
+            int c = arena.c[stmt];
+            switch (arena.kinds[stmt]) {
+            case Arena.IF: {
+                var thenLabel = new Ir3.Stmt.Label(method.labelCounter++);
+                var endLabel = new Ir3.Stmt.Label(method.labelCounter++);
+                genBranch(a, thenLabel.label, true);
+                genStmts(c);
+                method.stmts.add(new Ir3.Stmt.Goto(endLabel.label));
+                method.stmts.add(thenLabel);
+                genStmts(b);
+                method.stmts.add(endLabel);
+                break;
+            }
+            case Arena.WHILE: {
+                var bodyLabel = new Ir3.Stmt.Label(method.labelCounter++);
+                var condLabel = new Ir3.Stmt.Label(method.labelCounter++);
+                method.stmts.add(new Ir3.Stmt.Goto(condLabel.label));
+                method.stmts.add(bodyLabel);
+                genStmts(b);
+                method.stmts.add(condLabel);
+                genBranch(a, bodyLabel.label, true);
+                break;
+            }
+            case Arena.READLN:
+                if (b != Arena.FIELD) {
+                    method.stmts.add(
+                        new Ir3.Stmt.Readln(method.slotNames.get(b)));
+                } else {
+                    // Class field, read through a temp
+                    var thisExpr = this_();
+                    var classDesc = compilation.classDescs.get(
+                        ((Ast.Type.Class)thisExpr.type).name);
+                    var temp = new Ast.Var(classDesc.vars.get(name(a)),
+                                           "_t" + method.tempCounter++);
+                    method.vars.add(temp);
+                    method.stmts.add(new Ir3.Stmt.Readln(temp.id));
+                    var tempExpr = new Ast.Expr.Id(temp.id);
+                    tempExpr.type = temp.type;
+                    method.stmts.add(
+                        new Ir3.Stmt.FieldAssign(thisExpr, name(a), tempExpr));
+                }
+                break;
+            case Arena.PRINTLN:
+                method.stmts.add(new Ir3.Stmt.Println(gen(a)));
+                break;
+            case Arena.ASSIGN: {
+                var rhs = gen(b);
+                if (c != Arena.FIELD) {
+                    method.stmts.add(
+                        new Ir3.Stmt.Assign(method.slotNames.get(c), rhs));
+                } else {
+                    method.stmts.add(
+                        new Ir3.Stmt.FieldAssign(this_(), name(a), rhs));
+                }
+                break;
+            }
+            case Arena.FIELD_ASSIGN: {
+                var rhsExpr = gen(c);
+                var lhsExpr = gen(a);
+                method.stmts.add(
+                    new Ir3.Stmt.FieldAssign(lhsExpr, name(b), rhsExpr));
+                break;
+            }
+            case Arena.CALL_STMT: {
+                var args = new ArrayList<Ast.Expr>();
+                var methodName = genCallee(a, args);
+                genArgs(b, args);
+                method.stmts.add(new Ir3.Stmt.Call(methodName, args));
+                break;
+            }
+            case Arena.RETURN: {
+                Ast.Expr expr = null;
+                if (a >= 0) {
+                    expr = genTemp(gen(a), method);
+                }
+                method.stmts.add(new Ir3.Stmt.Return(expr));
+                break;
+            }
+            default:
+                throw new AssertionError();
+            }
+        }
+
+        // Adds the object a call is on to args, and returns the name of the
+        // method it calls
+        String genCallee(int callee, ArrayList<Ast.Expr> args) {
+            if (arena.kinds[callee] == Arena.ID) {
+                var className =
+                    ((Ast.Type.Class)method.params.get(0).type).name;
+                args.add(this_());
+                return "%" + className + "_" + name(arena.a[callee]);
+            } else if (arena.kinds[callee] == Arena.DOT) {
+                var atom = gen(arena.a[callee]);
+                args.add(atom);
+                return "%" + ((Ast.Type.Class)atom.type).name + "_" +
+                    name(arena.b[callee]);
+            } else {
+                throw new AssertionError();
+            }
+        }
+
+        void genArgs(int list, ArrayList<Ast.Expr> args) {
+            for (int i = 0; i < arena.length(list); i++) {
+                args.add(gen(arena.get(list, i)));
+            }
+        }
+
+        // As ExprGen.genBranch
+        void genBranch(int cond, int label, boolean sense) {
+            byte kind = arena.kinds[cond];
+            int a = arena.a[cond];
+            var op = kind == Arena.BINARY ? Arena.BINARY_OPS[a] : null;
+            if (kind == Arena.BOOL) {
+                if ((a != 0) == sense) {
+                    method.stmts.add(new Ir3.Stmt.Goto(label));
+                }
+            } else if (kind == Arena.UNARY &&
+                       Arena.UNARY_OPS[a] == Ast.Expr.UnaryOp.NOT) {
+                genBranch(arena.b[cond], label, !sense);
+            } else if (op == Ast.Expr.BinaryOp.AND ||
+                       op == Ast.Expr.BinaryOp.OR) {
+                boolean decides = (op == Ast.Expr.BinaryOp.OR) == sense;
+                if (decides) {
+                    genBranch(arena.b[cond], label, sense);
+                    genBranch(arena.c[cond], label, sense);
+                } else {
+                    int skip = method.labelCounter++;
+                    genBranch(arena.b[cond], skip, !sense);
+                    genBranch(arena.c[cond], label, sense);
+                    method.stmts.add(new Ir3.Stmt.Label(skip));
+                }
+            } else if (op != null && ExprGen.negated(op) != null) {
+                var e1 = gen(arena.b[cond]);
+                var e2 = gen(arena.c[cond]);
+                var binaryExpr = new Ast.Expr.Binary(
+                    sense ? op : ExprGen.negated(op), e1, e2);
+                binaryExpr.type = Ast.Type.BOOL;
+                method.stmts.add(new Ir3.Stmt.If(binaryExpr, label));
+            } else {
+                var atom = gen(cond);
+                if (!sense) {
+                    var falseExpr = new Ast.Expr.Bool(false);
+                    falseExpr.type = Ast.Type.BOOL;
+                    atom = new Ast.Expr.Binary(Ast.Expr.BinaryOp.EQ, atom,
+                                               falseExpr);
+                    atom.type = Ast.Type.BOOL;
+                }
+                method.stmts.add(new Ir3.Stmt.If(atom, label));
+            }
+        }
+
+        // As ExprGen.effectFree
+        boolean effectFree(int expr) {
+            switch (arena.kinds[expr]) {
+            case Arena.CALL:
+            case Arena.DOT:
+                return false;
+            case Arena.UNARY:
+                return effectFree(arena.b[expr]);
+            case Arena.BINARY:
+                return Arena.BINARY_OPS[arena.a[expr]] !=
+                    Ast.Expr.BinaryOp.DIV &&
+                    effectFree(arena.b[expr]) && effectFree(arena.c[expr]);
+            default:
+                return true;
+            }
+        }
+
+        Ast.Expr gen(int expr) {
+            int a = arena.a[expr];
+            int b = arena.b[expr];
+            Ast.Expr result;
+            switch (arena.kinds[expr]) {
+            case Arena.STR:
+                result = new Ast.Expr.Str(arena.strings.get(a));
+                break;
+            case Arena.INT:
+                result = new Ast.Expr.Int(a);
+                break;
+            case Arena.BOOL:
+                result = new Ast.Expr.Bool(a != 0);
+                break;
+            case Arena.ID:
+                if (b != Arena.FIELD) {
+                    result = new Ast.Expr.Id(method.slotNames.get(b));
+                    break;
+                }
+                // Class field
+                var dotExpr = new Ast.Expr.Dot(this_(), name(a));
+                dotExpr.type = arena.type(expr);
+                return genTemp(dotExpr, method);
+            case Arena.UNARY:
+                result = new Ast.Expr.Unary(Arena.UNARY_OPS[a], gen(b));
+                result.type = arena.type(expr);
+                return genTemp(result, method);
+            case Arena.BINARY:
+                return genBinary(expr);
+            case Arena.DOT:
+                result = new Ast.Expr.Dot(gen(a), name(b));
+                result.type = arena.type(expr);
+                return genTemp(result, method);
+            case Arena.CALL: {
+                var args = new ArrayList<Ast.Expr>();
+                var callee = new Ast.Expr.Id(genCallee(a, args));
+                callee.type = arena.type(a);
+                genArgs(b, args);
+                result = new Ast.Expr.Call(callee, args);
+                result.type = arena.type(expr);
+                return genTemp(result, method);
+            }
+            case Arena.NEW:
+                result = new Ast.Expr.New(name(a));
+                result.type = arena.type(expr);
+                return genTemp(result, method);
+            case Arena.THIS:
+                return this_();
+            case Arena.NULL:
+                result = new Ast.Expr.Null();
+                break;
+            default:
+                throw new AssertionError();
+            }
+            result.type = arena.type(expr);
+            return result;
+        }
+
+        // As ExprGen.visitBinary
+        Ast.Expr genBinary(int expr) {
+            var op = Arena.BINARY_OPS[arena.a[expr]];
+            int e1 = arena.b[expr];
+            int e2 = arena.c[expr];
+            if ((op == Ast.Expr.BinaryOp.AND || op == Ast.Expr.BinaryOp.OR) &&
+                !effectFree(e2)) {
+                boolean decides = op == Ast.Expr.BinaryOp.OR;
+                var decided = new Ast.Expr.Bool(decides);
+                decided.type = Ast.Type.BOOL;
+                var temp = genTemp(decided, method);
+                int skip = method.labelCounter++;
+                genBranch(e1, skip, decides);
+                method.stmts.add(new Ir3.Stmt.Assign(temp.id, gen(e2)));
+                method.stmts.add(new Ir3.Stmt.Label(skip));
+                return temp;
+            }
+
+            var binaryExpr = new Ast.Expr.Binary(op, gen(e1), gen(e2));
+            binaryExpr.type = arena.type(expr);
+            return genTemp(binaryExpr, method);
+        }
+    }
 }
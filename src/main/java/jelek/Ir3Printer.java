@@ -1,39 +1,51 @@
 package jelek;
 
+import java.io.PrintStream;
+import java.util.List;
 import java.util.stream.Collectors;
 import jelek.Ast.Expr.UnaryOp;
-import jelek.StaticCheck.StaticCheckException;
 
-class Ir3Printer implements Ir3.Stmt.Visitor<Void>, Ast.Expr.Visitor<String> {
-    static void print(Ir3.Program ir3) {
-        System.out.print("======= CData3 =======\n\n");
+// Statements are written into one reused buffer, expressions included, and
+// printed a line at a time
+class Ir3Printer implements Ir3.Stmt.Visitor<Void>,
+                            Ast.Expr.Visitor<Void, RuntimeException> {
+    final PrintStream out;
+    final StringBuilder line = new StringBuilder();
+
+    Ir3Printer(PrintStream out) { this.out = out; }
+
+    static void print(Ir3.Program ir3) { print(ir3, System.out); }
+
+    static void print(Ir3.Program ir3, PrintStream out) {
+        var printer = new Ir3Printer(out);
+        out.print("======= CData3 =======\n\n");
         for (var data : ir3.datas) {
-            System.out.print("class " + data.cname + " {\n");
+            out.print("class " + data.cname + " {\n");
             for (var var : data.vars) {
                 String varType = getSimpleType(var.type);
-                System.out.print("    " + varType + " " + var.id + ";\n");
+                out.print("    " + varType + " " + var.id + ";\n");
             }
-            System.out.print("}\n\n");
+            out.print("}\n\n");
         }
-        System.out.print("======= CMtd3 =======\n\n");
+        out.print("======= CMtd3 =======\n\n");
         for (var method : ir3.methods) {
-            System.out.println(getSimpleType(method.returnType) + " " +
-                               method.name + "(" +
-                               method.params.stream()
-                                   .map(p -> getSimpleType(p.type) + " " + p.id)
-                                   .collect(Collectors.joining(", ")) +
-                               ") {");
+            out.println(getSimpleType(method.returnType) + " " + method.name +
+                        "(" +
+                        method.params.stream()
+                            .map(p -> getSimpleType(p.type) + " " + p.id)
+                            .collect(Collectors.joining(", ")) +
+                        ") {");
             for (var var : method.vars) {
-                System.out.println("    " + getSimpleType(var.type) + " " +
-                                   var.id + ";");
+                out.println("    " + getSimpleType(var.type) + " " + var.id +
+                            ";");
             }
-            System.out.println();
+            out.println();
             for (var stmt : method.stmts) {
-                Ir3Printer.print(stmt);
+                stmt.accept(printer);
             }
-            System.out.print("}\n\n");
+            out.print("}\n\n");
         }
-        System.out.print("=====fx== End of IR3 Program =======\n\n");
+        out.print("=====fx== End of IR3 Program =======\n\n");
     }
 
     static String getSimpleType(Ast.Type type) {
@@ -44,118 +56,158 @@ class Ir3Printer implements Ir3.Stmt.Visitor<Void>, Ast.Expr.Visitor<String> {
         }
     }
 
-    static void print(Ir3.Stmt stmt) { stmt.accept(new Ir3Printer()); }
+    void expr(Ast.Expr expr) { expr.accept(this); }
 
-    static String serialize(Ast.Expr expr) {
-        try {
-            return expr.accept(new Ir3Printer());
-        } catch (StaticCheckException never) {
-            throw new AssertionError();
+    void exprs(List<Ast.Expr> exprs) {
+        for (int i = 0; i < exprs.size(); i++) {
+            if (i > 0) {
+                line.append(", ");
+            }
+            expr(exprs.get(i));
         }
     }
 
+    // Starts a statement line
+    StringBuilder indent() {
+        line.setLength(0);
+        return line.append("    ");
+    }
+
     @Override
     public Void visitLabel(Ir3.Stmt.Label stmt) {
-        System.out.println("L" + stmt.label + ":");
+        out.println("L" + stmt.label + ":");
 
         return null;
     }
 
     @Override
     public Void visitIf(Ir3.Stmt.If stmt) {
-        System.out.println("    if (" + serialize(stmt.cond) + ") goto L" +
-                           stmt.label + ";");
+        indent().append("if (");
+        expr(stmt.cond);
+        line.append(") goto L").append(stmt.label).append(';');
+        out.println(line);
 
         return null;
     }
 
     @Override
     public Void visitGoto(Ir3.Stmt.Goto stmt) {
-        System.out.println("    goto L" + stmt.label + ";");
+        out.println("    goto L" + stmt.label + ";");
 
         return null;
     }
 
     @Override
     public Void visitReadln(Ir3.Stmt.Readln stmt) {
-        System.out.println("    readln(" + stmt.id + ");");
+        out.println("    readln(" + stmt.id + ");");
 
         return null;
     }
 
     @Override
     public Void visitPrintln(Ir3.Stmt.Println stmt) {
-        System.out.println("    println(" + serialize(stmt.expr) + ");");
+        indent().append("println(");
+        expr(stmt.expr);
+        line.append(");");
+        out.println(line);
 
         return null;
     }
 
     @Override
     public Void visitAssign(Ir3.Stmt.Assign stmt) {
-        System.out.println("    " + stmt.lhs + " = " + serialize(stmt.rhs) +
-                           ";");
+        indent().append(stmt.lhs).append(" = ");
+        expr(stmt.rhs);
+        line.append(';');
+        out.println(line);
 
         return null;
     }
 
     @Override
     public Void visitFieldAssign(Ir3.Stmt.FieldAssign stmt) {
-        System.out.println("    " + serialize(stmt.lhsExpr) + "." +
-                           stmt.lhsField + " = " + serialize(stmt.rhs) + ";");
+        indent();
+        expr(stmt.lhsExpr);
+        line.append('.').append(stmt.lhsField).append(" = ");
+        expr(stmt.rhs);
+        line.append(';');
+        out.println(line);
 
         return null;
     }
 
     @Override
     public Void visitCall(Ir3.Stmt.Call stmt) {
-        System.out.println("    " + stmt.id + "(" +
-                           stmt.args.stream()
-                               .map(Ir3Printer::serialize)
-                               .collect(Collectors.joining(", ")) +
-                           ");");
+        indent().append(stmt.id).append('(');
+        exprs(stmt.args);
+        line.append(");");
+        out.println(line);
 
         return null;
     }
 
     @Override
     public Void visitReturn(Ir3.Stmt.Return stmt) {
-        var expr = stmt.expr == null ? "" : (" " + serialize(stmt.expr));
-        System.out.println("    return" + expr + ";");
+        indent().append("return");
+        if (stmt.expr != null) {
+            line.append(' ');
+            expr(stmt.expr);
+        }
+        line.append(';');
+        out.println(line);
 
         return null;
     }
 
     @Override
-    public String visitStr(Ast.Expr.Str expr) {
-        return "\"" + expr.value + "\"";
+    public Void visitPhi(Ir3.Stmt.Phi stmt) {
+        indent().append(stmt.lhs).append(" = phi(");
+        exprs(stmt.args);
+        line.append(");");
+        out.println(line);
+
+        return null;
     }
 
     @Override
-    public String visitInt(Ast.Expr.Int expr) {
-        return expr.value.toString();
+    public Void visitStr(Ast.Expr.Str expr) {
+        line.append('"').append(expr.value).append('"');
+
+        return null;
     }
 
     @Override
-    public String visitBool(Ast.Expr.Bool expr) {
-        return expr.value.toString();
+    public Void visitInt(Ast.Expr.Int expr) {
+        line.append(expr.value);
+
+        return null;
     }
 
     @Override
-    public String visitId(Ast.Expr.Id expr) {
-        return expr.id;
+    public Void visitBool(Ast.Expr.Bool expr) {
+        line.append(expr.value);
+
+        return null;
     }
 
     @Override
-    public String visitUnary(Ast.Expr.Unary expr) {
-        if (expr.op == UnaryOp.NEG) {
-            return "-(" + serialize(expr.atom) + ")";
-        } else {
-            return "!(" + serialize(expr.atom) + ")";
-        }
+    public Void visitId(Ast.Expr.Id expr) {
+        line.append(expr.id);
+
+        return null;
     }
 
     @Override
-    public String visitBinary(Ast.Expr.Binary expr) {
+    public Void visitUnary(Ast.Expr.Unary expr) {
+        line.append(expr.op == UnaryOp.NEG ? "-(" : "!(");
+        expr(expr.atom);
+        line.append(')');
+
+        return null;
+    }
+
+    @Override
+    public Void visitBinary(Ast.Expr.Binary expr) {
         String op;
         switch (expr.op) {
         case PLUS:
@@ -198,36 +250,51 @@ class Ir3Printer implements Ir3.Stmt.Visitor<Void>, Ast.Expr.Visitor<String> {
             op = "💩";
         }
 
-        return "(" + serialize(expr.e1) + ") " + op + " (" +
-            serialize(expr.e2) + ")";
+        line.append('(');
+        expr(expr.e1);
+        line.append(") ").append(op).append(" (");
+        expr(expr.e2);
+        line.append(')');
+
+        return null;
     }
 
     @Override
-    public String visitDot(Ast.Expr.Dot expr) {
-        return serialize(expr.atom) + "." + expr.member;
+    public Void visitDot(Ast.Expr.Dot expr) {
+        expr(expr.atom);
+        line.append('.').append(expr.member);
+
+        return null;
     }
 
     @Override
-    public String visitCall(Ast.Expr.Call expr) {
-        return serialize(expr.callee) + "(" +
-            expr.args.stream()
-                .map(Ir3Printer::serialize)
-                .collect(Collectors.joining(", ")) +
-            ")";
+    public Void visitCall(Ast.Expr.Call expr) {
+        expr(expr.callee);
+        line.append('(');
+        exprs(expr.args);
+        line.append(')');
+
+        return null;
     }
 
     @Override
-    public String visitNew(Ast.Expr.New expr) {
-        return "new " + expr.cname + "()";
+    public Void visitNew(Ast.Expr.New expr) {
+        line.append("new ").append(expr.cname).append("()");
+
+        return null;
     }
 
     @Override
-    public String visitThis(Ast.Expr.This expr) {
-        return "this";
+    public Void visitThis(Ast.Expr.This expr) {
+        line.append("this");
+
+        return null;
     }
 
     @Override
-    public String visitNull(Ast.Expr.Null expr) {
-        return "NULL";
+    public Void visitNull(Ast.Expr.Null expr) {
+        line.append("NULL");
+
+        return null;
     }
 }
@@ -0,0 +1,230 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+// Cleans up the jumps of a method out of SSA form. A jump to a jump goes
+// straight to where that one does, to the first of the labels there, and a
+// jump to a return becomes the return. A jump to the next statement goes,
+// and so does a branch over a lone goto, which becomes the goto with the
+// condition negated. Then what follows a goto or return up to the next
+// label can't be reached and goes, and so do labels nothing jumps to. This
+// repeats until nothing changes, and the labels left are renumbered from 0
+// in order.
+class Jumps {
+    // Returns the number of statements removed
+    static int run(Ir3.Method method) {
+        int before = method.stmts.size();
+        boolean changed;
+        do {
+            changed = thread(method) | invert(method) | sweep(method);
+        } while (changed);
+        renumber(method);
+        return before - method.stmts.size();
+    }
+
+    static HashMap<Integer, Integer> labels(List<Ir3.Stmt> stmts) {
+        var labels = new HashMap<Integer, Integer>(); // Indices, by label
+        for (int i = 0; i < stmts.size(); i++) {
+            if (stmts.get(i) instanceof Ir3.Stmt.Label) {
+                labels.put(((Ir3.Stmt.Label)stmts.get(i)).label, i);
+            }
+        }
+        return labels;
+    }
+
+    // The index of the first statement from i on that isn't a label, which
+    // is what runs on reaching i
+    static int skip(List<Ir3.Stmt> stmts, int i) {
+        while (i < stmts.size() && stmts.get(i) instanceof Ir3.Stmt.Label) {
+            i++;
+        }
+        return i;
+    }
+
+    // The label a jump to label ends up at, past any gotos, and the first
+    // of the labels in a row there. Gotos that go round are left be.
+    static int target(List<Ir3.Stmt> stmts, HashMap<Integer, Integer> labels,
+                      int label) {
+        int to = label;
+        var seen = new HashSet<Integer>(); // Indices of the gotos
+        int i = skip(stmts, labels.get(to));
+        while (i < stmts.size() && stmts.get(i) instanceof Ir3.Stmt.Goto) {
+            if (!seen.add(i)) {
+                return label;
+            }
+            to = ((Ir3.Stmt.Goto)stmts.get(i)).label;
+            i = skip(stmts, labels.get(to));
+        }
+        i = labels.get(to);
+        while (i > 0 && stmts.get(i - 1) instanceof Ir3.Stmt.Label) {
+            i--;
+        }
+        return ((Ir3.Stmt.Label)stmts.get(i)).label;
+    }
+
+    static boolean thread(Ir3.Method method) {
+        var stmts = method.stmts;
+        var labels = labels(stmts);
+        boolean changed = false;
+        var threaded = new ArrayList<Ir3.Stmt>();
+        for (int i = 0; i < stmts.size(); i++) {
+            var stmt = stmts.get(i);
+            int label;
+            if (stmt instanceof Ir3.Stmt.Goto) {
+                label = ((Ir3.Stmt.Goto)stmt).label;
+            } else if (stmt instanceof Ir3.Stmt.If) {
+                label = ((Ir3.Stmt.If)stmt).label;
+            } else {
+                threaded.add(stmt);
+                continue;
+            }
+
+            int to = target(stmts, labels, label);
+            int at = skip(stmts, labels.get(to));
+            if (at == skip(stmts, i + 1)) {
+                // The conditions are atoms or comparisons of them, so an if
+                // can go as well
+                changed = true;
+                continue;
+            } else if (stmt instanceof Ir3.Stmt.Goto && at < stmts.size() &&
+                       stmts.get(at) instanceof Ir3.Stmt.Return) {
+                threaded.add(copy((Ir3.Stmt.Return)stmts.get(at)));
+                changed = true;
+                continue;
+            } else if (to != label) {
+                if (stmt instanceof Ir3.Stmt.Goto) {
+                    ((Ir3.Stmt.Goto)stmt).label = to;
+                } else {
+                    ((Ir3.Stmt.If)stmt).label = to;
+                }
+                changed = true;
+            }
+            threaded.add(stmt);
+        }
+        method.stmts = threaded;
+        return changed;
+    }
+
+    static Ir3.Stmt.Return copy(Ir3.Stmt.Return return_) {
+        var expr = return_.expr;
+        if (expr instanceof Ast.Expr.Id) {
+            expr = Ssa.id(((Ast.Expr.Id)expr).id, expr.type);
+        }
+        return new Ir3.Stmt.Return(expr);
+    }
+
+    // Turns "if c goto L1; goto L2; L1:" into "if !c goto L2; L1:"
+    static boolean invert(Ir3.Method method) {
+        var stmts = method.stmts;
+        var labels = labels(stmts);
+        boolean changed = false;
+        var inverted = new ArrayList<Ir3.Stmt>();
+        for (int i = 0; i < stmts.size(); i++) {
+            var stmt = stmts.get(i);
+            inverted.add(stmt);
+            if (!(stmt instanceof Ir3.Stmt.If) || i + 1 == stmts.size() ||
+                !(stmts.get(i + 1) instanceof Ir3.Stmt.Goto)) {
+                continue;
+            }
+            var if_ = (Ir3.Stmt.If)stmt;
+            if (skip(stmts, labels.get(if_.label)) != skip(stmts, i + 2)) {
+                continue;
+            }
+            if_.cond = negate(if_.cond);
+            if_.label = ((Ir3.Stmt.Goto)stmts.get(i + 1)).label;
+            i++;
+            changed = true;
+        }
+        method.stmts = inverted;
+        return changed;
+    }
+
+    static Ast.Expr negate(Ast.Expr cond) {
+        Ast.Expr negated;
+        if (cond instanceof Ast.Expr.Bool) {
+            negated = new Ast.Expr.Bool(!((Ast.Expr.Bool)cond).value);
+        } else if (cond instanceof Ast.Expr.Binary &&
+                   Ir3Gen.ExprGen.negated(((Ast.Expr.Binary)cond).op)
+                       != null) {
+            var binary = (Ast.Expr.Binary)cond;
+            if (binary.op == Ast.Expr.BinaryOp.EQ &&
+                binary.e2 instanceof Ast.Expr.Bool &&
+                !((Ast.Expr.Bool)binary.e2).value) {
+                // Ir3Gen's branch on an atom being false
+                return binary.e1;
+            }
+            negated = new Ast.Expr.Binary(
+                Ir3Gen.ExprGen.negated(binary.op), binary.e1, binary.e2);
+        } else {
+            var falseExpr = new Ast.Expr.Bool(false);
+            falseExpr.type = Ast.Type.BOOL;
+            negated = new Ast.Expr.Binary(Ast.Expr.BinaryOp.EQ, cond,
+                                          falseExpr);
+        }
+        negated.type = Ast.Type.BOOL;
+        return negated;
+    }
+
+    // Removes what can't be reached past a goto or return, and the labels
+    // nothing jumps to
+    static boolean sweep(Ir3.Method method) {
+        var reachable = new ArrayList<Ir3.Stmt>();
+        boolean live = true;
+        for (var stmt : method.stmts) {
+            if (stmt instanceof Ir3.Stmt.Label) {
+                live = true;
+            }
+            if (live) {
+                reachable.add(stmt);
+            }
+            if (stmt instanceof Ir3.Stmt.Goto ||
+                stmt instanceof Ir3.Stmt.Return) {
+                live = false;
+            }
+        }
+
+        var used = new HashSet<Integer>();
+        for (var stmt : reachable) {
+            if (stmt instanceof Ir3.Stmt.Goto) {
+                used.add(((Ir3.Stmt.Goto)stmt).label);
+            } else if (stmt instanceof Ir3.Stmt.If) {
+                used.add(((Ir3.Stmt.If)stmt).label);
+            }
+        }
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (var stmt : reachable) {
+            if (!(stmt instanceof Ir3.Stmt.Label) ||
+                used.contains(((Ir3.Stmt.Label)stmt).label)) {
+                stmts.add(stmt);
+            }
+        }
+        boolean changed = stmts.size() < method.stmts.size();
+        method.stmts = stmts;
+        return changed;
+    }
+
+    static void renumber(Ir3.Method method) {
+        var numbers = new HashMap<Integer, Integer>(); // By old label
+        for (var stmt : method.stmts) {
+            if (stmt instanceof Ir3.Stmt.Label) {
+                numbers.put(((Ir3.Stmt.Label)stmt).label, numbers.size());
+            }
+        }
+        for (var stmt : method.stmts) {
+            if (stmt instanceof Ir3.Stmt.Label) {
+                var label = (Ir3.Stmt.Label)stmt;
+                label.label = numbers.get(label.label);
+            } else if (stmt instanceof Ir3.Stmt.Goto) {
+                var goto_ = (Ir3.Stmt.Goto)stmt;
+                goto_.label = numbers.get(goto_.label);
+            } else if (stmt instanceof Ir3.Stmt.If) {
+                var if_ = (Ir3.Stmt.If)stmt;
+                if_.label = numbers.get(if_.label);
+            }
+        }
+        method.labelCounter = numbers.size();
+    }
+}
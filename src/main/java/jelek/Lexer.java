@@ -0,0 +1,517 @@
+package jelek;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Hand-written scanner for the tokens in src/main/jflex/jlite.jflex, used by
+// Parser. It reads bytes straight out of the source buffer and keeps the
+// current token in fields instead of allocating a Symbol per token. Source
+// text is UTF-8; ASCII is handled inline, anything else is decoded only
+// where it occurs.
+class Lexer {
+    static final int EOF = 0;
+    static final int INTEGER_LITERAL = 1;
+    static final int STRING_LITERAL = 2;
+    static final int CNAME = 3;
+    static final int ID = 4;
+    static final int LPAREN = 5;
+    static final int RPAREN = 6;
+    static final int LBRACE = 7;
+    static final int RBRACE = 8;
+    static final int SEMICOLON = 9;
+    static final int COMMA = 10;
+    static final int DOT = 11;
+    static final int ASSIGN = 12;
+    static final int PLUS = 13;
+    static final int MINUS = 14;
+    static final int STAR = 15;
+    static final int SLASH = 16;
+    static final int LT = 17;
+    static final int LEQ = 18;
+    static final int GT = 19;
+    static final int GEQ = 20;
+    static final int EQ = 21;
+    static final int NEQ = 22;
+    static final int NOT = 23;
+    static final int OR = 24;
+    static final int AND = 25;
+    static final int CLASS = 26;
+    static final int MAIN = 27;
+    static final int RETURN = 28;
+    static final int IF = 29;
+    static final int ELSE = 30;
+    static final int WHILE = 31;
+    static final int READLN = 32;
+    static final int PRINTLN = 33;
+    static final int THIS = 34;
+    static final int NEW = 35;
+    static final int INT = 36;
+    static final int BOOL = 37;
+    static final int STRING = 38;
+    static final int VOID = 39;
+    static final int TRUE = 40;
+    static final int FALSE = 41;
+    static final int NULL = 42;
+
+    final ByteBuffer buf;
+    final int limit;
+    final Symbols symbols;
+    int pos;
+    int line = 1;
+    int lineStart;
+
+    // The current token
+    int kind;
+    int tokenLine;
+    int tokenStart;
+    String text; // Names and string literals
+    int value; // Integer literals
+
+    Lexer(Source source, Symbols symbols) {
+        this.buf = source.bytes;
+        this.pos = buf.position();
+        this.lineStart = pos;
+        this.limit = buf.limit();
+        this.symbols = symbols;
+        next();
+    }
+
+    void next() {
+        text = null;
+        while (pos < limit) {
+            tokenLine = line;
+            tokenStart = pos;
+            int start = pos;
+            byte b = buf.get(pos++);
+
+            switch (b) {
+            case ' ':
+            case '\t':
+                continue;
+            case '\n':
+            case 0x0B:
+            case '\f':
+                // The generated scanner counts all of these as line breaks
+                newline();
+                continue;
+            case '\r':
+                if (pos < limit && buf.get(pos) == '\n') {
+                    pos++;
+                }
+                newline();
+                continue;
+            case '(':
+                kind = LPAREN;
+                return;
+            case ')':
+                kind = RPAREN;
+                return;
+            case '{':
+                kind = LBRACE;
+                return;
+            case '}':
+                kind = RBRACE;
+                return;
+            case ',':
+                kind = COMMA;
+                return;
+            case ';':
+                kind = SEMICOLON;
+                return;
+            case '.':
+                kind = DOT;
+                return;
+            case '+':
+                kind = PLUS;
+                return;
+            case '-':
+                kind = MINUS;
+                return;
+            case '*':
+                kind = STAR;
+                return;
+            case '/':
+                if (skipComment()) {
+                    continue;
+                }
+                kind = SLASH;
+                return;
+            case '=':
+                kind = follows('=') ? EQ : ASSIGN;
+                return;
+            case '<':
+                kind = follows('=') ? LEQ : LT;
+                return;
+            case '>':
+                kind = follows('=') ? GEQ : GT;
+                return;
+            case '!':
+                kind = follows('=') ? NEQ : NOT;
+                return;
+            case '|':
+                if (follows('|')) {
+                    kind = OR;
+                    return;
+                }
+                break;
+            case '&':
+                if (follows('&')) {
+                    kind = AND;
+                    return;
+                }
+                break;
+            case '"':
+                if (string()) {
+                    return;
+                }
+                // Unterminated, which the parser sees as end of input
+                kind = EOF;
+                return;
+            default:
+                if (b >= '0' && b <= '9') {
+                    integer(start);
+                    return;
+                }
+                if (b >= 'a' && b <= 'z') {
+                    word(start, true);
+                    return;
+                }
+                if (b >= 'A' && b <= 'Z') {
+                    word(start, false);
+                    return;
+                }
+                if (b < 0) {
+                    pos = start;
+                    int c = decode();
+                    if (isSpace(c)) {
+                        if (terminator(start) > 0) {
+                            newline();
+                        }
+                        continue;
+                    }
+                    if (Character.isDigit(c)) {
+                        integer(start);
+                        return;
+                    }
+                    if (Character.isLowerCase(c) || Character.isUpperCase(c)) {
+                        word(start, Character.isLowerCase(c));
+                        return;
+                    }
+                }
+            }
+
+            pos = start;
+            throw illegal(decode());
+        }
+
+        tokenLine = line;
+        tokenStart = pos;
+        kind = EOF;
+    }
+
+    void newline() {
+        line++;
+        lineStart = pos;
+    }
+
+    boolean follows(char c) {
+        if (pos < limit && buf.get(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    // Called after a '/'. Comments are '//' to the end of the line,
+    // '/*' followed by a non-'*' up to the next '*/', or '/*' followed by
+    // '*'s and a '/'. Anything else is a division.
+    boolean skipComment() {
+        if (pos >= limit) {
+            return false;
+        }
+
+        if (buf.get(pos) == '/') {
+            while (pos < limit && terminator(pos) == 0) {
+                pos++;
+            }
+            return true;
+        }
+
+        if (buf.get(pos) != '*' || pos + 1 >= limit) {
+            return false;
+        }
+
+        int end = pos + 1;
+        if (buf.get(end) == '*') {
+            while (end < limit && buf.get(end) == '*') {
+                end++;
+            }
+            if (end < limit && buf.get(end) == '/') {
+                pos = end + 1;
+                return true;
+            }
+            return false;
+        }
+
+        for (end++; end + 1 < limit; end++) {
+            if (buf.get(end) == '*' && buf.get(end + 1) == '/') {
+                for (int i = pos; i < end; i++) {
+                    int n = terminator(i);
+                    if (n > 0 &&
+                        !(buf.get(i) == '\r' && buf.get(i + 1) == '\n')) {
+                        line++;
+                        lineStart = i + n;
+                    }
+                }
+                pos = end + 2;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Digits are any Unicode decimal digits, as in the generated scanner.
+    // Literals that aren't plain ASCII, or don't fit, go through
+    // Integer.parseInt like the generated scanner's do, for the same value
+    // or error.
+    void integer(int start) {
+        boolean plain = buf.get(start) >= 0;
+        long value = plain ? buf.get(start) - '0' : 0;
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if (b >= '0' && b <= '9') {
+                pos++;
+                value = Math.min(value * 10 + b - '0', Integer.MAX_VALUE + 1L);
+            } else if (b < 0) {
+                int next = pos;
+                if (!Character.isDigit(decode())) {
+                    pos = next;
+                    break;
+                }
+                plain = false;
+            } else {
+                break;
+            }
+        }
+        this.value = plain && value <= Integer.MAX_VALUE
+            ? (int)value
+            : Integer.parseInt(plain ? ascii(start, pos) : utf8(start, pos));
+        kind = INTEGER_LITERAL;
+    }
+
+    // Identifiers start with a lowercase letter and class names with an
+    // uppercase one. Both continue with letters, digits and underscores.
+    void word(int start, boolean lowercase) {
+        boolean isAscii = buf.get(start) >= 0;
+        while (pos < limit) {
+            byte b = buf.get(pos);
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') ||
+                (b >= '0' && b <= '9') || b == '_') {
+                pos++;
+            } else if (b < 0) {
+                int next = pos;
+                if (!Character.isLetterOrDigit(decode())) {
+                    pos = next;
+                    break;
+                }
+                isAscii = false;
+            } else {
+                break;
+            }
+        }
+
+        int len = pos - start;
+        if (isAscii) {
+            kind = keyword(start, len);
+            if (kind != EOF) {
+                return;
+            }
+            text = symbols.intern(buf, start, len);
+        } else {
+            text = symbols.intern(utf8(start, pos));
+        }
+        kind = lowercase ? ID : CNAME;
+    }
+
+    // Returns EOF if the word isn't a keyword
+    int keyword(int start, int len) {
+        switch (buf.get(start)) {
+        case 'B':
+            return is("Bool", start, len) ? BOOL : EOF;
+        case 'I':
+            return is("Int", start, len) ? INT : EOF;
+        case 'S':
+            return is("String", start, len) ? STRING : EOF;
+        case 'V':
+            return is("Void", start, len) ? VOID : EOF;
+        case 'c':
+            return is("class", start, len) ? CLASS : EOF;
+        case 'e':
+            return is("else", start, len) ? ELSE : EOF;
+        case 'f':
+            return is("false", start, len) ? FALSE : EOF;
+        case 'i':
+            return is("if", start, len) ? IF : EOF;
+        case 'm':
+            return is("main", start, len) ? MAIN : EOF;
+        case 'n':
+            return is("new", start, len)
+                ? NEW
+                : is("null", start, len) ? NULL : EOF;
+        case 'p':
+            return is("println", start, len) ? PRINTLN : EOF;
+        case 'r':
+            return is("return", start, len)
+                ? RETURN
+                : is("readln", start, len) ? READLN : EOF;
+        case 't':
+            return is("this", start, len)
+                ? THIS
+                : is("true", start, len) ? TRUE : EOF;
+        case 'w':
+            return is("while", start, len) ? WHILE : EOF;
+        default:
+            return EOF;
+        }
+    }
+
+    boolean is(String keyword, int start, int len) {
+        if (keyword.length() != len) {
+            return false;
+        }
+        for (int i = 1; i < len; i++) {
+            if (keyword.charAt(i) != buf.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Called after the opening quote. Returns false at end of input.
+    boolean string() {
+        var sb = new StringBuilder();
+        while (pos < limit) {
+            int start = pos;
+            byte b = buf.get(pos++);
+            switch (b) {
+            case '"':
+                text = sb.toString();
+                kind = STRING_LITERAL;
+                return true;
+            case '\\':
+                if (pos < limit) {
+                    switch (buf.get(pos)) {
+                    case 't':
+                        pos++;
+                        sb.append('\t');
+                        continue;
+                    case 'n':
+                        pos++;
+                        sb.append('\n');
+                        continue;
+                    case 'r':
+                        pos++;
+                        sb.append('\r');
+                        continue;
+                    case '"':
+                        pos++;
+                        sb.append('"');
+                        continue;
+                    }
+                }
+                sb.append('\\');
+                continue;
+            case '\n':
+            case '\r':
+                tokenLine = line;
+                tokenStart = start;
+                throw illegal(b);
+            default:
+                if (b >= 0) {
+                    sb.append((char)b);
+                } else {
+                    pos = start;
+                    sb.appendCodePoint(decode());
+                }
+                // The generated scanner counts line breaks in strings too
+                if (terminator(start) > 0) {
+                    newline();
+                }
+            }
+        }
+        return false;
+    }
+
+    // Whitespace as the generated scanner's \s matches it outside ASCII:
+    // Unicode's White_Space, which Character.isWhitespace leaves the
+    // no-break spaces out of
+    static boolean isSpace(int c) {
+        return c == 0x85 || c == 0xa0 || c == 0x1680 ||
+            (c >= 0x2000 && c <= 0x200a) || c == 0x2028 || c == 0x2029 ||
+            c == 0x202f || c == 0x205f || c == 0x3000;
+    }
+
+    // The length in bytes of the line break at i, or 0. Besides \n and \r
+    // these are VT, FF, NEL and the Unicode line and paragraph separators,
+    // as the generated scanner counts lines.
+    int terminator(int i) {
+        int b = buf.get(i) & 0xff;
+        if (b == '\n' || b == '\r' || b == 0x0b || b == '\f') {
+            return 1;
+        } else if (b == 0xc2 && i + 1 < limit &&
+                   (buf.get(i + 1) & 0xff) == 0x85) {
+            return 2;
+        } else if (b == 0xe2 && i + 2 < limit &&
+                   (buf.get(i + 1) & 0xff) == 0x80 &&
+                   ((buf.get(i + 2) & 0xff) == 0xa8 ||
+                    (buf.get(i + 2) & 0xff) == 0xa9)) {
+            return 3;
+        }
+        return 0;
+    }
+
+    // Decodes the UTF-8 sequence at pos and moves past it
+    int decode() {
+        int start = pos;
+        int b = buf.get(pos++) & 0xff;
+        int extra = b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc0 ? 1 : 0;
+        while (extra-- > 0 && pos < limit && (buf.get(pos) & 0xc0) == 0x80) {
+            pos++;
+        }
+        return utf8(start, pos).codePointAt(0);
+    }
+
+    String utf8(int start, int end) {
+        var bytes = buf.duplicate();
+        bytes.limit(end).position(start);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    String ascii(int start, int end) {
+        var chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            chars[i - start] = (char)buf.get(i);
+        }
+        return new String(chars);
+    }
+
+    // Counted in chars like the generated scanner does, so only worked out
+    // for diagnostics
+    int tokenColumn() {
+        int column = 1;
+        for (int i = lineStart; i < tokenStart; i++) {
+            int b = buf.get(i) & 0xff;
+            if ((b & 0xc0) != 0x80) {
+                column += b >= 0xf0 ? 2 : 1;
+            }
+        }
+        return column;
+    }
+
+    RuntimeException illegal(int c) {
+        return new RuntimeException("Illegal character \"" +
+                                    new String(Character.toChars(c)) +
+                                    "\" at line " + tokenLine + ", column " +
+                                    tokenColumn());
+    }
+}
@@ -0,0 +1,184 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// Loop-invariant code motion over a method in SSA form. An assignment in a
+// loop whose operands are all assigned outside it computes the same value
+// on every iteration, so it is moved to the loop's preheader: the one block
+// outside the loop that goes to the header, and nowhere else. Ir3Gen's
+// rotated while loops always have one, the block that jumps to the
+// condition. Inner loops go first, so an assignment can move out of several.
+//
+// In SSA form the variable is assigned nowhere else, and the preheader
+// dominates every read of it. But the loop may run no times, so only what
+// can't fail or have an effect is moved: no calls, new or readln. A field
+// read can fail on null, this included, so it is moved only off a variable
+// that something dominating the preheader already dereferenced or assigned
+// a new object, and only if nothing in the loop can assign the field.
+class Licm {
+    final Cfg cfg;
+    final Dataflow.Vars vars;
+    final Cfg.Block[] defs; // By var, the block assigning it, if any
+
+    Licm(Cfg cfg) {
+        this.cfg = cfg;
+        vars = new Dataflow.Vars(cfg.method);
+        defs = new Cfg.Block[vars.size()];
+        for (var block : cfg.rpo) {
+            for (var stmt : block.stmts) {
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    defs[def] = block;
+                }
+            }
+        }
+    }
+
+    // Returns the number of statements moved
+    static int run(Cfg cfg) {
+        var licm = new Licm(cfg);
+        int moved = 0;
+        for (var loop : cfg.loops) {
+            moved += licm.hoist(loop);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return moved;
+    }
+
+    int hoist(Cfg.Loop loop) {
+        int moved = 0;
+        for (var child : loop.children) {
+            moved += hoist(child);
+        }
+
+        var preheader = preheader(loop);
+        if (preheader == null) {
+            return moved;
+        }
+        var blocks = new ArrayList<Cfg.Block>();
+        var stored = new HashSet<String>();
+        boolean calls = false;
+        for (var block : cfg.rpo) {
+            if (!loop.contains(block)) {
+                continue;
+            }
+            blocks.add(block);
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.FieldAssign) {
+                    stored.add(((Ir3.Stmt.FieldAssign)stmt).lhsField);
+                } else if (stmt instanceof Ir3.Stmt.Call ||
+                           (stmt instanceof Ir3.Stmt.Assign &&
+                            ((Ir3.Stmt.Assign)stmt).rhs
+                                instanceof Ast.Expr.Call)) {
+                    calls = true;
+                }
+            }
+        }
+
+        // In reverse postorder, an assignment is seen before any read of it
+        // in the loop, so moved ones stay in order
+        var hoisted = new ArrayList<Ir3.Stmt>();
+        for (var block : blocks) {
+            var stmts = block.stmts.iterator();
+            while (stmts.hasNext()) {
+                var stmt = stmts.next();
+                if (!(stmt instanceof Ir3.Stmt.Assign) ||
+                    !movable(((Ir3.Stmt.Assign)stmt).rhs, calls, stored,
+                             preheader) ||
+                    !invariant(stmt, loop)) {
+                    continue;
+                }
+                stmts.remove();
+                hoisted.add(stmt);
+                defs[Dataflow.def(stmt, vars)] = preheader;
+            }
+        }
+
+        var stmts = preheader.stmts;
+        int at = stmts.size();
+        if (at > 0 && stmts.get(at - 1) instanceof Ir3.Stmt.Goto) {
+            at--;
+        }
+        stmts.addAll(at, hoisted);
+        return moved + hoisted.size();
+    }
+
+    // The block outside the loop that alone goes to its header, if it goes
+    // nowhere else
+    static Cfg.Block preheader(Cfg.Loop loop) {
+        Cfg.Block preheader = null;
+        for (var pred : loop.header.preds) {
+            if (!pred.reachable() || loop.contains(pred)) {
+                continue;
+            } else if (preheader != null) {
+                return null;
+            }
+            preheader = pred;
+        }
+        if (preheader == null || preheader.succs.size() != 1 ||
+            preheader.last() instanceof Ir3.Stmt.If) {
+            return null;
+        }
+        return preheader;
+    }
+
+    static boolean movable(Ast.Expr expr, boolean calls,
+                           HashSet<String> stored, Cfg.Block preheader) {
+        if (expr instanceof Ast.Expr.Call || expr instanceof Ast.Expr.New) {
+            return false;
+        } else if (expr instanceof Ast.Expr.Dot) {
+            var dot = (Ast.Expr.Dot)expr;
+            var atom = name(dot.atom);
+            return !calls && !stored.contains(dot.member) && atom != null &&
+                nonNull(atom, preheader);
+        } else {
+            return DeadCode.pure(expr);
+        }
+    }
+
+    // The variable an atom reads, or null. In SSA form each names one value.
+    static String name(Ast.Expr atom) {
+        if (atom instanceof Ast.Expr.This) {
+            return "this";
+        } else if (atom instanceof Ast.Expr.Id) {
+            return ((Ast.Expr.Id)atom).id;
+        } else {
+            return null;
+        }
+    }
+
+    // Whether a statement in the preheader or a block dominating it
+    // dereferences the variable or assigns it a new object, so that it
+    // can't be null by the time the preheader ends
+    static boolean nonNull(String var, Cfg.Block preheader) {
+        for (var block = preheader; block != null; block = block.idom) {
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.FieldAssign &&
+                    var.equals(
+                        name(((Ir3.Stmt.FieldAssign)stmt).lhsExpr))) {
+                    return true;
+                } else if (stmt instanceof Ir3.Stmt.Assign) {
+                    var assign = (Ir3.Stmt.Assign)stmt;
+                    if ((assign.lhs.equals(var) &&
+                         assign.rhs instanceof Ast.Expr.New) ||
+                        (assign.rhs instanceof Ast.Expr.Dot &&
+                         var.equals(name(((Ast.Expr.Dot)assign.rhs).atom)))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean invariant(Ir3.Stmt stmt, Cfg.Loop loop) {
+        boolean[] invariant = {true};
+        Dataflow.uses(stmt, vars, var -> {
+            if (defs[var] != null && loop.contains(defs[var])) {
+                invariant[0] = false;
+            }
+        });
+        return invariant[0];
+    }
+}
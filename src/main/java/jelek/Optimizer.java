@@ -0,0 +1,140 @@
+package jelek;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ObjIntConsumer;
+
+// Runs the optimizations over every method of a program. Each method is
+// taken into SSA form for the passes that work on it there, and back out
+// for the ones that change its control flow. Small methods are then inlined
+// into their callers, which are optimized again.
+class Optimizer {
+    // What each pass did, in the order they first ran: by default the
+    // number of statements it removed
+    static class Stats {
+        final LinkedHashMap<String, Integer> counts = new LinkedHashMap<>();
+        final HashMap<String, String> units = new HashMap<>(); // By pass
+
+        void add(String pass, int count) {
+            add(pass, "statements removed", count);
+        }
+
+        void add(String pass, String unit, int count) {
+            counts.merge(pass, count, Integer::sum);
+            units.put(pass, unit);
+        }
+
+        void addAll(Stats other) {
+            for (Map.Entry<String, Integer> entry : other.counts.entrySet()) {
+                add(entry.getKey(), other.units.get(entry.getKey()),
+                    entry.getValue());
+            }
+        }
+
+        void print(PrintStream out) {
+            for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+                out.printf("%-8s %6d %s%n", entry.getKey(), entry.getValue(),
+                           units.get(entry.getKey()));
+            }
+        }
+    }
+
+    static Stats run(Ir3.Program program) {
+        var methods = program.methods;
+        var total = new Stats();
+        total.addAll(forEach(methods.size(),
+                             (stats, i) -> optimize(methods.get(i), stats)));
+
+        // Callees are inlined as they are once optimized. Callers are only
+        // optimized again once all are inlined into, since until then their
+        // statements can still be copied into others.
+        var inliner = new Inliner(program);
+        var inlined = new int[methods.size()]; // By method, the calls
+        total.addAll(forEach(methods.size(), (stats, i) -> {
+            inlined[i] = inliner.inline(methods.get(i));
+            stats.add("inline", "calls inlined", inlined[i]);
+        }));
+        total.addAll(forEach(methods.size(), (stats, i) -> {
+            if (inlined[i] > 0) {
+                optimize(methods.get(i), stats);
+            }
+        }));
+        return total;
+    }
+
+    // Runs action on every method index, with the stats for that method.
+    // Methods are optimized on their own, so in parallel. The counts are
+    // added up in method order after.
+    static Stats forEach(int methods, ObjIntConsumer<Stats> action) {
+        var stats = new Stats[methods];
+        new ForEachMethod(action, stats, 0, methods).invoke();
+
+        var total = new Stats();
+        for (var methodStats : stats) {
+            total.addAll(methodStats);
+        }
+        return total;
+    }
+
+    static class ForEachMethod extends RecursiveAction {
+        static final int LEAF_SIZE = 16;
+
+        final ObjIntConsumer<Stats> action;
+        final Stats[] stats; // By method
+        final int start;
+        final int end;
+
+        ForEachMethod(ObjIntConsumer<Stats> action, Stats[] stats, int start,
+                      int end) {
+            this.action = action;
+            this.stats = stats;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > LEAF_SIZE) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new ForEachMethod(action, stats, start, mid),
+                          new ForEachMethod(action, stats, mid, end));
+                return;
+            }
+
+            for (int i = start; i < end; i++) {
+                stats[i] = new Stats();
+                action.accept(stats[i], i);
+            }
+        }
+    }
+
+    static void optimize(Ir3.Method method, Stats stats) {
+        stats.add("tail", "calls removed", TailCalls.run(method));
+        var cfg = Cfg.build(method);
+        Ssa.build(cfg);
+        stats.add("sccp", Sccp.run(cfg));
+        stats.add("copies", CopyProp.run(cfg));
+        int objects = Scalars.run(cfg);
+        stats.add("scalars", "objects replaced", objects);
+        if (objects > 0) {
+            // The fields are variables assigned more than once now
+            Ssa.destroy(cfg);
+            cfg = Cfg.build(method);
+            Ssa.build(cfg);
+            stats.add("sccp", Sccp.run(cfg));
+            stats.add("copies", CopyProp.run(cfg));
+        }
+        stats.add("gvn", Gvn.run(cfg));
+        stats.add("licm", "statements moved", Licm.run(cfg));
+        stats.add("strength", "multiplications reduced", Induction.run(cfg));
+        stats.add("dead", DeadCode.run(cfg));
+        Ssa.destroy(cfg);
+
+        stats.add("sccp", Sccp.prune(method));
+        stats.add("coalesce", Coalesce.run(method));
+        stats.add("jumps", Jumps.run(method));
+    }
+}
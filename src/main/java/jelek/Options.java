@@ -0,0 +1,48 @@
+package jelek;
+
+// Flags that apply to every compilation, given before the mode and files:
+//
+//     --frontend=cup|hand|arena
+//     -O
+//     --stats
+//     --ssa
+//
+// The CUP frontend is the generated Scanner and parser. The hand frontend is
+// Lexer and Parser, which accept the same language and build the same AST.
+// The arena frontend is Lexer and ArenaParser, which keep method bodies in
+// an Arena instead. There is no CUP version, as CUP's actions box every
+// value.
+// -O runs the Optimizer over the IR3, and --stats reports what each of its
+// passes removed: to stderr, per file in a batch, and after the IR3 to a
+// daemon's client. With --ssa, the IR3 of each method is printed
+// in SSA form, with phis.
+class Options {
+    enum Frontend { CUP, HAND, ARENA }
+
+    Frontend frontend = Frontend.CUP;
+    boolean optimize = false;
+    boolean stats = false;
+    boolean ssa = false;
+
+    // Consumes the leading flags and returns the index of the first argument
+    // that isn't one
+    int parse(String[] args) {
+        int i = 0;
+        for (; i < args.length; i++) {
+            var arg = args[i];
+            if (arg.startsWith("--frontend=")) {
+                frontend = Frontend.valueOf(
+                    arg.substring("--frontend=".length()).toUpperCase());
+            } else if (arg.equals("-O")) {
+                optimize = true;
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--ssa")) {
+                ssa = true;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+}
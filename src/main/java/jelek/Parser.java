@@ -0,0 +1,485 @@
+package jelek;
+
+import static jelek.Lexer.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Recursive-descent parser for the grammar in src/main/cup/jlite.cup. It
+// builds the same Ast.Program as the generated parser, and rejects the same
+// programs.
+class Parser {
+    // What an expression can still be combined with, mirroring the
+    // bexpr/conj/rexpr/bgrd vs. aexpr/term/ftr split of the grammar
+    static final int OPERAND_ATOM = 0; // Either
+    static final int OPERAND_ARITH = 1; // Arithmetic operators only
+    static final int OPERAND_BOOL = 2; // Boolean operators only
+
+    final Lexer lexer;
+    final Types types;
+    int category;
+
+    // Elements of the lists being parsed, innermost list last. Each list is
+    // only built once complete, at its final size.
+    final ArrayList<Object> pending = new ArrayList<>();
+
+    Parser(Lexer lexer, Types types) {
+        this.lexer = lexer;
+        this.types = types;
+    }
+
+    Ast.Program parse() throws Exception {
+        int start = pending.size();
+        pending.add(mainClass());
+        while (lexer.kind == CLASS) {
+            pending.add(class_());
+        }
+        expect(EOF);
+
+        return new Ast.Program(take(start));
+    }
+
+    Ast.Class mainClass() throws Exception {
+        expect(CLASS);
+        var name = name(CNAME);
+        expect(LBRACE);
+        expect(VOID);
+        expect(MAIN);
+        var method = methodRest(Ast.Type.VOID, "main");
+        expect(RBRACE);
+
+        return new Ast.Class(name, List.of(), List.of(method));
+    }
+
+    Ast.Class class_() throws Exception {
+        expect(CLASS);
+        var name = name(CNAME);
+        expect(LBRACE);
+
+        // Both start with a type and a name, and all vars come first
+        int start = pending.size();
+        List<Ast.Var> vars = null;
+        while (lexer.kind != RBRACE) {
+            var type = type();
+            var id = id();
+            if (vars == null && lexer.kind == SEMICOLON) {
+                lexer.next();
+                pending.add(new Ast.Var(type, id));
+            } else {
+                if (vars == null) {
+                    vars = take(start);
+                }
+                pending.add(methodRest(type, id));
+            }
+        }
+        lexer.next();
+        if (vars == null) {
+            vars = take(start);
+        }
+
+        return new Ast.Class(name, vars, take(start));
+    }
+
+    // Everything after the return type and name
+    Ast.Method methodRest(Ast.Type returnType, String id) throws Exception {
+        expect(LPAREN);
+        // The grammar accepts a leading comma here, as in (, Int x)
+        int start = pending.size();
+        if (lexer.kind != RPAREN && lexer.kind != COMMA) {
+            pending.add(var());
+        }
+        while (lexer.kind == COMMA) {
+            lexer.next();
+            pending.add(var());
+        }
+        expect(RPAREN);
+        List<Ast.Var> params = take(start);
+
+        expect(LBRACE);
+        while (isType(lexer.kind)) {
+            pending.add(var());
+            expect(SEMICOLON);
+        }
+        List<Ast.Var> vars = take(start);
+        var method = body(id, returnType, params, vars);
+        expect(RBRACE);
+
+        return method;
+    }
+
+    // The method, once its statements are parsed
+    Ast.Method body(String id, Ast.Type returnType, List<Ast.Var> params,
+                    List<Ast.Var> vars) throws Exception {
+        return new Ast.Method(id, returnType, params, vars, stmts(true));
+    }
+
+    Ast.Var var() throws Exception {
+        var type = type();
+        return new Ast.Var(type, id());
+    }
+
+    Ast.Type type() throws Exception {
+        switch (lexer.kind) {
+        case INT:
+            lexer.next();
+            return Ast.Type.INT;
+        case BOOL:
+            lexer.next();
+            return Ast.Type.BOOL;
+        case STRING:
+            lexer.next();
+            return Ast.Type.STRING;
+        case VOID:
+            lexer.next();
+            return Ast.Type.VOID;
+        case CNAME:
+            return types.class_(name(CNAME));
+        default:
+            throw error();
+        }
+    }
+
+    static boolean isType(int kind) {
+        return kind == INT || kind == BOOL || kind == STRING || kind == VOID ||
+            kind == CNAME;
+    }
+
+    String id() throws Exception {
+        if (lexer.kind == MAIN) {
+            lexer.next();
+            return "main";
+        }
+        return name(ID);
+    }
+
+    List<Ast.Stmt> stmts(boolean nonEmpty) throws Exception {
+        int start = pending.size();
+        if (nonEmpty) {
+            pending.add(stmt());
+        }
+        while (lexer.kind != RBRACE) {
+            pending.add(stmt());
+        }
+        return take(start);
+    }
+
+    Ast.Stmt stmt() throws Exception {
+        switch (lexer.kind) {
+        case IF: {
+            lexer.next();
+            var cond = parenthesized();
+            expect(LBRACE);
+            var thenStmts = stmts(true);
+            expect(RBRACE);
+            expect(ELSE);
+            expect(LBRACE);
+            var elseStmts = stmts(true);
+            expect(RBRACE);
+            return new Ast.Stmt.If(cond, thenStmts, elseStmts);
+        }
+        case WHILE: {
+            lexer.next();
+            var cond = parenthesized();
+            expect(LBRACE);
+            var stmts = stmts(false);
+            expect(RBRACE);
+            return new Ast.Stmt.While(cond, stmts);
+        }
+        case READLN: {
+            lexer.next();
+            expect(LPAREN);
+            var id = id();
+            expect(RPAREN);
+            expect(SEMICOLON);
+            return new Ast.Stmt.Readln(id);
+        }
+        case PRINTLN: {
+            lexer.next();
+            var expr = parenthesized();
+            expect(SEMICOLON);
+            return new Ast.Stmt.Println(expr);
+        }
+        case RETURN: {
+            lexer.next();
+            Ast.Expr expr = null;
+            if (lexer.kind != SEMICOLON) {
+                expr = expr();
+            }
+            expect(SEMICOLON);
+            return new Ast.Stmt.Return(expr);
+        }
+        }
+
+        // Assignments and calls all start with an atom
+        boolean isId = lexer.kind == ID || lexer.kind == MAIN;
+        var atom = atom();
+        if (isId && atom instanceof Ast.Expr.Id && lexer.kind == ASSIGN) {
+            lexer.next();
+            var rhs = expr();
+            expect(SEMICOLON);
+            return new Ast.Stmt.Assign(((Ast.Expr.Id)atom).id, rhs);
+        }
+        if (category == OPERAND_ATOM && atom instanceof Ast.Expr.Dot &&
+            lexer.kind == ASSIGN) {
+            lexer.next();
+            var rhs = expr();
+            expect(SEMICOLON);
+            var dot = (Ast.Expr.Dot)atom;
+            return new Ast.Stmt.FieldAssign(dot.atom, dot.member, rhs);
+        }
+        if (category == OPERAND_ATOM && atom instanceof Ast.Expr.Call &&
+            lexer.kind == SEMICOLON) {
+            lexer.next();
+            var call = (Ast.Expr.Call)atom;
+            return new Ast.Stmt.Call(call.callee, call.args);
+        }
+        throw error();
+    }
+
+    Ast.Expr parenthesized() throws Exception {
+        expect(LPAREN);
+        var expr = expr();
+        expect(RPAREN);
+        return expr;
+    }
+
+    Ast.Expr expr() throws Exception {
+        if (lexer.kind == STRING_LITERAL) {
+            var expr = new Ast.Expr.Str(lexer.text);
+            lexer.next();
+            return expr;
+        }
+
+        // The grammar builds every '||' of a chain but the last as an AND
+        // (see bexpr in jlite.cup), and so does this
+        var expr = conj();
+        if (lexer.kind != OR) {
+            return expr;
+        }
+        requireBool();
+        Ast.Expr last = null;
+        while (lexer.kind == OR) {
+            lexer.next();
+            if (last != null) {
+                expr = new Ast.Expr.Binary(Ast.Expr.BinaryOp.AND, expr, last);
+            }
+            last = conj();
+            requireBool();
+        }
+        category = OPERAND_BOOL;
+        return new Ast.Expr.Binary(Ast.Expr.BinaryOp.OR, expr, last);
+    }
+
+    Ast.Expr conj() throws Exception {
+        var expr = rexpr();
+        if (lexer.kind != AND) {
+            return expr;
+        }
+        requireBool();
+        while (lexer.kind == AND) {
+            lexer.next();
+            var e2 = rexpr();
+            requireBool();
+            expr = new Ast.Expr.Binary(Ast.Expr.BinaryOp.AND, expr, e2);
+        }
+        category = OPERAND_BOOL;
+        return expr;
+    }
+
+    Ast.Expr rexpr() throws Exception {
+        if (lexer.kind == NOT || lexer.kind == TRUE || lexer.kind == FALSE) {
+            return bgrd();
+        }
+
+        var expr = aexpr();
+        var op = relOp(lexer.kind);
+        if (op == null) {
+            return expr;
+        }
+        lexer.next();
+        var e2 = aexpr();
+        category = OPERAND_BOOL;
+        return new Ast.Expr.Binary(op, expr, e2);
+    }
+
+    static Ast.Expr.BinaryOp relOp(int kind) {
+        switch (kind) {
+        case LT:
+            return Ast.Expr.BinaryOp.LT;
+        case GT:
+            return Ast.Expr.BinaryOp.GT;
+        case LEQ:
+            return Ast.Expr.BinaryOp.LEQ;
+        case GEQ:
+            return Ast.Expr.BinaryOp.GEQ;
+        case EQ:
+            return Ast.Expr.BinaryOp.EQ;
+        case NEQ:
+            return Ast.Expr.BinaryOp.NEQ;
+        default:
+            return null;
+        }
+    }
+
+    Ast.Expr bgrd() throws Exception {
+        switch (lexer.kind) {
+        case NOT:
+            lexer.next();
+            var expr = new Ast.Expr.Unary(Ast.Expr.UnaryOp.NOT, bgrd());
+            category = OPERAND_BOOL;
+            return expr;
+        case TRUE:
+            lexer.next();
+            category = OPERAND_BOOL;
+            return new Ast.Expr.Bool(true);
+        case FALSE:
+            lexer.next();
+            category = OPERAND_BOOL;
+            return new Ast.Expr.Bool(false);
+        default:
+            return atom();
+        }
+    }
+
+    Ast.Expr aexpr() throws Exception {
+        var expr = term();
+        while (lexer.kind == PLUS || lexer.kind == MINUS) {
+            var op = lexer.kind == PLUS ? Ast.Expr.BinaryOp.PLUS
+                                        : Ast.Expr.BinaryOp.MINUS;
+            lexer.next();
+            expr = new Ast.Expr.Binary(op, expr, term());
+            category = OPERAND_ARITH;
+        }
+        return expr;
+    }
+
+    Ast.Expr term() throws Exception {
+        var expr = ftr();
+        while (lexer.kind == STAR || lexer.kind == SLASH) {
+            var op = lexer.kind == STAR ? Ast.Expr.BinaryOp.MUL
+                                        : Ast.Expr.BinaryOp.DIV;
+            lexer.next();
+            expr = new Ast.Expr.Binary(op, expr, ftr());
+            category = OPERAND_ARITH;
+        }
+        return expr;
+    }
+
+    Ast.Expr ftr() throws Exception {
+        switch (lexer.kind) {
+        case INTEGER_LITERAL:
+            var expr = new Ast.Expr.Int(lexer.value);
+            lexer.next();
+            category = OPERAND_ARITH;
+            return expr;
+        case MINUS:
+            lexer.next();
+            var neg = new Ast.Expr.Unary(Ast.Expr.UnaryOp.NEG, ftr());
+            category = OPERAND_ARITH;
+            return neg;
+        default:
+            return atom();
+        }
+    }
+
+    // Sets category to OPERAND_ATOM, unless the atom is a parenthesized
+    // expression that nothing was applied to, which can't be assigned to or
+    // called as a statement
+    Ast.Expr atom() throws Exception {
+        Ast.Expr expr;
+        switch (lexer.kind) {
+        case THIS:
+            lexer.next();
+            expr = new Ast.Expr.This();
+            break;
+        case ID:
+        case MAIN:
+            expr = new Ast.Expr.Id(id());
+            break;
+        case NEW:
+            lexer.next();
+            expr = new Ast.Expr.New(name(CNAME));
+            expect(LPAREN);
+            expect(RPAREN);
+            break;
+        case LPAREN:
+            expr = parenthesized();
+            category = -1;
+            if (lexer.kind != DOT && lexer.kind != LPAREN) {
+                return expr;
+            }
+            break;
+        case NULL:
+            lexer.next();
+            expr = new Ast.Expr.Null();
+            break;
+        default:
+            throw error();
+        }
+
+        while (true) {
+            if (lexer.kind == DOT) {
+                lexer.next();
+                expr = new Ast.Expr.Dot(expr, id());
+            } else if (lexer.kind == LPAREN) {
+                lexer.next();
+                // The grammar also accepts a leading comma, as in f(, x)
+                int start = pending.size();
+                if (lexer.kind != RPAREN && lexer.kind != COMMA) {
+                    pending.add(expr());
+                }
+                while (lexer.kind == COMMA) {
+                    lexer.next();
+                    pending.add(expr());
+                }
+                expect(RPAREN);
+                expr = new Ast.Expr.Call(expr, take(start));
+            } else {
+                category = OPERAND_ATOM;
+                return expr;
+            }
+        }
+    }
+
+    // Removes the elements from start on and returns them as a list
+    @SuppressWarnings("unchecked")
+    <T> List<T> take(int start) {
+        var elements = pending.subList(start, pending.size());
+        var list = (List<T>)List.copyOf(elements);
+        elements.clear();
+        return list;
+    }
+
+    // Only atoms and boolean expressions can be operands of && and ||
+    void requireBool() throws Exception {
+        if (category == OPERAND_ARITH) {
+            throw error();
+        }
+    }
+
+    String name(int kind) throws Exception {
+        if (lexer.kind != kind) {
+            throw error();
+        }
+        var name = lexer.text;
+        lexer.next();
+        return name;
+    }
+
+    void expect(int kind) throws Exception {
+        if (lexer.kind != kind) {
+            throw error();
+        }
+        lexer.next();
+    }
+
+    // The same messages as the generated parser, less the tokens it expected
+    Exception error() {
+        if (lexer.kind == EOF) {
+            return new Exception("Syntax error at end of file");
+        }
+        return new Exception(
+            String.format("Syntax error at line %d, column %d", lexer.tokenLine,
+                          lexer.tokenColumn()));
+    }
+}
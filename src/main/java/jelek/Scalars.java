@@ -0,0 +1,132 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+// Scalar replacement over a method in SSA form. An object made by new that
+// is only ever read and assigned fields of, and so never escapes to a call,
+// another object, a phi or a return, is replaced by one variable per field
+// it has read. Its new assigns them their initial values, 0, false or null.
+// Assignments to fields nothing reads go.
+//
+// Copy propagation should have run, or a copy of the object counts as an
+// escape. With inlining first, an object passed to a small method can be
+// replaced too. The variables are assigned more than once, so the method
+// is no longer in SSA form after.
+class Scalars {
+    // Returns the number of objects replaced
+    static int run(Cfg cfg) {
+        var method = cfg.method;
+        var vars = new Dataflow.Vars(method);
+        var uses = new int[vars.size()]; // By var
+        var fieldUses = new int[vars.size()];
+        var defs = new int[vars.size()];
+        var news = new ArrayList<Integer>();
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                Dataflow.uses(stmt, vars, var -> uses[var]++);
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    defs[def]++;
+                }
+                int object = object(stmt, vars);
+                if (object >= 0) {
+                    fieldUses[object]++;
+                }
+                if (stmt instanceof Ir3.Stmt.Assign &&
+                    ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.New &&
+                    block.reachable()) {
+                    news.add(def);
+                }
+            }
+        }
+
+        // By object, its variables by field
+        var fields =
+            new HashMap<Integer, LinkedHashMap<String, Ast.Expr.Id>>();
+        for (int var : news) {
+            if (defs[var] == 1 && uses[var] == fieldUses[var] &&
+                var >= method.params.size()) {
+                fields.put(var, new LinkedHashMap<>());
+            }
+        }
+        if (fields.isEmpty()) {
+            return 0;
+        }
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                int object = object(stmt, vars);
+                if (fields.containsKey(object) &&
+                    stmt instanceof Ir3.Stmt.Assign) {
+                    var dot = (Ast.Expr.Dot)((Ir3.Stmt.Assign)stmt).rhs;
+                    fields.get(object).computeIfAbsent(dot.member, member -> {
+                        var temp = new Ast.Var(dot.type,
+                                               "_t" + method.tempCounter++);
+                        method.vars.add(temp);
+                        return Ssa.id(temp.id, temp.type);
+                    });
+                }
+            }
+        }
+
+        for (var block : cfg.blocks) {
+            var stmts = new ArrayList<Ir3.Stmt>();
+            for (var stmt : block.stmts) {
+                int def = Dataflow.def(stmt, vars);
+                int object = object(stmt, vars);
+                if (fields.containsKey(def)) {
+                    for (var field : fields.get(def).values()) {
+                        stmts.add(new Ir3.Stmt.Assign(field.id,
+                                                      initial(field.type)));
+                    }
+                } else if (!fields.containsKey(object)) {
+                    stmts.add(stmt);
+                } else if (stmt instanceof Ir3.Stmt.Assign) {
+                    var assign = (Ir3.Stmt.Assign)stmt;
+                    var member = ((Ast.Expr.Dot)assign.rhs).member;
+                    assign.rhs = fields.get(object).get(member);
+                    stmts.add(assign);
+                } else {
+                    var assign = (Ir3.Stmt.FieldAssign)stmt;
+                    var field = fields.get(object).get(assign.lhsField);
+                    if (field != null) {
+                        stmts.add(new Ir3.Stmt.Assign(field.id, assign.rhs));
+                    }
+                }
+            }
+            block.stmts.clear();
+            block.stmts.addAll(stmts);
+        }
+        method.stmts = cfg.stmts();
+        return fields.size();
+    }
+
+    // The variable a statement reads or assigns a field of, or -1. Only
+    // whole right-hand sides are taken, which is all Ir3Gen makes.
+    static int object(Ir3.Stmt stmt, Dataflow.Vars vars) {
+        Ast.Expr atom = null;
+        if (stmt instanceof Ir3.Stmt.Assign &&
+            ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Dot) {
+            atom = ((Ast.Expr.Dot)((Ir3.Stmt.Assign)stmt).rhs).atom;
+        } else if (stmt instanceof Ir3.Stmt.FieldAssign) {
+            atom = ((Ir3.Stmt.FieldAssign)stmt).lhsExpr;
+        }
+        return atom instanceof Ast.Expr.Id
+            ? vars.id(((Ast.Expr.Id)atom).id)
+            : -1;
+    }
+
+    static Ast.Expr initial(Ast.Type type) {
+        Ast.Expr initial;
+        if (type == Ast.Type.INT) {
+            initial = new Ast.Expr.Int(0);
+        } else if (type == Ast.Type.BOOL) {
+            initial = new Ast.Expr.Bool(false);
+        } else {
+            initial = new Ast.Expr.Null();
+        }
+        initial.type = type;
+        return initial;
+    }
+}
@@ -730,6 +730,12 @@ class Scanner implements java_cup.runtime.Scanner {
 
   /* user code: */
   StringBuffer sb = new StringBuffer();
+  final Symbols symbols;
+
+  // Interns the matched name without copying it into a String first
+  private String name() {
+    return symbols.intern(zzBuffer, zzStartRead, zzMarkedPos - zzStartRead);
+  }
 
   private Symbol symbol(int type) {
     return new Symbol(type, yyline + 1, yycolumn + 1);
@@ -745,7 +751,8 @@ class Scanner implements java_cup.runtime.Scanner {
    *
    * @param   in  the java.io.Reader to read input from.
    */
-  Scanner(java.io.Reader in) {
+  Scanner(java.io.Reader in, Symbols symbols) {
+    this.symbols = symbols;
     this.zzReader = in;
   }
 
@@ -1232,12 +1239,12 @@ class Scanner implements java_cup.runtime.Scanner {
             // fall through
           case 68: break;
           case 18:
-            { return symbol(sym.CNAME, yytext());
+            { return symbol(sym.CNAME, name());
             }
             // fall through
           case 69: break;
           case 19:
-            { return symbol(sym.ID, yytext());
+            { return symbol(sym.ID, name());
             }
             // fall through
           case 70: break;
@@ -0,0 +1,399 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+
+// Sparse conditional constant propagation, after Wegman and Zadeck, over a
+// method in SSA form. Only blocks reachable along edges whose branch
+// conditions can hold are evaluated, and a variable is constant if every
+// such assignment to it, and every such phi arg, gives the same value.
+// Ints wrap as in Java, and division by zero is left for run time.
+//
+// run puts the constants in place of the variables and drops the
+// assignments that nothing reads any more. Branches on a constant are left
+// with a literal condition, for prune to resolve once the method is out of
+// SSA form, along with the blocks that can no longer be reached.
+class Sccp {
+    // The value of a variable that can hold more than one. null is for one
+    // that no evaluated statement assigns yet. Anything else is the one
+    // value, an Integer, Boolean or String.
+    static final Object BOTTOM = new Object();
+
+    final Cfg cfg;
+    final Dataflow.Vars vars;
+    final Object[] values;
+    final ArrayList<ArrayList<Ir3.Stmt>> uses = new ArrayList<>(); // By var
+    final IdentityHashMap<Ir3.Stmt, Cfg.Block> blocks =
+        new IdentityHashMap<>();
+
+    final BitSet executable = new BitSet(); // By block id
+    final BitSet[] edges; // By block id, the executable succs by index
+    final ArrayDeque<Cfg.Block> blockWork = new ArrayDeque<>();
+    final ArrayDeque<Integer> varWork = new ArrayDeque<>();
+
+    Sccp(Cfg cfg) {
+        this.cfg = cfg;
+        vars = new Dataflow.Vars(cfg.method);
+        values = new Object[vars.size()];
+        edges = new BitSet[cfg.blocks.size()];
+        for (int i = 0; i < vars.size(); i++) {
+            uses.add(new ArrayList<>());
+        }
+
+        // Params and the initial values of locals are not known
+        var assigned = new BitSet();
+        for (var block : cfg.rpo) {
+            for (var stmt : block.stmts) {
+                blocks.put(stmt, block);
+                Dataflow.uses(stmt, vars, var -> uses.get(var).add(stmt));
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    assigned.set(def);
+                }
+            }
+        }
+        for (int var = 0; var < vars.size(); var++) {
+            if (!assigned.get(var)) {
+                values[var] = BOTTOM;
+            }
+        }
+        for (var block : cfg.blocks) {
+            edges[block.id] = new BitSet();
+        }
+    }
+
+    // Returns the number of statements removed
+    static int run(Cfg cfg) {
+        var sccp = new Sccp(cfg);
+        sccp.solve();
+        return sccp.rewrite();
+    }
+
+    void solve() {
+        blockWork.add(cfg.entry());
+        while (!blockWork.isEmpty() || !varWork.isEmpty()) {
+            while (!blockWork.isEmpty()) {
+                var block = blockWork.poll();
+                for (var stmt : block.stmts) {
+                    if (stmt instanceof Ir3.Stmt.Phi) {
+                        visit(stmt, block);
+                    }
+                }
+                if (executable.get(block.id)) {
+                    continue;
+                }
+                executable.set(block.id);
+                for (var stmt : block.stmts) {
+                    if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                        visit(stmt, block);
+                    }
+                }
+                if (!(block.last() instanceof Ir3.Stmt.If)) {
+                    for (var succ : block.succs) {
+                        edge(block, succ);
+                    }
+                }
+            }
+            while (!varWork.isEmpty()) {
+                for (var stmt : uses.get(varWork.poll())) {
+                    var block = blocks.get(stmt);
+                    if (executable.get(block.id)) {
+                        visit(stmt, block);
+                    }
+                }
+            }
+        }
+    }
+
+    void edge(Cfg.Block from, Cfg.Block to) {
+        int i = from.succs.indexOf(to);
+        if (!edges[from.id].get(i)) {
+            edges[from.id].set(i);
+            blockWork.add(to);
+        }
+    }
+
+    void visit(Ir3.Stmt stmt, Cfg.Block block) {
+        if (stmt instanceof Ir3.Stmt.Phi) {
+            var phi = (Ir3.Stmt.Phi)stmt;
+            Object value = null;
+            for (int i = 0; i < phi.args.size(); i++) {
+                var pred = block.preds.get(i);
+                if (edges[pred.id].get(pred.succs.indexOf(block))) {
+                    value = meet(value, eval(phi.args.get(i)));
+                }
+            }
+            lower(phi.lhs, value);
+        } else if (stmt instanceof Ir3.Stmt.Assign) {
+            var assign = (Ir3.Stmt.Assign)stmt;
+            lower(assign.lhs, eval(assign.rhs));
+        } else if (stmt instanceof Ir3.Stmt.Readln) {
+            lower(((Ir3.Stmt.Readln)stmt).id, BOTTOM);
+        } else if (stmt instanceof Ir3.Stmt.If) {
+            var if_ = (Ir3.Stmt.If)stmt;
+            var cond = eval(if_.cond);
+            if (cond == null) {
+                return;
+            }
+            Cfg.Block target = null;
+            for (var succ : block.succs) {
+                if (Ssa.labelled(succ, if_.label)) {
+                    target = succ;
+                }
+            }
+            var next = block.id + 1 < cfg.blocks.size()
+                           ? cfg.blocks.get(block.id + 1)
+                           : null;
+            if (cond != Boolean.FALSE) {
+                edge(block, target);
+            }
+            if (cond != Boolean.TRUE && next != null) {
+                edge(block, next);
+            }
+        }
+    }
+
+    void lower(String name, Object value) {
+        int var = vars.id(name);
+        var lowered = meet(values[var], value);
+        if (lowered != values[var]) {
+            values[var] = lowered;
+            varWork.add(var);
+        }
+    }
+
+    static Object meet(Object a, Object b) {
+        if (a == null) {
+            return b;
+        } else if (b == null || a.equals(b)) {
+            return a;
+        } else {
+            return BOTTOM;
+        }
+    }
+
+    Object eval(Ast.Expr expr) {
+        if (expr instanceof Ast.Expr.Int) {
+            return ((Ast.Expr.Int)expr).value;
+        } else if (expr instanceof Ast.Expr.Bool) {
+            return ((Ast.Expr.Bool)expr).value;
+        } else if (expr instanceof Ast.Expr.Str) {
+            return ((Ast.Expr.Str)expr).value;
+        } else if (expr instanceof Ast.Expr.Id) {
+            int var = vars.id(((Ast.Expr.Id)expr).id);
+            return var < 0 ? BOTTOM : values[var];
+        } else if (expr instanceof Ast.Expr.Unary) {
+            var unary = (Ast.Expr.Unary)expr;
+            return fold(unary.op, eval(unary.atom));
+        } else if (expr instanceof Ast.Expr.Binary) {
+            var binary = (Ast.Expr.Binary)expr;
+            return fold(binary.op, eval(binary.e1), eval(binary.e2));
+        } else {
+            // Fields, calls, new objects, this and null
+            return BOTTOM;
+        }
+    }
+
+    static Object fold(Ast.Expr.UnaryOp op, Object atom) {
+        if (atom == null || atom == BOTTOM) {
+            return atom;
+        } else if (op == Ast.Expr.UnaryOp.NEG) {
+            return -(Integer)atom;
+        } else {
+            return !(Boolean)atom;
+        }
+    }
+
+    static Object fold(Ast.Expr.BinaryOp op, Object e1, Object e2) {
+        // Operands have no side effects, so one can decide the result
+        switch (op) {
+        case AND:
+            if (e1 == Boolean.FALSE || e2 == Boolean.FALSE) {
+                return false;
+            }
+            break;
+        case OR:
+            if (e1 == Boolean.TRUE || e2 == Boolean.TRUE) {
+                return true;
+            }
+            break;
+        case MUL:
+            if (Integer.valueOf(0).equals(e1) ||
+                Integer.valueOf(0).equals(e2)) {
+                return 0;
+            }
+            break;
+        default:
+            break;
+        }
+        if (e1 == null || e2 == null) {
+            return null;
+        } else if (e1 == BOTTOM || e2 == BOTTOM) {
+            return BOTTOM;
+        }
+
+        if (e1 instanceof Integer && e2 instanceof Integer) {
+            int i1 = (Integer)e1;
+            int i2 = (Integer)e2;
+            switch (op) {
+            case PLUS:
+                return i1 + i2;
+            case MINUS:
+                return i1 - i2;
+            case MUL:
+                return i1 * i2;
+            case DIV:
+                return i2 == 0 ? BOTTOM : i1 / i2;
+            case LT:
+                return i1 < i2;
+            case GT:
+                return i1 > i2;
+            case LEQ:
+                return i1 <= i2;
+            case GEQ:
+                return i1 >= i2;
+            case EQ:
+                return i1 == i2;
+            case NEQ:
+                return i1 != i2;
+            default:
+                return BOTTOM;
+            }
+        } else if (e1 instanceof Boolean && e2 instanceof Boolean) {
+            boolean b1 = (Boolean)e1;
+            boolean b2 = (Boolean)e2;
+            switch (op) {
+            case AND:
+                return b1 && b2;
+            case OR:
+                return b1 || b2;
+            case EQ:
+                return b1 == b2;
+            case NEQ:
+                return b1 != b2;
+            default:
+                return BOTTOM;
+            }
+        } else {
+            // Strings compare by reference
+            return BOTTOM;
+        }
+    }
+
+    // The literal for a constant, or null
+    static Ast.Expr literal(Object value) {
+        Ast.Expr literal;
+        if (value instanceof Integer) {
+            literal = new Ast.Expr.Int((Integer)value);
+            literal.type = Ast.Type.INT;
+        } else if (value instanceof Boolean) {
+            literal = new Ast.Expr.Bool((Boolean)value);
+            literal.type = Ast.Type.BOOL;
+        } else if (value instanceof String) {
+            literal = new Ast.Expr.Str((String)value);
+            literal.type = Ast.Type.STRING;
+        } else {
+            literal = null;
+        }
+        return literal;
+    }
+
+    Ast.Expr replace(Ast.Expr.Id id) {
+        int var = vars.id(id.id);
+        var literal = var < 0 ? null : literal(values[var]);
+        return literal == null ? id : literal;
+    }
+
+    int rewrite() {
+        // Put in the constants, in dead code too, since it can read them
+        int removed = 0;
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.Phi) {
+                    var args = ((Ir3.Stmt.Phi)stmt).args;
+                    for (int i = 0; i < args.size(); i++) {
+                        if (args.get(i) instanceof Ast.Expr.Id) {
+                            args.set(i, replace((Ast.Expr.Id)args.get(i)));
+                        }
+                    }
+                } else {
+                    Ir3.mapUses(stmt, this::replace);
+                }
+                if (stmt instanceof Ir3.Stmt.If) {
+                    // A comparison in the condition itself
+                    var if_ = (Ir3.Stmt.If)stmt;
+                    var literal = literal(eval(if_.cond));
+                    if (literal != null) {
+                        if_.cond = literal;
+                    }
+                }
+                if (stmt instanceof Ir3.Stmt.Assign) {
+                    var assign = (Ir3.Stmt.Assign)stmt;
+                    var literal = literal(values[vars.id(assign.lhs)]);
+                    if (literal != null) {
+                        assign.rhs = literal;
+                    }
+                }
+            }
+        }
+
+        // Drop the assignments of constants that are no longer read, as
+        // where IR3 wants a name
+        var read = new BitSet();
+        for (var block : cfg.blocks) {
+            for (var stmt : block.stmts) {
+                Dataflow.uses(stmt, vars, read::set);
+            }
+        }
+        for (var block : cfg.blocks) {
+            var stmts = new ArrayList<Ir3.Stmt>();
+            for (var stmt : block.stmts) {
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0 && !read.get(def) &&
+                    literal(values[def]) != null) {
+                    // Phis aren't counted, as they only stand for copies
+                    if (!(stmt instanceof Ir3.Stmt.Phi)) {
+                        removed++;
+                    }
+                } else {
+                    stmts.add(stmt);
+                }
+            }
+            block.stmts.clear();
+            block.stmts.addAll(stmts);
+        }
+        cfg.method.stmts = cfg.stmts();
+        return removed;
+    }
+
+    // Resolves branches on a literal and removes the blocks that can't be
+    // reached. Returns the number of statements removed.
+    static int prune(Ir3.Method method) {
+        int before = method.stmts.size();
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (var stmt : method.stmts) {
+            if (stmt instanceof Ir3.Stmt.If &&
+                ((Ir3.Stmt.If)stmt).cond instanceof Ast.Expr.Bool) {
+                var if_ = (Ir3.Stmt.If)stmt;
+                if (((Ast.Expr.Bool)if_.cond).value) {
+                    stmts.add(new Ir3.Stmt.Goto(if_.label));
+                }
+            } else {
+                stmts.add(stmt);
+            }
+        }
+        method.stmts = stmts;
+
+        var cfg = Cfg.build(method);
+        stmts = new ArrayList<>();
+        for (var block : cfg.blocks) {
+            if (block.reachable()) {
+                stmts.addAll(block.stmts);
+            }
+        }
+        method.stmts = stmts;
+        return before - stmts.size();
+    }
+}
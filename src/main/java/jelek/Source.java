@@ -0,0 +1,105 @@
+package jelek;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// The bytes of one source file, read once. Files are memory-mapped, so
+// echoing and scanning them never copies the whole file onto the heap.
+class Source {
+    final String name;
+    final ByteBuffer bytes;
+
+    Source(String name, ByteBuffer bytes) {
+        this.name = name;
+        this.bytes = bytes;
+    }
+
+    static Source map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path)) {
+            return new Source(
+                path.toString(),
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    // Writes the source out as is, without decoding it
+    void echo(PrintStream out) throws IOException {
+        Channels.newChannel(out).write(bytes.duplicate());
+        out.println();
+    }
+
+    Reader reader() { return new SourceReader(bytes.duplicate()); }
+
+    // Decodes UTF-8. Bytes are widened straight to chars until the first
+    // non-ASCII byte, and only the rest of the input after it goes through a
+    // CharsetDecoder. A character outside the BMP decodes to two chars, so
+    // when there is room for only one, the second is kept for the next read.
+    static class SourceReader extends Reader {
+        final ByteBuffer in;
+        CharsetDecoder decoder;
+        CharBuffer pending; // Or null
+
+        SourceReader(ByteBuffer in) { this.in = in; }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) {
+            if (pending != null && pending.hasRemaining() && len > 0) {
+                cbuf[off] = pending.get();
+                return 1;
+            }
+
+            int n = 0;
+            if (decoder == null) {
+                int pos = in.position();
+                int limit = in.limit();
+                while (n < len && pos < limit) {
+                    byte b = in.get(pos);
+                    if (b < 0) {
+                        decoder = StandardCharsets.UTF_8.newDecoder();
+                        decoder.onMalformedInput(CodingErrorAction.REPLACE);
+                        decoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+                        break;
+                    }
+                    cbuf[off + n++] = (char)b;
+                    pos++;
+                }
+                in.position(pos);
+
+                if (decoder == null || n > 0) {
+                    return n == 0 && len > 0 ? -1 : n;
+                }
+            }
+
+            if (!in.hasRemaining()) {
+                return len > 0 ? -1 : 0;
+            }
+
+            var out = CharBuffer.wrap(cbuf, off, len);
+            decoder.decode(in, out, true);
+            if (out.position() == off && len > 0) {
+                // The next character didn't fit
+                pending = CharBuffer.allocate(2);
+                decoder.decode(in, pending, true);
+                pending.flip();
+                cbuf[off] = pending.get();
+                out.position(off + 1);
+            }
+            if (!in.hasRemaining()) {
+                decoder.flush(out);
+            }
+            return out.position() - off;
+        }
+
+        @Override
+        public void close() {}
+    }
+}
@@ -0,0 +1,642 @@
+package jelek;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+// Static single assignment form for an Ir3.Method, in place over its Cfg.
+//
+// build places phis at the iterated dominance frontiers of each variable's
+// assignments, but only where the variable is live (pruned SSA), then walks
+// the dominator tree giving every assignment a new version, x#1, x#2, ....
+// Params and the initial value of locals keep their plain name, as does
+// the one assignment of a variable whose initial value is never read, which
+// covers nearly every temp. The versions are declared in the method's vars
+// alongside the originals.
+//
+// destroy turns phis back into copies at the end of each predecessor,
+// splitting critical edges where it has to, and then gives all the versions
+// of a variable the original name again wherever their live ranges don't
+// overlap. Right after build they never do, so the round trip gives back
+// the code it started with. A version that an optimization left live
+// alongside another keeps a name of its own, x$1, x$2, ....
+class Ssa {
+    static void build(Cfg cfg) {
+        var method = cfg.method;
+        var vars = new Dataflow.Vars(method);
+        var types = types(method, vars);
+        var globals = globals(cfg, vars);
+        var liveness = new Dataflow.Liveness(cfg, globals);
+
+        // The blocks that assign each variable
+        var defBlocks = new ArrayList<ArrayList<Cfg.Block>>();
+        var defs = new int[vars.size()];
+        for (int i = 0; i < vars.size(); i++) {
+            defBlocks.add(new ArrayList<>());
+        }
+        for (var block : cfg.rpo) {
+            for (var stmt : block.stmts) {
+                int var = Dataflow.def(stmt, vars);
+                if (var >= 0) {
+                    defs[var]++;
+                    var blocks = defBlocks.get(var);
+                    if (blocks.isEmpty() ||
+                        blocks.get(blocks.size() - 1) != block) {
+                        blocks.add(block);
+                    }
+                }
+            }
+        }
+
+        // Place phis, with the original name for now
+        var phis = new IdentityHashMap<Ir3.Stmt.Phi, Integer>(); // To var
+        var hasPhi = new BitSet();
+        var queued = new BitSet();
+        var work = new ArrayDeque<Cfg.Block>();
+        for (int var = 0; var < vars.size(); var++) {
+            int global = globals.id(vars.names.get(var));
+            if (global < 0) {
+                continue;
+            }
+            hasPhi.clear();
+            queued.clear();
+            for (var block : defBlocks.get(var)) {
+                queued.set(block.id);
+                work.push(block);
+            }
+            while (!work.isEmpty()) {
+                for (var join : work.pop().frontier) {
+                    if (hasPhi.get(join.id) ||
+                        !liveness.liveIn(join).get(global)) {
+                        continue;
+                    }
+                    hasPhi.set(join.id);
+                    var args = new ArrayList<Ast.Expr>();
+                    for (var pred : join.preds) {
+                        args.add(id(vars.names.get(var), types[var]));
+                    }
+                    var phi = new Ir3.Stmt.Phi(vars.names.get(var), args);
+                    join.stmts.add(labels(join), phi);
+                    phis.put(phi, var);
+                    defs[var]++;
+                    if (!queued.get(join.id)) {
+                        queued.set(join.id);
+                        work.push(join);
+                    }
+                }
+            }
+        }
+
+        // A variable assigned just once, whose initial value is never read,
+        // can keep its name for that assignment
+        var plain = new BitSet();
+        var entryLive = liveness.liveIn(cfg.entry());
+        for (int var = 0; var < vars.size(); var++) {
+            int global = globals.id(vars.names.get(var));
+            if (defs[var] == 1 && (global < 0 || !entryLive.get(global))) {
+                plain.set(var);
+            }
+        }
+
+        new Renamer(cfg, vars, types, phis, plain).run();
+        method.stmts = cfg.stmts();
+    }
+
+    // The variables some block reads before assigning. No others are live
+    // into a block, so no others can need a phi.
+    static Dataflow.Vars globals(Cfg cfg, Dataflow.Vars vars) {
+        var global = new BitSet();
+        var assigned = new BitSet();
+        for (var block : cfg.rpo) {
+            assigned.clear();
+            for (var stmt : block.stmts) {
+                Dataflow.uses(stmt, vars, var -> {
+                    if (!assigned.get(var)) {
+                        global.set(var);
+                    }
+                });
+                int def = Dataflow.def(stmt, vars);
+                if (def >= 0) {
+                    assigned.set(def);
+                }
+            }
+        }
+        var globals = new Dataflow.Vars();
+        for (int var = global.nextSetBit(0); var >= 0;
+             var = global.nextSetBit(var + 1)) {
+            globals.add(vars.names.get(var));
+        }
+        return globals;
+    }
+
+    static Ast.Type[] types(Ir3.Method method, Dataflow.Vars vars) {
+        var types = new Ast.Type[vars.size()];
+        int i = 0;
+        for (var var : method.params) {
+            types[i++] = var.type;
+        }
+        for (var var : method.vars) {
+            types[i++] = var.type;
+        }
+        return types;
+    }
+
+    static Ast.Expr.Id id(String name, Ast.Type type) {
+        var id = new Ast.Expr.Id(name);
+        id.type = type;
+        return id;
+    }
+
+    // The number of labels a block starts with
+    static int labels(Cfg.Block block) {
+        int i = 0;
+        while (i < block.stmts.size() &&
+               block.stmts.get(i) instanceof Ir3.Stmt.Label) {
+            i++;
+        }
+        return i;
+    }
+
+    // Gives every assignment a new version, in a preorder walk of the
+    // dominator tree, so that each read sees the version of the nearest
+    // dominating assignment
+    static class Renamer {
+        final Cfg cfg;
+        final Dataflow.Vars vars;
+        final Ast.Type[] types;
+        final IdentityHashMap<Ir3.Stmt.Phi, Integer> phis;
+        final BitSet plain; // Variables that keep their name
+        // By variable, the version in scope and the last version number
+        final String[] current;
+        final int[] versions;
+        // Versions to restore on leaving a block, innermost last
+        final ArrayList<Integer> undoVars = new ArrayList<>();
+        final ArrayList<String> undoNames = new ArrayList<>();
+
+        Renamer(Cfg cfg, Dataflow.Vars vars, Ast.Type[] types,
+                IdentityHashMap<Ir3.Stmt.Phi, Integer> phis, BitSet plain) {
+            this.cfg = cfg;
+            this.vars = vars;
+            this.types = types;
+            this.phis = phis;
+            this.plain = plain;
+            current = vars.names.toArray(new String[0]);
+            versions = new int[vars.size()];
+        }
+
+        void run() {
+            // Without recursion, since the tree can be very deep. A block is
+            // pushed once to be entered and once more to be left.
+            var stack = new ArrayDeque<Cfg.Block>();
+            var marks = new int[cfg.blocks.size()];
+            var entered = new BitSet();
+            stack.push(cfg.entry());
+            while (!stack.isEmpty()) {
+                var block = stack.pop();
+                if (entered.get(block.id)) {
+                    undo(marks[block.id]);
+                    continue;
+                }
+                entered.set(block.id);
+                marks[block.id] = undoVars.size();
+                rename(block);
+                stack.push(block);
+                for (var child : block.dominated) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        void rename(Cfg.Block block) {
+            for (var stmt : block.stmts) {
+                if (stmt instanceof Ir3.Stmt.Phi) {
+                    var phi = (Ir3.Stmt.Phi)stmt;
+                    phi.lhs = define(phis.get(phi));
+                    continue;
+                }
+
+                Ir3.mapUses(stmt, id -> {
+                    int var = vars.id(id.id);
+                    return var < 0 || current[var] == id.id
+                        ? id
+                        : Ssa.id(current[var], id.type);
+                });
+                if (stmt instanceof Ir3.Stmt.Assign) {
+                    var assign = (Ir3.Stmt.Assign)stmt;
+                    assign.lhs = define(vars.id(assign.lhs));
+                } else if (stmt instanceof Ir3.Stmt.Readln) {
+                    var readln = (Ir3.Stmt.Readln)stmt;
+                    readln.id = define(vars.id(readln.id));
+                }
+            }
+
+            for (var succ : block.succs) {
+                int pred = succ.preds.indexOf(block);
+                for (int i = labels(succ); i < succ.stmts.size() &&
+                                           succ.stmts.get(i) instanceof
+                                               Ir3.Stmt.Phi;
+                     i++) {
+                    var phi = (Ir3.Stmt.Phi)succ.stmts.get(i);
+                    int var = phis.get(phi);
+                    phi.args.set(pred, id(current[var], types[var]));
+                }
+            }
+        }
+
+        String define(int var) {
+            if (plain.get(var)) {
+                return vars.names.get(var);
+            }
+            undoVars.add(var);
+            undoNames.add(current[var]);
+            var name = vars.names.get(var) + "#" + ++versions[var];
+            current[var] = name;
+            cfg.method.vars.add(new Ast.Var(types[var], name));
+            return name;
+        }
+
+        void undo(int mark) {
+            for (int i = undoVars.size() - 1; i >= mark; i--) {
+                current[undoVars.get(i)] = undoNames.get(i);
+                undoVars.remove(i);
+                undoNames.remove(i);
+            }
+        }
+    }
+
+    // The Cfg is not up to date afterwards
+    static void destroy(Cfg cfg) {
+        var method = cfg.method;
+        var declared = new HashMap<String, Ast.Var>();
+        for (var var : method.params) {
+            declared.put(var.id, var);
+        }
+        for (var var : method.vars) {
+            declared.put(var.id, var);
+        }
+
+        // Replace the phis of every block by copies on its incoming edges
+        var splits = new ArrayList<Split>();
+        var inserted = Collections.newSetFromMap(
+            new IdentityHashMap<Ir3.Stmt, Boolean>());
+        var blocks = new ArrayList<Cfg.Block>(cfg.blocks);
+        var tail = new ArrayList<Cfg.Block>(); // Blocks to add at the end
+        for (var block : cfg.blocks) {
+            int start = labels(block);
+            int end = start;
+            while (end < block.stmts.size() &&
+                   block.stmts.get(end) instanceof Ir3.Stmt.Phi) {
+                end++;
+            }
+            if (start == end) {
+                continue;
+            }
+            var blockPhis = new ArrayList<Ir3.Stmt>(
+                block.stmts.subList(start, end));
+            block.stmts.subList(start, end).clear();
+
+            for (int i = 0; i < block.preds.size(); i++) {
+                var pred = block.preds.get(i);
+                var sequence = copies(blockPhis, i, method, declared);
+                inserted.addAll(sequence);
+                if (sequence.isEmpty()) {
+                    continue;
+                }
+
+                var last = pred.last();
+                if (pred.succs.size() == 1 && !(last instanceof Ir3.Stmt.If)) {
+                    int at = last instanceof Ir3.Stmt.Goto
+                                 ? pred.stmts.size() - 1
+                                 : pred.stmts.size();
+                    pred.stmts.addAll(at, sequence);
+                    continue;
+                } else if (block.preds.size() == 1) {
+                    block.stmts.addAll(start, sequence);
+                    continue;
+                }
+                if (last instanceof Ir3.Stmt.If &&
+                    labelled(block, ((Ir3.Stmt.If)last).label)) {
+                    // The branch of pred goes here. Send it through a new
+                    // block at the end that copies and jumps on.
+                    var if_ = (Ir3.Stmt.If)last;
+                    var split = new Split(if_, if_.label,
+                                          method.labelCounter++);
+                    var stmts = new ArrayList<Ir3.Stmt>();
+                    stmts.add(split.label);
+                    stmts.addAll(sequence);
+                    stmts.add(split.jump);
+                    if_.label = split.label.label;
+                    splits.add(split);
+                    tail.add(newBlock(stmts));
+                    sequence = copies(blockPhis, i, method, declared);
+                    inserted.addAll(sequence);
+                }
+                int at = blocks.indexOf(pred) + 1;
+                if (!(last instanceof Ir3.Stmt.Goto ||
+                      last instanceof Ir3.Stmt.Return) &&
+                    at < blocks.size() && blocks.get(at) == block) {
+                    // Pred falls through to here. Copy in between.
+                    blocks.add(at, newBlock(sequence));
+                }
+            }
+        }
+
+        method.stmts = new ArrayList<>();
+        for (var block : blocks) {
+            method.stmts.addAll(block.stmts);
+        }
+        Ir3.Stmt.Return added = null;
+        if (!tail.isEmpty()) {
+            // Don't fall into the new blocks
+            var last = method.stmts.isEmpty()
+                           ? null
+                           : method.stmts.get(method.stmts.size() - 1);
+            if (!(last instanceof Ir3.Stmt.Goto ||
+                  last instanceof Ir3.Stmt.Return)) {
+                added = new Ir3.Stmt.Return(null);
+                method.stmts.add(added);
+            }
+            for (var block : tail) {
+                method.stmts.addAll(block.stmts);
+            }
+        }
+
+        coalesce(method, declared, inserted);
+        unsplit(method, splits, added);
+    }
+
+    // An If whose target moved to a new block of copies
+    static class Split {
+        final Ir3.Stmt.If if_;
+        final Ir3.Stmt.Label label;
+        final Ir3.Stmt.Goto jump;
+
+        Split(Ir3.Stmt.If if_, int target, int label) {
+            this.if_ = if_;
+            this.label = new Ir3.Stmt.Label(label);
+            this.jump = new Ir3.Stmt.Goto(target);
+        }
+    }
+
+    static boolean labelled(Cfg.Block block, int label) {
+        for (int i = 0; i < labels(block); i++) {
+            if (((Ir3.Stmt.Label)block.stmts.get(i)).label == label) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static Cfg.Block newBlock(List<Ir3.Stmt> stmts) {
+        var block = new Cfg.Block(-1);
+        block.stmts.addAll(stmts);
+        return block;
+    }
+
+    // The copies the phis make on the way in from the pred at index i
+    static List<Ir3.Stmt> copies(List<Ir3.Stmt> phis, int i,
+                                 Ir3.Method method,
+                                 HashMap<String, Ast.Var> declared) {
+        var copies = new ArrayList<Ir3.Stmt.Assign>();
+        for (var stmt : phis) {
+            var phi = (Ir3.Stmt.Phi)stmt;
+            var arg = phi.args.get(i);
+            if (!(arg instanceof Ast.Expr.Id &&
+                  ((Ast.Expr.Id)arg).id.equals(phi.lhs))) {
+                copies.add(new Ir3.Stmt.Assign(phi.lhs, arg));
+            }
+        }
+        return sequentialize(copies, method, declared);
+    }
+
+    // Orders copies that happen all at once, so that no copy overwrites a
+    // source another still needs. Cycles are broken with a new temp.
+    static List<Ir3.Stmt> sequentialize(List<Ir3.Stmt.Assign> copies,
+                                        Ir3.Method method,
+                                        HashMap<String, Ast.Var> declared) {
+        var sequence = new ArrayList<Ir3.Stmt>();
+        var pending = new ArrayList<>(copies);
+        while (!pending.isEmpty()) {
+            boolean progress = false;
+            for (int i = 0; i < pending.size(); i++) {
+                var copy = pending.get(i);
+                if (!readByOther(copy.lhs, pending, copy)) {
+                    sequence.add(copy);
+                    pending.remove(i--);
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                // Every destination is still read: save one and read the
+                // saved value instead
+                var copy = pending.get(0);
+                var var = declared.get(copy.lhs);
+                var temp = new Ast.Var(var.type, "_t" + method.tempCounter++);
+                method.vars.add(temp);
+                declared.put(temp.id, temp);
+                sequence.add(
+                    new Ir3.Stmt.Assign(temp.id, id(copy.lhs, var.type)));
+                for (var other : pending) {
+                    if (other.rhs instanceof Ast.Expr.Id &&
+                        ((Ast.Expr.Id)other.rhs).id.equals(copy.lhs)) {
+                        other.rhs = id(temp.id, var.type);
+                    }
+                }
+            }
+        }
+        return sequence;
+    }
+
+    static boolean readByOther(String name, List<Ir3.Stmt.Assign> copies,
+                               Ir3.Stmt.Assign except) {
+        for (var copy : copies) {
+            if (copy != except && copy.rhs instanceof Ast.Expr.Id &&
+                ((Ast.Expr.Id)copy.rhs).id.equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The variable a version belongs to
+    static String original(String name) {
+        int i = name.indexOf('#');
+        return i < 0 ? name : name.substring(0, i);
+    }
+
+    // Renames each version to its variable unless it interferes with a
+    // version already renamed so, in which case it joins the first x$N it
+    // doesn't interfere with. Two versions interfere if one is assigned
+    // where the other is live, unless by a copy of the other.
+    static void coalesce(Ir3.Method method, HashMap<String, Ast.Var> declared,
+                         Set<Ir3.Stmt> inserted) {
+        // Only variables with versions get new names, so only they are
+        // numbered. Nearly all temps have just the one.
+        var versioned = new HashSet<String>();
+        for (var var : method.vars) {
+            if (var.id.indexOf('#') >= 0) {
+                versioned.add(original(var.id));
+            }
+        }
+        var vars = new Dataflow.Vars();
+        for (var var : method.params) {
+            if (versioned.contains(var.id)) {
+                vars.add(var.id);
+            }
+        }
+        for (var var : method.vars) {
+            if (versioned.contains(original(var.id))) {
+                vars.add(var.id);
+            }
+        }
+        var cfg = Cfg.build(method);
+        var liveness = new Dataflow.Liveness(cfg, vars);
+
+        var groups = new int[vars.size()]; // By variable, its original's id
+        for (int var = 0; var < vars.size(); var++) {
+            int group = vars.id(original(vars.names.get(var)));
+            groups[var] = group < 0 ? var : group;
+        }
+
+        var interfering = new ArrayList<ArrayList<Integer>>();
+        for (int var = 0; var < vars.size(); var++) {
+            interfering.add(new ArrayList<>());
+        }
+        for (var block : cfg.rpo) {
+            var after = liveness.liveAfter(block);
+            for (int i = 0; i < block.stmts.size(); i++) {
+                var stmt = block.stmts.get(i);
+                int def = Dataflow.def(stmt, vars);
+                if (def < 0) {
+                    continue;
+                }
+                int copied = -1;
+                if (stmt instanceof Ir3.Stmt.Assign &&
+                    ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Id) {
+                    copied = vars.id(
+                        ((Ast.Expr.Id)((Ir3.Stmt.Assign)stmt).rhs).id);
+                }
+                var live = after[i];
+                for (int var = live.nextSetBit(0); var >= 0;
+                     var = live.nextSetBit(var + 1)) {
+                    if (var != def && var != copied &&
+                        groups[var] == groups[def]) {
+                        interfering.get(var).add(def);
+                        interfering.get(def).add(var);
+                    }
+                }
+            }
+        }
+
+        // Each takes the first name of its group that no version it
+        // interferes with has yet
+        var names = new String[vars.size()];
+        var taken = new HashSet<>(declared.keySet());
+        var made = new HashSet<String>(); // The x$N so far
+        var clashes = new HashSet<String>();
+        for (int var = 0; var < vars.size(); var++) {
+            clashes.clear();
+            for (int other : interfering.get(var)) {
+                if (names[other] != null) {
+                    clashes.add(names[other]);
+                }
+            }
+            var group = vars.names.get(groups[var]);
+            for (int n = 0;; n++) {
+                var name = n == 0 ? group : group + "$" + n;
+                if (clashes.contains(name) ||
+                    (n > 0 && taken.contains(name) && !made.contains(name))) {
+                    continue;
+                }
+                if (n > 0 && made.add(name)) {
+                    taken.add(name);
+                }
+                names[var] = name;
+                break;
+            }
+        }
+
+        // Rename, dropping the copies from phis that this makes x = x
+        var stmts = new ArrayList<Ir3.Stmt>();
+        for (var stmt : method.stmts) {
+            Ir3.mapUses(stmt, id -> {
+                int var = vars.id(id.id);
+                return var < 0 || names[var].equals(id.id)
+                    ? id
+                    : Ssa.id(names[var], id.type);
+            });
+            if (stmt instanceof Ir3.Stmt.Assign) {
+                var assign = (Ir3.Stmt.Assign)stmt;
+                int var = vars.id(assign.lhs);
+                if (var >= 0) {
+                    assign.lhs = names[var];
+                }
+                if (inserted.contains(assign) &&
+                    assign.rhs instanceof Ast.Expr.Id &&
+                    ((Ast.Expr.Id)assign.rhs).id.equals(assign.lhs)) {
+                    continue;
+                }
+            } else if (stmt instanceof Ir3.Stmt.Readln) {
+                var readln = (Ir3.Stmt.Readln)stmt;
+                int var = vars.id(readln.id);
+                if (var >= 0) {
+                    readln.id = names[var];
+                }
+            }
+            stmts.add(stmt);
+        }
+        method.stmts = stmts;
+
+        // Declare what is left, in place of the versions
+        var vars_ = new ArrayList<Ast.Var>();
+        var seen = new HashSet<String>();
+        for (var var : method.params) {
+            seen.add(var.id);
+        }
+        for (var var : method.vars) {
+            if (var.id.indexOf('#') < 0 && seen.add(var.id)) {
+                vars_.add(var);
+            }
+        }
+        for (int var = 0; var < vars.size(); var++) {
+            if (seen.add(names[var])) {
+                vars_.add(new Ast.Var(declared.get(vars.names.get(var)).type,
+                                      names[var]));
+            }
+        }
+        method.vars = vars_;
+    }
+
+    // Puts back the branches whose new block ended up without copies
+    static void unsplit(Ir3.Method method, List<Split> splits,
+                        Ir3.Stmt.Return added) {
+        if (splits.isEmpty()) {
+            return;
+        }
+        var positions = new IdentityHashMap<Ir3.Stmt, Integer>();
+        for (int i = 0; i < method.stmts.size(); i++) {
+            positions.put(method.stmts.get(i), i);
+        }
+        var removed = new IdentityHashMap<Ir3.Stmt, Boolean>();
+        boolean allRemoved = true;
+        for (var split : splits) {
+            if (positions.get(split.label) + 1 == positions.get(split.jump)) {
+                split.if_.label = split.jump.label;
+                removed.put(split.label, true);
+                removed.put(split.jump, true);
+            } else {
+                allRemoved = false;
+            }
+        }
+        if (allRemoved && added != null) {
+            removed.put(added, true);
+        }
+        method.stmts.removeIf(removed::containsKey);
+    }
+}
@@ -1,16 +1,109 @@
 package jelek;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 class StaticCheck {
-    static HashMap<String, ClassDesc> classDescs = new HashMap<>();
-
-    static void run(Ast.Program program) throws StaticCheckException {
-        init(program);
+    static void run(Ast.Program program, Compilation compilation)
+        throws StaticCheckException {
+        init(program, compilation);
+        if (program.arena != null) {
+            program.arena.types(compilation.types);
+        }
 
+        // From here on classDescs is only read, so method bodies are checked
+        // in parallel, and each method's first error is kept to be reported
+        // in source order
+        var classes = new ArrayList<Ast.Class>();
+        var methods = new ArrayList<Ast.Method>();
         for (var class_ : program.classes) {
-            checkClass(class_);
+            for (var method : class_.methods) {
+                classes.add(class_);
+                methods.add(method);
+            }
+        }
+
+        var errors = new StaticCheckException[methods.size()];
+        int parallelism = ForkJoinTask.inForkJoinPool()
+                              ? ForkJoinTask.getPool().getParallelism()
+                              : ForkJoinPool.getCommonPoolParallelism();
+        int leafSize = Math.max(CheckMethods.MIN_LEAF_SIZE,
+                                methods.size() / (4 * parallelism));
+        new CheckMethods(classes, methods, program.arena, 0, methods.size(),
+                         leafSize, errors, compilation)
+            .invoke();
+
+        for (var error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    // Checks a range of methods, split until each part has at most leafSize.
+    // Every Env holds a table by symbol id, so one is shared by a whole leaf.
+    static class CheckMethods extends RecursiveAction {
+        static final int MIN_LEAF_SIZE = 16;
+
+        final List<Ast.Class> classes; // By method
+        final List<Ast.Method> methods;
+        final Arena arena; // Or null
+        final int start;
+        final int end;
+        final int leafSize;
+        final StaticCheckException[] errors;
+        final Compilation compilation;
+
+        CheckMethods(List<Ast.Class> classes, List<Ast.Method> methods,
+                     Arena arena, int start, int end, int leafSize,
+                     StaticCheckException[] errors, Compilation compilation) {
+            this.classes = classes;
+            this.methods = methods;
+            this.arena = arena;
+            this.start = start;
+            this.end = end;
+            this.leafSize = leafSize;
+            this.errors = errors;
+            this.compilation = compilation;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > leafSize) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new CheckMethods(classes, methods, arena, start, mid,
+                                           leafSize, errors, compilation),
+                          new CheckMethods(classes, methods, arena, mid, end,
+                                           leafSize, errors, compilation));
+                return;
+            }
+
+            var env = new Env(compilation.symbols);
+            Ast.Class class_ = null;
+            for (int i = start; i < end; i++) {
+                if (classes.get(i) != class_) {
+                    if (class_ != null) {
+                        env.pop();
+                    }
+                    class_ = classes.get(i);
+                    enterClass(class_, env, compilation);
+                }
+
+                try {
+                    checkMethod(methods.get(i), arena, env, compilation);
+                } catch (StaticCheckException e) {
+                    errors[i] = e;
+                    // Drop the scope of the method that failed
+                    while (env.depth > Env.METHOD_DEPTH) {
+                        env.pop();
+                    }
+                }
+            }
         }
     }
 
@@ -20,7 +113,10 @@ class StaticCheck {
     // 2. No duplicate var names within a class
     // 3. No duplicate method names within a class
     // 4. No duplicate param names in a method signature
-    static void init(Ast.Program program) throws StaticCheckException {
+    static void init(Ast.Program program, Compilation compilation)
+        throws StaticCheckException {
+        var classDescs = compilation.classDescs;
+
         // Populate classes
         for (var class_ : program.classes) {
             if (classDescs.containsKey(class_.name)) {
@@ -28,7 +124,8 @@ class StaticCheck {
                     String.format("Duplicate class name '%s'", class_.name));
             }
 
-            ClassDesc classDesc = new ClassDesc(class_.name);
+            ClassDesc classDesc = new ClassDesc(
+                class_.name, compilation.types.class_(class_.name));
             classDescs.put(class_.name, classDesc);
         }
 
@@ -62,7 +159,7 @@ class StaticCheck {
                         method.id, class_.name));
                 }
 
-                var params = new HashMap<String, Ast.Type>();
+                var params = new IdentityHashMap<String, Ast.Type>();
 
                 for (var param : method.params) {
                     if (params.containsKey(param.id)) {
@@ -83,14 +180,16 @@ class StaticCheck {
                     params.put(param.id, param.type);
                 }
 
-                classDesc.methods.put(method.id, new Ast.Type.Function(method));
+                classDesc.methods.put(method.id,
+                                      compilation.types.function(method));
             }
         }
     }
 
-    static void checkClass(Ast.Class class_) throws StaticCheckException {
-        var classDesc = classDescs.get(class_.name);
-        var env = new Env(null);
+    // Pushes the scope of a class, for checking its methods
+    static void enterClass(Ast.Class class_, Env env, Compilation compilation) {
+        var classDesc = compilation.classDescs.get(class_.name);
+        env.push();
 
         for (var e : classDesc.methods.entrySet()) {
             env.put(e.getKey(), e.getValue());
@@ -101,26 +200,25 @@ class StaticCheck {
             env.put(e.getKey(), e.getValue());
         }
 
-        env.put("this", new Ast.Type.Class(class_.name));
-
-        for (var method : class_.methods) {
-            checkMethod(method, env);
-        }
+        env.put("this", classDesc.type);
     }
 
-    static void checkMethod(Ast.Method method, Env parentEnv)
+    // Params and vars take slots 0, 1, ... of the method scope in order of
+    // declaration, which Ir3Gen relies on. The body is in arena if the
+    // method has one there.
+    static void checkMethod(Ast.Method method, Arena arena, Env env,
+                            Compilation compilation)
         throws StaticCheckException {
-        var env = new Env(parentEnv);
+        env.push();
 
         for (var var : method.params) {
             env.put(var.id, var.type);
         }
 
-        env.put("Ret", method.returnType);
-
         for (var var : method.vars) {
             if (var.type instanceof Ast.Type.Class &&
-                !classDescs.containsKey(((Ast.Type.Class)var.type).name)) {
+                !compilation.classDescs.containsKey(
+                    ((Ast.Type.Class)var.type).name)) {
                 throw new StaticCheckException(String.format(
                     "Invalid variable type '%s' for variable '%s' in method '%s'",
                     ((Ast.Type.Class)var.type).name, var.id, method.id));
@@ -129,11 +227,19 @@ class StaticCheck {
             env.put(var.id, var.type);
         }
 
-        Ast.Type lastReturnStmtType = new Ast.Type.Void();
-        for (var stmt : method.stmts) {
-            var type = StmtCheck.check(stmt, env);
-            if (stmt instanceof Ast.Stmt.Return) {
-                lastReturnStmtType = type;
+        env.put("Ret", method.returnType);
+
+        Ast.Type lastReturnStmtType = Ast.Type.VOID;
+        if (method.body >= 0) {
+            lastReturnStmtType =
+                new ArenaCheck(arena, env, compilation).checkBody(method.body);
+        } else {
+            var stmtCheck = new StmtCheck(env, compilation);
+            for (var stmt : method.stmts) {
+                var type = stmtCheck.check(stmt);
+                if (stmt instanceof Ast.Stmt.Return) {
+                    lastReturnStmtType = type;
+                }
             }
         }
 
@@ -143,195 +249,305 @@ class StaticCheck {
                 lastReturnStmtType.getClass().getSimpleName(),
                 method.returnType.getClass().getSimpleName()));
         }
+
+        env.pop();
     }
 
-    static class StmtCheck implements Ast.Stmt.Visitor<Ast.Type> {
+    // One StmtCheck and its ExprCheck check a whole method, so visiting a
+    // node allocates nothing
+    static class StmtCheck
+        implements Ast.Stmt.Visitor<Ast.Type, StaticCheckException> {
         final Env env;
+        final Compilation compilation;
+        final ExprCheck exprCheck;
 
-        StmtCheck(Env env) { this.env = new Env(env); }
+        StmtCheck(Env env, Compilation compilation) {
+            this.env = env;
+            this.compilation = compilation;
+            this.exprCheck = new ExprCheck(env, compilation);
+        }
 
-        static Ast.Type check(Ast.Stmt stmt, Env env)
-            throws StaticCheckException {
-            return stmt.accept(new StmtCheck(env));
+        Ast.Type check(Ast.Stmt stmt) throws StaticCheckException {
+            return stmt.accept(this);
         }
 
         @Override
         public Ast.Type visitIf(Ast.Stmt.If stmt) throws StaticCheckException {
-            var condType = ExprCheck.check(stmt.cond, env);
-            if (!(condType instanceof Ast.Type.Bool)) {
-                throw new StaticCheckException(String.format(
-                    "If statement condition type '%s' is not Bool",
-                    condType.getClass().getSimpleName()));
-            }
+            checkCond("If", exprCheck.check(stmt.cond));
 
             for (var _stmt : stmt.thenStmts) {
-                StmtCheck.check(_stmt, env);
+                check(_stmt);
             }
 
             for (var _stmt : stmt.elseStmts) {
-                StmtCheck.check(_stmt, env);
+                check(_stmt);
             }
 
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitWhile(Ast.Stmt.While stmt)
             throws StaticCheckException {
-            var condType = ExprCheck.check(stmt.cond, env);
-            if (!(condType instanceof Ast.Type.Bool)) {
-                throw new StaticCheckException(String.format(
-                    "While statement condition type '%s' is not Bool",
-                    condType.getClass().getSimpleName()));
-            }
+            checkCond("While", exprCheck.check(stmt.cond));
 
             for (var _stmt : stmt.stmts) {
-                StmtCheck.check(_stmt, env);
+                check(_stmt);
             }
 
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitReadln(Ast.Stmt.Readln stmt)
             throws StaticCheckException {
-            var varType = env.get(stmt.id);
-            if (!(varType instanceof Ast.Type.Int ||
-                  varType instanceof Ast.Type.Bool ||
-                  varType instanceof Ast.Type.String)) {
-                throw new StaticCheckException(
-                    String.format("Cannot read into a variable of type '%s'",
-                                  varType.getClass().getSimpleName()));
-            }
+            int binding = env.resolve(stmt.id);
+            stmt.depth = env.depths[binding];
+            stmt.slot = env.slots[binding];
+            checkReadln(env.types[binding]);
 
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitPrintln(Ast.Stmt.Println stmt)
             throws StaticCheckException {
-            var exprType = ExprCheck.check(stmt.expr, env);
-            if (!(exprType instanceof Ast.Type.Int ||
-                  exprType instanceof Ast.Type.Bool ||
-                  exprType instanceof Ast.Type.String)) {
-                throw new StaticCheckException(
-                    String.format("Cannot print a variable of type '%s'",
-                                  exprType.getClass().getSimpleName()));
-            }
+            checkPrintln(exprCheck.check(stmt.expr));
 
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitAssign(Ast.Stmt.Assign stmt)
             throws StaticCheckException {
-            var lhsType = env.get(stmt.lhs);
-            var rhsType = ExprCheck.check(stmt.rhs, env);
+            int binding = env.resolve(stmt.lhs);
+            stmt.depth = env.depths[binding];
+            stmt.slot = env.slots[binding];
+            var lhsType = env.types[binding];
+            checkAssign(lhsType, exprCheck.check(stmt.rhs));
 
-            if (lhsType.getClass() != rhsType.getClass()) {
-                throw new StaticCheckException(String.format(
-                    "Cannot assign a value of type '%s' to a variable of type '%s'",
-                    rhsType.getClass().getSimpleName(),
-                    lhsType.getClass().getSimpleName()));
-            }
-
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitFieldAssign(Ast.Stmt.FieldAssign stmt)
             throws StaticCheckException {
-            var lhsType = ExprCheck.check(
-                new Ast.Expr.Dot(stmt.lhsExpr, stmt.lhsField), env);
-            var rhsType = ExprCheck.check(stmt.rhs, env);
+            var lhsType = exprCheck.checkField(stmt.lhsExpr, stmt.lhsField);
+            checkAssign(lhsType, exprCheck.check(stmt.rhs));
 
-            if (lhsType.getClass() != rhsType.getClass()) {
-                throw new StaticCheckException(String.format(
-                    "Cannot assign a value of type '%s' to a variable of type '%s'",
-                    rhsType.getClass().getSimpleName(),
-                    lhsType.getClass().getSimpleName()));
-            }
-
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitCall(Ast.Stmt.Call stmt)
             throws StaticCheckException {
-            var callee = stmt.callee;
-            var args = stmt.args;
-
-            var callExpr = new Ast.Expr.Call(callee, args);
-            ExprCheck.check(callExpr, env);
+            exprCheck.checkCall(stmt.callee, stmt.args);
 
-            return new Ast.Type.Void();
+            return Ast.Type.VOID;
         }
 
         @Override
         public Ast.Type visitReturn(Ast.Stmt.Return stmt)
             throws StaticCheckException {
-            var expr = stmt.expr;
             var returnType = env.get("Ret");
+            checkReturn(stmt.expr == null ? null : exprCheck.check(stmt.expr),
+                        returnType);
+
+            return returnType;
+        }
+
+        // The rules below are shared with ArenaCheck
+
+        static void checkCond(String stmt, Ast.Type condType)
+            throws StaticCheckException {
+            if (!(condType instanceof Ast.Type.Bool)) {
+                throw new StaticCheckException(String.format(
+                    "%s statement condition type '%s' is not Bool", stmt,
+                    condType.getClass().getSimpleName()));
+            }
+        }
+
+        static void checkReadln(Ast.Type varType)
+            throws StaticCheckException {
+            if (!(varType instanceof Ast.Type.Int ||
+                  varType instanceof Ast.Type.Bool ||
+                  varType instanceof Ast.Type.String)) {
+                throw new StaticCheckException(
+                    String.format("Cannot read into a variable of type '%s'",
+                                  varType.getClass().getSimpleName()));
+            }
+        }
+
+        static void checkPrintln(Ast.Type exprType)
+            throws StaticCheckException {
+            if (!(exprType instanceof Ast.Type.Int ||
+                  exprType instanceof Ast.Type.Bool ||
+                  exprType instanceof Ast.Type.String)) {
+                throw new StaticCheckException(
+                    String.format("Cannot print a variable of type '%s'",
+                                  exprType.getClass().getSimpleName()));
+            }
+        }
 
-            if (expr == null) {
+        static void checkAssign(Ast.Type lhsType, Ast.Type rhsType)
+            throws StaticCheckException {
+            if (lhsType.getClass() != rhsType.getClass()) {
+                throw new StaticCheckException(String.format(
+                    "Cannot assign a value of type '%s' to a variable of type '%s'",
+                    rhsType.getClass().getSimpleName(),
+                    lhsType.getClass().getSimpleName()));
+            }
+        }
+
+        // exprType is null for a return without a value
+        static void checkReturn(Ast.Type exprType, Ast.Type returnType)
+            throws StaticCheckException {
+            if (exprType == null) {
                 if (!(returnType instanceof Ast.Type.Void)) {
                     throw new StaticCheckException(
                         "Must return a value in a method returning non-Void");
                 }
-            } else {
-                var exprType = ExprCheck.check(expr, env);
-                if (exprType.getClass() != returnType.getClass()) {
-                    throw new StaticCheckException(String.format(
-                        "Type of return statement '%s' is not equal to return type '%s'",
-                        exprType.getClass().getSimpleName(),
-                        returnType.getClass().getSimpleName()));
-                }
+            } else if (exprType.getClass() != returnType.getClass()) {
+                throw new StaticCheckException(String.format(
+                    "Type of return statement '%s' is not equal to return type '%s'",
+                    exprType.getClass().getSimpleName(),
+                    returnType.getClass().getSimpleName()));
             }
-
-            return returnType;
         }
     }
 
-    static class ExprCheck implements Ast.Expr.Visitor<Ast.Type> {
+    static class ExprCheck
+        implements Ast.Expr.Visitor<Ast.Type, StaticCheckException> {
         final Env env;
+        final Compilation compilation;
 
-        ExprCheck(Env env) { this.env = new Env(env); }
+        ExprCheck(Env env, Compilation compilation) {
+            this.env = env;
+            this.compilation = compilation;
+        }
 
-        static Ast.Type check(Ast.Expr expr, Env env)
-            throws StaticCheckException {
-            return expr.accept(new ExprCheck(env));
+        Ast.Type check(Ast.Expr expr) throws StaticCheckException {
+            return expr.accept(this);
         }
 
         @Override
         public Ast.Type visitStr(Ast.Expr.Str expr) {
-            expr.type = new Ast.Type.String();
+            expr.type = Ast.Type.STRING;
             return expr.type;
         }
 
         @Override
         public Ast.Type visitInt(Ast.Expr.Int expr) {
-            expr.type = new Ast.Type.Int();
+            expr.type = Ast.Type.INT;
             return expr.type;
         }
 
         @Override
         public Ast.Type visitBool(Ast.Expr.Bool expr) {
-            expr.type = new Ast.Type.Bool();
+            expr.type = Ast.Type.BOOL;
             return expr.type;
         }
 
         @Override
         public Ast.Type visitId(Ast.Expr.Id expr) throws StaticCheckException {
-            expr.type = env.get(expr.id);
+            int binding = env.resolve(expr.id);
+            expr.depth = env.depths[binding];
+            expr.slot = env.slots[binding];
+            expr.type = env.types[binding];
             return expr.type;
         }
 
         @Override
         public Ast.Type visitUnary(Ast.Expr.Unary expr)
             throws StaticCheckException {
-            var atomType = ExprCheck.check(expr.atom, env);
+            expr.type = unaryType(expr.op, check(expr.atom));
+            return expr.type;
+        }
+
+        @Override
+        public Ast.Type visitBinary(Ast.Expr.Binary expr)
+            throws StaticCheckException {
+            var e1Type = check(expr.e1);
+            var e2Type = check(expr.e2);
+            expr.type = binaryType(expr.op, e1Type, e2Type);
+            return expr.type;
+        }
+
+        @Override
+        public Ast.Type visitDot(Ast.Expr.Dot expr)
+            throws StaticCheckException {
+            expr.type = checkField(expr.atom, expr.member);
+            return expr.type;
+        }
+
+        // Also checks the left-hand side of a FieldAssign
+        Ast.Type checkField(Ast.Expr atom, String member)
+            throws StaticCheckException {
+            return fieldType(compilation, check(atom), member);
+        }
+
+        @Override
+        public Ast.Type visitCall(Ast.Expr.Call expr)
+            throws StaticCheckException {
+            expr.type = checkCall(expr.callee, expr.args);
+            return expr.type;
+        }
+
+        // Also checks call statements. Returns the type of the result.
+        Ast.Type checkCall(Ast.Expr callee, List<Ast.Expr> args)
+            throws StaticCheckException {
+            Ast.Type.Function calleeType;
+            if (callee instanceof Ast.Expr.Id) {
+                // LocalCall
+                var id = (Ast.Expr.Id)callee;
+                calleeType = localMethodType(env.get(id.id), id.id);
+            } else if (callee instanceof Ast.Expr.Dot) {
+                // GlobalCall
+                var dot = (Ast.Expr.Dot)callee;
+                calleeType =
+                    methodType(compilation, check(dot.atom), dot.member);
+            } else {
+                throw new AssertionError();
+            }
+
+            // Every argument is checked before any mismatch is reported
+            var paramTypes = calleeType.paramTypes;
+            boolean matches = args.size() == paramTypes.size();
+            for (int i = 0; i < args.size(); i++) {
+                var argType = check(args.get(i));
+                matches = matches && argType == paramTypes.get(i);
+            }
+            checkArgs(matches);
+
+            callee.type = calleeType;
+            return calleeType.returnType;
+        }
 
-            switch (expr.op) {
+        @Override
+        public Ast.Type visitNew(Ast.Expr.New expr)
+            throws StaticCheckException {
+            expr.type = newType(compilation, expr.cname);
+            return expr.type;
+        }
+
+        @Override
+        public Ast.Type visitThis(Ast.Expr.This expr)
+            throws StaticCheckException {
+            expr.type = env.get("this");
+            return expr.type;
+        }
+
+        @Override
+        public Ast.Type visitNull(Ast.Expr.Null expr) {
+            expr.type = Ast.Type.NULL;
+            return expr.type;
+        }
+
+        // The rules below are shared with ArenaCheck
+
+        static Ast.Type unaryType(Ast.Expr.UnaryOp op, Ast.Type atomType)
+            throws StaticCheckException {
+            switch (op) {
             case NEG:
                 if (!(atomType instanceof Ast.Type.Int)) {
                     throw new StaticCheckException(String.format(
@@ -348,17 +564,13 @@ class StaticCheck {
                 break;
             }
 
-            expr.type = atomType;
-            return expr.type;
+            return atomType;
         }
 
-        @Override
-        public Ast.Type visitBinary(Ast.Expr.Binary expr)
+        static Ast.Type binaryType(Ast.Expr.BinaryOp op, Ast.Type e1Type,
+                                   Ast.Type e2Type)
             throws StaticCheckException {
-            var e1Type = ExprCheck.check(expr.e1, env);
-            var e2Type = ExprCheck.check(expr.e2, env);
-
-            switch (expr.op) {
+            switch (op) {
             case PLUS:
             case MINUS:
             case MUL:
@@ -369,8 +581,7 @@ class StaticCheck {
                         "Attempt to perform arithmetic operation on a non-Int");
                 }
 
-                expr.type = new Ast.Type.Int();
-                break;
+                return Ast.Type.INT;
             case LT:
             case GT:
             case LEQ:
@@ -381,8 +592,7 @@ class StaticCheck {
                         "Attempt to perform comparison operation on a non-Int");
                 }
 
-                expr.type = new Ast.Type.Bool();
-                break;
+                return Ast.Type.BOOL;
             case EQ:
             case NEQ:
                 if (e1Type.getClass() != e2Type.getClass()) {
@@ -390,8 +600,7 @@ class StaticCheck {
                         "Attempt to perform equality operation on incompatible types");
                 }
 
-                expr.type = new Ast.Type.Bool();
-                break;
+                return Ast.Type.BOOL;
             case AND:
             case OR:
                 if (!(e1Type instanceof Ast.Type.Bool) ||
@@ -400,17 +609,14 @@ class StaticCheck {
                         "Attempt to perform boolean operation on a non-Bool");
                 }
 
-                expr.type = new Ast.Type.Bool();
-                break;
+                return Ast.Type.BOOL;
+            default:
+                throw new AssertionError();
             }
-
-            return expr.type;
         }
 
-        @Override
-        public Ast.Type visitDot(Ast.Expr.Dot expr)
-            throws StaticCheckException {
-            var atomType = ExprCheck.check(expr.atom, env);
+        static Ast.Type fieldType(Compilation compilation, Ast.Type atomType,
+                                  String member) throws StaticCheckException {
             if (!(atomType instanceof Ast.Type.Class)) {
                 throw new StaticCheckException(
                     String.format("Cannot access field of type '%s'",
@@ -418,121 +624,330 @@ class StaticCheck {
             }
 
             var className = ((Ast.Type.Class)atomType).name;
-            var classDesc = classDescs.get(className);
-            if (!(classDesc.vars.containsKey(expr.member))) {
+            var classDesc = compilation.classDescs.get(className);
+            if (!(classDesc.vars.containsKey(member))) {
                 throw new StaticCheckException(String.format(
-                    "Class '%s' has no field '%s'", className, expr.member));
+                    "Class '%s' has no field '%s'", className, member));
             }
 
-            expr.type = classDesc.vars.get(expr.member);
-            return expr.type;
+            return classDesc.vars.get(member);
         }
 
-        @Override
-        public Ast.Type visitCall(Ast.Expr.Call expr)
+        // The type of a method called by name alone, as type is bound
+        static Ast.Type.Function localMethodType(Ast.Type type, String id)
             throws StaticCheckException {
-            var calleeType = (Ast.Type.Function)expr.callee.type;
-            if (expr.callee instanceof Ast.Expr.Id) {
-                // LocalCall
-                var callee = (Ast.Expr.Id)expr.callee;
-                calleeType = (Ast.Type.Function)env.get(callee.id);
-                if (!(calleeType instanceof Ast.Type.Function)) {
-                    throw new StaticCheckException(
-                        String.format("'%s' is not a method", callee.id));
-                }
-            } else if (expr.callee instanceof Ast.Expr.Dot) {
-                // GlobalCall
-                var callee = (Ast.Expr.Dot)expr.callee;
-                var atomType = ExprCheck.check(callee.atom, env);
-                if (!(atomType instanceof Ast.Type.Class)) {
-                    throw new StaticCheckException(
-                        String.format("Cannot access field of type '%s'",
-                                      atomType.getClass().getSimpleName()));
-                }
-
-                var className = ((Ast.Type.Class)atomType).name;
-                var classDesc = classDescs.get(className);
-                if (!(classDesc.methods.containsKey(callee.member))) {
-                    throw new StaticCheckException(
-                        String.format("Class '%s' has no method '%s'",
-                                      className, callee.member));
-                }
+            var calleeType = (Ast.Type.Function)type;
+            if (!(calleeType instanceof Ast.Type.Function)) {
+                throw new StaticCheckException(
+                    String.format("'%s' is not a method", id));
+            }
+            return calleeType;
+        }
 
-                calleeType = classDesc.methods.get(callee.member);
-            } else {
-                throw new AssertionError();
+        static Ast.Type.Function methodType(Compilation compilation,
+                                            Ast.Type atomType, String member)
+            throws StaticCheckException {
+            if (!(atomType instanceof Ast.Type.Class)) {
+                throw new StaticCheckException(
+                    String.format("Cannot access field of type '%s'",
+                                  atomType.getClass().getSimpleName()));
             }
 
-            var argTypes = new ArrayList<Ast.Type>();
-            for (var arg : expr.args) {
-                argTypes.add(ExprCheck.check(arg, env));
+            var className = ((Ast.Type.Class)atomType).name;
+            var classDesc = compilation.classDescs.get(className);
+            if (!(classDesc.methods.containsKey(member))) {
+                throw new StaticCheckException(
+                    String.format("Class '%s' has no method '%s'", className,
+                                  member));
             }
-            if (!argTypes.equals(calleeType.paramTypes)) {
+
+            return classDesc.methods.get(member);
+        }
+
+        static void checkArgs(boolean matches) throws StaticCheckException {
+            if (!matches) {
                 throw new StaticCheckException(
                     "Attempt to call method with incompatible argument type");
             }
-
-            expr.callee.type = calleeType;
-            expr.type = calleeType.returnType;
-            return expr.type;
         }
 
-        @Override
-        public Ast.Type visitNew(Ast.Expr.New expr)
+        static Ast.Type newType(Compilation compilation, String cname)
             throws StaticCheckException {
-            if (!classDescs.containsKey(expr.cname)) {
+            var classDesc = compilation.classDescs.get(cname);
+            if (classDesc == null) {
                 throw new StaticCheckException(
-                    String.format("No such class '%s'", expr.cname));
+                    String.format("No such class '%s'", cname));
             }
+            return classDesc.type;
+        }
+    }
 
-            expr.type = new Ast.Type.Class(expr.cname);
-            return expr.type;
+    // Checks a method body in an Arena the way StmtCheck and ExprCheck check
+    // nodes, in the same order and with the same rules, and fills in the
+    // arena's types and slots. One checks a whole method and allocates
+    // nothing per node.
+    static class ArenaCheck {
+        final Arena arena;
+        final Env env;
+        final Compilation compilation;
+
+        ArenaCheck(Arena arena, Env env, Compilation compilation) {
+            this.arena = arena;
+            this.env = env;
+            this.compilation = compilation;
+        }
+
+        // Returns the type of the last return statement, or Void
+        Ast.Type checkBody(int stmts) throws StaticCheckException {
+            Ast.Type lastReturnStmtType = Ast.Type.VOID;
+            for (int i = 0; i < arena.length(stmts); i++) {
+                int stmt = arena.get(stmts, i);
+                var type = checkStmt(stmt);
+                if (arena.kinds[stmt] == Arena.RETURN) {
+                    lastReturnStmtType = type;
+                }
+            }
+            return lastReturnStmtType;
         }
 
-        @Override
-        public Ast.Type visitThis(Ast.Expr.This expr)
-            throws StaticCheckException {
-            expr.type = env.get("this");
-            return expr.type;
+        void checkStmts(int stmts) throws StaticCheckException {
+            for (int i = 0; i < arena.length(stmts); i++) {
+                checkStmt(arena.get(stmts, i));
+            }
         }
 
-        @Override
-        public Ast.Type visitNull(Ast.Expr.Null expr) {
-            expr.type = new Ast.Type.Null();
-            return expr.type;
+        Ast.Type checkStmt(int stmt) throws StaticCheckException {
+            int a = arena.a[stmt];
+            int b = arena.b[stmt];
+            int c = arena.c[stmt];
+            switch (arena.kinds[stmt]) {
+            case Arena.IF:
+                StmtCheck.checkCond("If", check(a));
+                checkStmts(b);
+                checkStmts(c);
+                return Ast.Type.VOID;
+            case Arena.WHILE:
+                StmtCheck.checkCond("While", check(a));
+                checkStmts(b);
+                return Ast.Type.VOID;
+            case Arena.READLN: {
+                int binding = env.resolve(a);
+                arena.b[stmt] = slot(binding);
+                StmtCheck.checkReadln(env.types[binding]);
+                return Ast.Type.VOID;
+            }
+            case Arena.PRINTLN:
+                StmtCheck.checkPrintln(check(a));
+                return Ast.Type.VOID;
+            case Arena.ASSIGN: {
+                int binding = env.resolve(a);
+                arena.c[stmt] = slot(binding);
+                var lhsType = env.types[binding];
+                StmtCheck.checkAssign(lhsType, check(b));
+                return Ast.Type.VOID;
+            }
+            case Arena.FIELD_ASSIGN: {
+                var lhsType = checkField(a, b);
+                StmtCheck.checkAssign(lhsType, check(c));
+                return Ast.Type.VOID;
+            }
+            case Arena.CALL_STMT:
+                checkCall(a, b);
+                return Ast.Type.VOID;
+            case Arena.RETURN: {
+                var returnType = env.get("Ret");
+                StmtCheck.checkReturn(a < 0 ? null : check(a), returnType);
+                return returnType;
+            }
+            default:
+                throw new AssertionError();
+            }
+        }
+
+        Ast.Type check(int expr) throws StaticCheckException {
+            int a = arena.a[expr];
+            int b = arena.b[expr];
+            switch (arena.kinds[expr]) {
+            case Arena.STR:
+                return arena.setType(expr, Ast.Type.STRING);
+            case Arena.INT:
+                return arena.setType(expr, Ast.Type.INT);
+            case Arena.BOOL:
+                return arena.setType(expr, Ast.Type.BOOL);
+            case Arena.ID: {
+                int binding = env.resolve(a);
+                arena.b[expr] = slot(binding);
+                return arena.setType(expr, env.types[binding]);
+            }
+            case Arena.UNARY:
+                return arena.setType(
+                    expr, ExprCheck.unaryType(Arena.UNARY_OPS[a], check(b)));
+            case Arena.BINARY: {
+                var e1Type = check(b);
+                var e2Type = check(arena.c[expr]);
+                return arena.setType(
+                    expr,
+                    ExprCheck.binaryType(Arena.BINARY_OPS[a], e1Type, e2Type));
+            }
+            case Arena.DOT:
+                return arena.setType(expr, checkField(a, b));
+            case Arena.CALL:
+                return arena.setType(expr, checkCall(a, b));
+            case Arena.NEW:
+                return arena.setType(
+                    expr,
+                    ExprCheck.newType(compilation, compilation.symbols.name(a)));
+            case Arena.THIS:
+                return arena.setType(expr, env.get("this"));
+            case Arena.NULL:
+                return arena.setType(expr, Ast.Type.NULL);
+            default:
+                throw new AssertionError();
+            }
+        }
+
+        Ast.Type checkField(int atom, int member) throws StaticCheckException {
+            return ExprCheck.fieldType(compilation, check(atom),
+                                       compilation.symbols.name(member));
+        }
+
+        // Returns the type of the result
+        Ast.Type checkCall(int callee, int args) throws StaticCheckException {
+            Ast.Type.Function calleeType;
+            if (arena.kinds[callee] == Arena.ID) {
+                int name = arena.a[callee];
+                calleeType = ExprCheck.localMethodType(
+                    env.types[env.resolve(name)],
+                    compilation.symbols.name(name));
+            } else if (arena.kinds[callee] == Arena.DOT) {
+                calleeType = ExprCheck.methodType(
+                    compilation, check(arena.a[callee]),
+                    compilation.symbols.name(arena.b[callee]));
+            } else {
+                throw new AssertionError();
+            }
+
+            var paramTypes = calleeType.paramTypes;
+            boolean matches = arena.length(args) == paramTypes.size();
+            for (int i = 0; i < arena.length(args); i++) {
+                var argType = check(arena.get(args, i));
+                matches = matches && argType == paramTypes.get(i);
+            }
+            ExprCheck.checkArgs(matches);
+
+            arena.setType(callee, calleeType);
+            return calleeType.returnType;
+        }
+
+        // Where Ir3Gen finds a variable: its slot among the method's, or a
+        // field of this
+        int slot(int binding) {
+            return env.depths[binding] == Env.METHOD_DEPTH ? env.slots[binding]
+                                                          : Arena.FIELD;
         }
     }
 
+    // Names are interned by the scanner, so tables below are keyed by identity
     static class ClassDesc {
         final String name;
-        HashMap<String, Ast.Type> vars = new HashMap<>();
-        HashMap<String, Ast.Type.Function> methods = new HashMap<>();
+        final Ast.Type.Class type;
+        IdentityHashMap<String, Ast.Type> vars = new IdentityHashMap<>();
+        IdentityHashMap<String, Ast.Type.Function> methods =
+            new IdentityHashMap<>();
 
-        ClassDesc(String name) { this.name = name; }
+        ClassDesc(String name, Ast.Type.Class type) {
+            this.name = name;
+            this.type = type;
+        }
     }
 
+    // Scoped symbol table. Bindings are kept in flat arrays in order of
+    // declaration, and head has the innermost binding of every name, by the
+    // name's symbol id. Each binding links to the one it shadows, so a
+    // lookup is a single array read, and popping a scope just unwinds its
+    // bindings. Nothing is allocated once the arrays have grown to fit.
     static class Env {
-        final Env parent;
-        final HashMap<String, Ast.Type> scope = new HashMap<>();
+        // Scope depths, which Ir3Gen uses to tell fields from locals
+        static final int CLASS_DEPTH = 0;
+        static final int METHOD_DEPTH = 1;
+
+        final Symbols symbols;
+        final int[] head;
+
+        // By binding
+        int[] names = new int[64];
+        int[] shadowed = new int[64];
+        int[] depths = new int[64];
+        int[] slots = new int[64];
+        Ast.Type[] types = new Ast.Type[64];
+        int size = 0;
+
+        // By scope, the first binding in it
+        int[] scopeStarts = new int[4];
+        int depth = 0;
+
+        Env(Symbols symbols) {
+            this.symbols = symbols;
+            head = new int[symbols.size()];
+            Arrays.fill(head, -1);
+        }
+
+        void push() {
+            if (depth == scopeStarts.length) {
+                scopeStarts = Arrays.copyOf(scopeStarts, depth * 2);
+            }
+            scopeStarts[depth++] = size;
+        }
 
-        Env(Env parent) { this.parent = parent; }
+        void pop() {
+            int start = scopeStarts[--depth];
+            while (size > start) {
+                size--;
+                head[names[size]] = shadowed[size];
+                types[size] = null;
+            }
+        }
 
-        void put(String id, Ast.Type type) { this.scope.put(id, type); }
+        // Shadows any earlier binding of id, even in the same scope
+        void put(String id, Ast.Type type) {
+            if (size == names.length) {
+                names = Arrays.copyOf(names, size * 2);
+                shadowed = Arrays.copyOf(shadowed, size * 2);
+                depths = Arrays.copyOf(depths, size * 2);
+                slots = Arrays.copyOf(slots, size * 2);
+                types = Arrays.copyOf(types, size * 2);
+            }
 
-        Ast.Type get(String id) throws StaticCheckException {
-            if (scope.containsKey(id)) {
-                return scope.get(id);
-            } else if (parent != null) {
-                return parent.get(id);
-            } else {
+            int name = symbols.id(id);
+            names[size] = name;
+            shadowed[size] = head[name];
+            depths[size] = depth - 1;
+            slots[size] = size - scopeStarts[depth - 1];
+            types[size] = type;
+            head[name] = size++;
+        }
+
+        // Returns the binding id refers to
+        int resolve(String id) throws StaticCheckException {
+            int name = symbols.id(id);
+            if (name < 0 || head[name] < 0) {
                 throw new StaticCheckException(
                     String.format("Cannot resolve identifier '%s'", id));
             }
+            return head[name];
+        }
+
+        // The same, by symbol id
+        int resolve(int name) throws StaticCheckException {
+            if (head[name] < 0) {
+                throw new StaticCheckException(String.format(
+                    "Cannot resolve identifier '%s'", symbols.name(name)));
+            }
+            return head[name];
         }
 
-        boolean contains(String id) {
-            return scope.containsKey(id) ||
-                (parent != null && parent.contains(id));
+        Ast.Type get(String id) throws StaticCheckException {
+            return types[resolve(id)];
         }
     }
 
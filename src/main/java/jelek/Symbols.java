@@ -0,0 +1,140 @@
+package jelek;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+// Identifiers and class names of one compilation. Scanner and Lexer intern
+// every name as they lex it, straight out of their buffer, so each distinct
+// name is a single String instance from then on: later phases compare names
+// with == and key their tables by identity or by the name's dense id, and
+// never hash or compare the characters again.
+//
+// Interning only happens while lexing. Afterwards the table is read-only and
+// safe to share between threads.
+class Symbols {
+    // Open addressing, kept at most half full
+    String[] table = new String[64];
+    int[] ids = new int[64];
+    final ArrayList<String> names = new ArrayList<>();
+
+    Symbols() {
+        // Names the compiler refers to by literal
+        intern("this");
+        intern("main");
+        intern("Ret");
+    }
+
+    String intern(char[] buf, int off, int len) {
+        int hash = 0;
+        for (int i = off; i < off + len; i++) {
+            hash = 31 * hash + buf[i];
+        }
+
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+            var name = table[i];
+            if (name == null) {
+                return add(new String(buf, off, len), i);
+            }
+            if (name.hashCode() == hash && matches(name, buf, off, len)) {
+                return name;
+            }
+        }
+    }
+
+    // Same as above for a run of ASCII bytes, as read by Lexer
+    String intern(ByteBuffer buf, int off, int len) {
+        int hash = 0;
+        for (int i = off; i < off + len; i++) {
+            hash = 31 * hash + buf.get(i);
+        }
+
+        int mask = table.length - 1;
+        for (int i = spread(hash) & mask;; i = (i + 1) & mask) {
+            var name = table[i];
+            if (name == null) {
+                var chars = new char[len];
+                for (int j = 0; j < len; j++) {
+                    chars[j] = (char)buf.get(off + j);
+                }
+                return add(new String(chars), i);
+            }
+            if (name.hashCode() == hash && matches(name, buf, off, len)) {
+                return name;
+            }
+        }
+    }
+
+    String intern(String s) {
+        int i = find(s);
+        return table[i] == null ? add(s, i) : table[i];
+    }
+
+    // Returns the id of an interned name, or -1
+    int id(String name) {
+        int i = find(name);
+        return table[i] == null ? -1 : ids[i];
+    }
+
+    String name(int id) { return names.get(id); }
+
+    int size() { return names.size(); }
+
+    int find(String s) {
+        int mask = table.length - 1;
+        for (int i = spread(s.hashCode()) & mask;; i = (i + 1) & mask) {
+            var name = table[i];
+            if (name == null || name == s || name.equals(s)) {
+                return i;
+            }
+        }
+    }
+
+    String add(String name, int i) {
+        table[i] = name;
+        ids[i] = names.size();
+        names.add(name);
+
+        if (names.size() * 2 > table.length) {
+            var oldTable = table;
+            var oldIds = ids;
+            table = new String[oldTable.length * 2];
+            ids = new int[oldTable.length * 2];
+            for (int j = 0; j < oldTable.length; j++) {
+                if (oldTable[j] != null) {
+                    int k = find(oldTable[j]);
+                    table[k] = oldTable[j];
+                    ids[k] = oldIds[j];
+                }
+            }
+        }
+
+        return name;
+    }
+
+    static boolean matches(String name, char[] buf, int off, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean matches(String name, ByteBuffer buf, int off, int len) {
+        if (name.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (name.charAt(i) != buf.get(off + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static int spread(int hash) { return hash ^ (hash >>> 16); }
+}
@@ -0,0 +1,165 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+// Turns calls a method makes to itself and then returns the result of into
+// jumps back to its start, so the recursion runs as a loop. The args are
+// assigned to the params, through temps where an arg is a param some other
+// assignment changes first, and the locals are set back to 0, false or
+// null.
+//
+// A call on another object assigns the "this" param too.
+class TailCalls {
+    // Returns the number of calls removed
+    static int run(Ir3.Method method) {
+        var stmts = method.stmts;
+        var labels = new HashMap<Integer, Integer>(); // Indices, by label
+        for (int i = 0; i < stmts.size(); i++) {
+            if (stmts.get(i) instanceof Ir3.Stmt.Label) {
+                labels.put(((Ir3.Stmt.Label)stmts.get(i)).label, i);
+            }
+        }
+        var tails = new ArrayList<Integer>(); // Indices of the calls
+        for (int i = 0; i < stmts.size(); i++) {
+            if (selfCall(method, labels, i) != null) {
+                tails.add(i);
+            }
+        }
+        if (tails.isEmpty()) {
+            return 0;
+        }
+
+        int entry = method.labelCounter++;
+        var rewritten = new ArrayList<Ir3.Stmt>();
+        rewritten.add(new Ir3.Stmt.Label(entry));
+        int next = 0;
+        for (int i = 0; i < stmts.size(); i++) {
+            if (next < tails.size() && tails.get(next) == i) {
+                next++;
+                jump(method, selfCall(method, labels, i), entry, rewritten);
+            } else {
+                rewritten.add(stmts.get(i));
+            }
+        }
+        method.stmts = rewritten;
+        return tails.size();
+    }
+
+    // The args of a call to method at i whose result is returned, or null.
+    // Between the two there can be labels, jumps, and copies of the result,
+    // which only the return reads.
+    static List<Ast.Expr> selfCall(Ir3.Method method,
+                                   HashMap<Integer, Integer> labels, int i) {
+        var stmts = method.stmts;
+        var stmt = stmts.get(i);
+        List<Ast.Expr> args;
+        String result = null;
+        if (stmt instanceof Ir3.Stmt.Call &&
+            ((Ir3.Stmt.Call)stmt).id.equals(method.name)) {
+            args = ((Ir3.Stmt.Call)stmt).args;
+        } else if (stmt instanceof Ir3.Stmt.Assign &&
+                   ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Call) {
+            var call = (Ast.Expr.Call)((Ir3.Stmt.Assign)stmt).rhs;
+            if (!((Ast.Expr.Id)call.callee).id.equals(method.name)) {
+                return null;
+            }
+            args = call.args;
+            result = ((Ir3.Stmt.Assign)stmt).lhs;
+        } else {
+            return null;
+        }
+
+        // Each statement at most once, in case the jumps go round
+        int j = i + 1;
+        for (int steps = 0; j < stmts.size() && steps < stmts.size();
+             steps++) {
+            stmt = stmts.get(j);
+            if (stmt instanceof Ir3.Stmt.Label) {
+                j++;
+            } else if (stmt instanceof Ir3.Stmt.Goto) {
+                j = labels.get(((Ir3.Stmt.Goto)stmt).label);
+            } else if (result != null && stmt instanceof Ir3.Stmt.Assign &&
+                       ((Ir3.Stmt.Assign)stmt).rhs instanceof Ast.Expr.Id &&
+                       ((Ast.Expr.Id)((Ir3.Stmt.Assign)stmt).rhs).id
+                           .equals(result)) {
+                result = ((Ir3.Stmt.Assign)stmt).lhs;
+                j++;
+            } else {
+                break;
+            }
+        }
+        if (j == stmts.size()) {
+            // A void method can just end
+            return result == null && method.returnType == Ast.Type.VOID
+                ? args
+                : null;
+        } else if (!(stmts.get(j) instanceof Ir3.Stmt.Return)) {
+            return null;
+        }
+        var expr = ((Ir3.Stmt.Return)stmts.get(j)).expr;
+        if (expr == null) {
+            return args;
+        } else if (result != null && expr instanceof Ast.Expr.Id &&
+                   ((Ast.Expr.Id)expr).id.equals(result)) {
+            return args;
+        }
+        return null;
+    }
+
+    static void jump(Ir3.Method method, List<Ast.Expr> args, int entry,
+                     ArrayList<Ir3.Stmt> stmts) {
+        var params = method.params;
+        var names = new HashMap<String, Integer>(); // Params, by name
+        for (int i = 0; i < params.size(); i++) {
+            names.put(params.get(i).id, i);
+        }
+
+        // A param read by an arg other than its own is read before any is
+        // assigned
+        var values = new ArrayList<Ast.Expr>();
+        for (int i = 0; i < params.size(); i++) {
+            var arg = args.get(i);
+            values.add(arg);
+            if (isParam(arg, params.get(i))) {
+                continue;
+            }
+            var name = arg instanceof Ast.Expr.This
+                           ? params.get(0).id
+                           : arg instanceof Ast.Expr.Id
+                                 ? ((Ast.Expr.Id)arg).id
+                                 : null;
+            if (name != null && names.containsKey(name)) {
+                var param = params.get(names.get(name));
+                var temp = new Ast.Var(param.type,
+                                       "_t" + method.tempCounter++);
+                method.vars.add(temp);
+                stmts.add(new Ir3.Stmt.Assign(temp.id, arg));
+                values.set(i, Ssa.id(temp.id, temp.type));
+            }
+        }
+        for (int i = 0; i < params.size(); i++) {
+            if (!isParam(args.get(i), params.get(i))) {
+                stmts.add(new Ir3.Stmt.Assign(params.get(i).id,
+                                              values.get(i)));
+            }
+        }
+        // A new call starts its locals at 0, false or null, and one can be
+        // read before it is assigned. Temps never are.
+        for (var var : method.vars) {
+            if (!Coalesce.isTemp(var.id)) {
+                stmts.add(new Ir3.Stmt.Assign(var.id,
+                                              Scalars.initial(var.type)));
+            }
+        }
+        stmts.add(new Ir3.Stmt.Goto(entry));
+    }
+
+    // Whether expr is the param itself
+    static boolean isParam(Ast.Expr expr, Ast.Var param) {
+        return (expr instanceof Ast.Expr.Id &&
+                ((Ast.Expr.Id)expr).id.equals(param.id)) ||
+            (expr instanceof Ast.Expr.This && param.id.equals("this"));
+    }
+}
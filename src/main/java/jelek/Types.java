@@ -0,0 +1,48 @@
+package jelek;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+// Class and function types of one compilation. Like the primitive types in
+// Ast.Type, each distinct type is a single instance, so types compare with
+// == and every expression of a type shares it.
+//
+// Class types are made while parsing and function types by StaticCheck.init.
+// Afterwards the table is read-only and safe to share between threads.
+class Types {
+    final IdentityHashMap<String, Ast.Type.Class> classes =
+        new IdentityHashMap<>();
+    // Keyed by the param types followed by the return type. These are
+    // canonical already, so the key's equals and hashCode are by identity.
+    final HashMap<List<Ast.Type>, Ast.Type.Function> functions =
+        new HashMap<>();
+
+    // The name must be interned
+    Ast.Type.Class class_(String name) {
+        var type = classes.get(name);
+        if (type == null) {
+            type = new Ast.Type.Class(name);
+            classes.put(name, type);
+        }
+        return type;
+    }
+
+    Ast.Type.Function function(Ast.Method method) {
+        var key = new ArrayList<Ast.Type>(method.params.size() + 1);
+        for (var param : method.params) {
+            key.add(param.type);
+        }
+        key.add(method.returnType);
+
+        var type = functions.get(key);
+        if (type == null) {
+            type = new Ast.Type.Function(
+                List.copyOf(key.subList(0, key.size() - 1)),
+                method.returnType);
+            functions.put(key, type);
+        }
+        return type;
+    }
+}